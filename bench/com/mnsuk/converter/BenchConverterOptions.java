@@ -0,0 +1,38 @@
+package com.mnsuk.converter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ibm.dataexplorer.converter.ConverterOptions;
+
+/**
+ * Stand-in for the options the Engine passes to a converter.
+ */
+public class BenchConverterOptions implements ConverterOptions {
+	private final Map<String, List<String>> options = new HashMap<String, List<String>>();
+
+	public BenchConverterOptions add(String name, String value) {
+		List<String> values = options.get(name);
+		if (values == null) {
+			values = new ArrayList<String>();
+			options.put(name, values);
+		}
+		values.add(value);
+		return this;
+	}
+
+	@Override
+	public String getLastOptionValue(String name) {
+		List<String> values = options.get(name);
+		return values == null || values.isEmpty() ? null : values.get(values.size() - 1);
+	}
+
+	@Override
+	public List<String> getOptionValues(String name) {
+		List<String> values = options.get(name);
+		return values == null ? Collections.<String>emptyList() : values;
+	}
+}
@@ -0,0 +1,209 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.uima.Constants;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+
+/**
+ * Builds the inputs used by the benchmarks: the stub annotator as a descriptor, an engine
+ * or a pear file, synthetic VXML batches and converter options.
+ */
+public final class BenchFixtures {
+	static final String TOKEN = "bench.Token";
+	static final String PERSON = "bench.Person";
+	static final String LOCATION = "bench.Location";
+	static final String COMPONENT_ID = "bench.StubAnnotator";
+	static final String PEAR_FILENAME = "stub-annotator.pear";
+
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private static final String[] WORDS = { "the", "report", "was", "written", "by", "Alice", "and", "reviewed",
+			"in", "London", "after", "Bob", "had", "read", "it" };
+
+	private BenchFixtures() {
+	}
+
+	static TypeSystemDescription typeSystem() {
+		TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory().createTypeSystemDescription();
+		tsd.addType(TOKEN, "", CAS.TYPE_NAME_ANNOTATION);
+		tsd.addType(PERSON, "", CAS.TYPE_NAME_ANNOTATION).addFeature("gender", "", CAS.TYPE_NAME_STRING);
+		tsd.addType(LOCATION, "", CAS.TYPE_NAME_ANNOTATION);
+		return tsd;
+	}
+
+	static AnalysisEngineDescription descriptor() {
+		return descriptor(StubAnnotator.class.getName());
+	}
+
+	/**
+	 * A descriptor of the stub annotator's type system run by another annotator class.
+	 */
+	static AnalysisEngineDescription descriptor(String annotator) {
+		AnalysisEngineDescription desc = UIMAFramework.getResourceSpecifierFactory().createAnalysisEngineDescription();
+		desc.setFrameworkImplementation(Constants.JAVA_FRAMEWORK_NAME);
+		desc.setPrimitive(true);
+		desc.setAnnotatorImplementationName(annotator);
+		desc.getAnalysisEngineMetaData().setName(COMPONENT_ID);
+		desc.getAnalysisEngineMetaData().setTypeSystem(typeSystem());
+		return desc;
+	}
+
+	static UimaEngine createEngine(int casPoolSize) throws Exception {
+		return createEngine(casPoolSize, StubAnnotator.class.getName());
+	}
+
+	static UimaEngine createEngine(int casPoolSize, String annotator) throws Exception {
+		AnalysisEngine ae = UIMAFramework.produceAnalysisEngine(descriptor(annotator));
+		return new UimaEngine(ae, casPoolSize);
+	}
+
+	/**
+	 * Create a pear support folder, with <code>repo</code> holding a pear of the stub
+	 * annotator and an empty <code>run</code> folder.
+	 */
+	static File createPearSupportFolder() throws Exception {
+		return createPearSupportFolder(StubAnnotator.class.getName());
+	}
+
+	/**
+	 * Create a pear support folder as for {@link #createPearSupportFolder()}, with a pear running
+	 * another annotator class. The class is not packaged in the pear, so it is loaded from the
+	 * classpath, with any static state it shares.
+	 */
+	static File createPearSupportFolder(String annotator) throws Exception {
+		File folder = File.createTempFile("pearsupport", "");
+		if (!folder.delete() || !folder.mkdir())
+			throw new IOException("Cannot create " + folder);
+		File repo = new File(folder, "repo");
+		File run = new File(folder, "run");
+		if (!repo.mkdir() || !run.mkdir())
+			throw new IOException("Cannot create " + folder);
+		writePear(new File(repo, PEAR_FILENAME), annotator);
+		return folder;
+	}
+
+	static void writePear(File pear) throws Exception {
+		writePear(pear, StubAnnotator.class.getName());
+	}
+
+	static void writePear(File pear, String annotator) throws Exception {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pear));
+		try {
+			zip.putNextEntry(new ZipEntry("metadata/install.xml"));
+			Writer w = new OutputStreamWriter(zip, "UTF-8");
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<COMPONENT_INSTALLATION_DESCRIPTOR>\n"
+					+ "  <SUBMITTED_COMPONENT>\n"
+					+ "    <ID>" + COMPONENT_ID + "</ID>\n"
+					+ "    <NAME>Stub annotator</NAME>\n"
+					+ "    <DESC>$main_root/desc/StubAnnotator.xml</DESC>\n"
+					+ "    <DEPLOYMENT>standard</DEPLOYMENT>\n"
+					+ "  </SUBMITTED_COMPONENT>\n"
+					+ "  <INSTALLATION>\n"
+					+ "  </INSTALLATION>\n"
+					+ "</COMPONENT_INSTALLATION_DESCRIPTOR>\n");
+			w.flush();
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("desc/StubAnnotator.xml"));
+			descriptor(annotator).toXML(zip);
+			zip.closeEntry();
+
+			String[] classes = { StubAnnotator.class.getName(), BenchFixtures.class.getName() };
+			for (String name : classes) {
+				String path = name.replace('.', '/') + ".class";
+				zip.putNextEntry(new ZipEntry("bin/" + path));
+				InputStream in = BenchFixtures.class.getClassLoader().getResourceAsStream(path);
+				try {
+					byte[] buf = new byte[8192];
+					for (int n = in.read(buf); n >= 0; n = in.read(buf))
+						zip.write(buf, 0, n);
+				} finally {
+					in.close();
+				}
+				zip.closeEntry();
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	static BenchConverterOptions options(String... extra) {
+		BenchConverterOptions options = new BenchConverterOptions()
+				.add("pear-filename", PEAR_FILENAME)
+				.add("type", "token:" + TOKEN)
+				.add("type", "person:" + PERSON)
+				.add("type", "gender:" + PERSON + ":gender");
+		for (int i = 0; i + 1 < extra.length; i += 2)
+			options.add(extra[i], extra[i + 1]);
+		return options;
+	}
+
+	/**
+	 * Random text from a small vocabulary.
+	 */
+	static String text(int words, long seed) {
+		Random random = new Random(seed);
+		StringBuilder sb = new StringBuilder(words * 7);
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A VXML batch of documents each with a title and a body of the given number of words.
+	 */
+	static byte[] vxml(int documents, int words) throws Exception {
+		return vxml(documents, words, 0);
+	}
+
+	/**
+	 * A VXML batch of documents each with a title, a body of the given number of words and,
+	 * if <code>binaryChars</code> is not 0, a base64 like <code>binary</code> content of that
+	 * length, such as the text extracted from an attachment that is not analysed.
+	 */
+	static byte[] vxml(int documents, int words, int binaryChars) throws Exception {
+		Random random = new Random(binaryChars);
+		StringBuilder sb = new StringBuilder();
+		sb.append("<vce>");
+		for (int d = 0; d < documents; d++) {
+			sb.append("<document url=\"http://bench/doc-").append(d).append("\">");
+			sb.append("<content name=\"title\">").append(text(8, d)).append("</content>");
+			sb.append("<content name=\"body\">").append(text(words, 31L * d + 1)).append("</content>");
+			if (binaryChars > 0) {
+				sb.append("<content name=\"binary\">");
+				for (int i = 0; i < binaryChars; i++)
+					sb.append(BASE64.charAt(random.nextInt(BASE64.length())));
+				sb.append("</content>");
+			}
+			sb.append("</document>");
+		}
+		sb.append("</vce>");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
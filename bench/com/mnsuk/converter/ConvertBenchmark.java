@@ -0,0 +1,74 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end <code>convert(byte[])</code> of synthetic VXML batches with the stub annotator,
+ * analysing in the converter or in an analysis daemon on a loopback port.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConvertBenchmark {
+	@Param({ "1", "50" })
+	public int documents;
+
+	@Param({ "100", "10000" })
+	public int words;
+
+	@Param({ "false", "true" })
+	public boolean streamingOutput;
+
+	@Param({ "false", "true" })
+	public boolean daemon;
+
+	private File pearSupportFolder;
+	private AnalysisDaemon analysisDaemon;
+	private UimaAE converter;
+	private byte[] input;
+
+	@Setup
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		BenchConverterOptions options = BenchFixtures.options();
+		if (streamingOutput)
+			options.add("streaming-output", "streaming-output");
+		if (daemon) {
+			analysisDaemon = new AnalysisDaemon(pearSupportFolder, BenchFixtures.options(), 0);
+			analysisDaemon.start();
+			options.add("analysis-daemon-port", Integer.toString(analysisDaemon.getPort()));
+		}
+		converter = new UimaAE(options, pearSupportFolder);
+		input = BenchFixtures.vxml(documents, words);
+	}
+
+	@TearDown
+	public void tearDown() {
+		converter.terminate();
+		if (analysisDaemon != null)
+			analysisDaemon.close();
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Benchmark
+	public byte[] convert() throws Exception {
+		return converter.convert(input);
+	}
+}
@@ -0,0 +1,92 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Engine startup from the stub pear: a cold start installs the pear into an empty run
+ * folder and creates the engine, a warm start gets the engine already in the registry.
+ * The first document after a cold start shows how much of the startup cost the warm up
+ * moves out of the first document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EngineStartupBenchmark {
+	@Param({ "0", "1" })
+	public int warmUpIterations;
+
+	private File pearSupportFolder;
+	private UimaAEConverterOptions opts;
+	private UimaEngine warmEngine;
+	private UimaEngine engine;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		opts = new UimaAEConverterOptions(BenchFixtures.options("warm-up-iterations", Integer.toString(warmUpIterations)));
+		warmEngine = new UimaEngineLoader(opts, pearSupportFolder).load();
+	}
+
+	@Setup(Level.Invocation)
+	public void emptyRunFolder() {
+		File run = new File(pearSupportFolder, "run");
+		BenchFixtures.delete(run);
+		run.mkdir();
+	}
+
+	@TearDown(Level.Invocation)
+	public void destroyEngine() {
+		if (engine != null && engine != warmEngine) {
+			engine.destroy();
+		} else if (engine != null) {
+			UimaEngineRegistry.release(engine);
+		}
+		engine = null;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		UimaEngineRegistry.release(warmEngine);
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Benchmark
+	public UimaEngine coldStart() throws Exception {
+		UimaEngineLoader loader = new UimaEngineLoader(opts, pearSupportFolder);
+		File pear = new File(new File(pearSupportFolder, "repo"), BenchFixtures.PEAR_FILENAME);
+		engine = loader.createEngine(loader.installPear(new File(pearSupportFolder, "run"), pear,
+				BenchFixtures.COMPONENT_ID));
+		return engine;
+	}
+
+	@Benchmark
+	public UimaEngine coldStartFirstDocument() throws Exception {
+		coldStart();
+		engine.release(engine.analyse(BenchFixtures.text(200, 1)));
+		return engine;
+	}
+
+	@Benchmark
+	public UimaEngine warmStart() throws Exception {
+		engine = new UimaEngineLoader(opts, pearSupportFolder).load();
+		return engine;
+	}
+}
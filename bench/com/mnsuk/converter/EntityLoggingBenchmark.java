@@ -0,0 +1,87 @@
+package com.mnsuk.converter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracting the entities of a processed CAS with an INFO line per annotation, as the
+ * converter used to, against the summarised per document diagnostics. Run with the
+ * logging configuration of the deployment to see the cost at its log level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntityLoggingBenchmark {
+	private static final Logger LOGGER = LoggerFactory.getLogger(EntityLoggingBenchmark.class);
+
+	@Param({ "1000", "10000" })
+	public int words;
+
+	private UimaEngine engine;
+	private CAS cas;
+	private ExtractionPlan plan;
+	private EntityDiagnostics diagnostics;
+	private EntityBuffer buffer;
+
+	@Setup
+	public void setUp() throws Exception {
+		engine = BenchFixtures.createEngine(1);
+		cas = engine.analyse(BenchFixtures.text(words, 1));
+		UimaAEConverterOptions opts = new UimaAEConverterOptions(BenchFixtures.options());
+		plan = ExtractionPlan.compile(opts.contentTypes, cas.getTypeSystem(), opts.annotationOffsets);
+		diagnostics = new EntityDiagnostics(true, plan);
+		buffer = new EntityBuffer();
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.release(cas);
+		engine.destroy();
+	}
+
+	@Benchmark
+	public int perEntityInfo() {
+		buffer.clear();
+		int entities = 0;
+		for (ExtractionPlan.TypeExtraction extraction : plan.getExtractions()) {
+			FSIterator<AnnotationFS> it = cas.getAnnotationIndex(extraction.getType()).iterator();
+			while (it.hasNext()) {
+				AnnotationFS anno = it.next();
+				extraction.write(anno, buffer);
+				entities++;
+				LOGGER.info("Creating content element from annotation "+anno.getType().getName());
+			}
+		}
+		return entities;
+	}
+
+	@Benchmark
+	public int summarised() {
+		buffer.clear();
+		int[] counts = diagnostics.newCounts();
+		int entities = plan.write(cas, buffer, counts);
+		if (counts != null)
+			diagnostics.log(cas.getDocumentText().length(), counts);
+		return entities;
+	}
+}
@@ -0,0 +1,99 @@
+package com.mnsuk.converter;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.ConstraintFactory;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.FSTypeConstraint;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.cas.text.AnnotationIndex;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+import org.apache.uima.resource.metadata.FsIndexDescription;
+import org.apache.uima.resource.metadata.TypePriorities;
+import org.apache.uima.util.CasCreationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading the annotations of one type through a type constraint filter over the
+ * whole annotation index, copied into a list, with iterating the type's own index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExtractionBenchmark {
+	@Param({ "100000" })
+	public int annotations;
+
+	private CAS cas;
+	private Type person;
+
+	@Setup
+	public void setUp() throws Exception {
+		cas = createCas(annotations);
+		person = cas.getTypeSystem().getType(BenchFixtures.PERSON);
+	}
+
+	/**
+	 * A CAS with the given number of annotations: half tokens, a quarter each of persons
+	 * and locations.
+	 */
+	static CAS createCas(int annotations) throws Exception {
+		CAS cas = CasCreationUtils.createCas(BenchFixtures.typeSystem(), (TypePriorities) null, (FsIndexDescription[]) null);
+		StringBuilder text = new StringBuilder(annotations * 5);
+		for (int i = 0; i < annotations; i++) {
+			text.append("word ");
+		}
+		cas.setDocumentText(text.toString());
+		Type token = cas.getTypeSystem().getType(BenchFixtures.TOKEN);
+		Type person = cas.getTypeSystem().getType(BenchFixtures.PERSON);
+		Type location = cas.getTypeSystem().getType(BenchFixtures.LOCATION);
+		for (int i = 0; i < annotations; i++) {
+			Type type = (i % 4 == 0) ? person : (i % 4 == 1) ? location : token;
+			cas.addFsToIndexes(cas.createAnnotation(type, i * 5, i * 5 + 4));
+		}
+		return cas;
+	}
+
+	@Benchmark
+	public void filteredIterator(Blackhole bh) throws Exception {
+		ArrayList<AnnotationFS> annotations = new ArrayList<AnnotationFS>();
+		JCas jcas = cas.getJCas();
+		AnnotationIndex<Annotation> index = jcas.getJFSIndexRepository().getAnnotationIndex();
+		ConstraintFactory cf = jcas.getConstraintFactory();
+		FSTypeConstraint filter = cf.createTypeConstraint();
+		filter.add(person);
+		FSIterator<Annotation> list = jcas.createFilteredIterator(index.iterator(), filter);
+		while (list.hasNext()) {
+			annotations.add(list.next());
+		}
+		for (AnnotationFS anno : annotations) {
+			bh.consume(anno.getBegin());
+		}
+	}
+
+	@Benchmark
+	public void typeIndex(Blackhole bh) {
+		FSIterator<AnnotationFS> it = cas.getAnnotationIndex(person).iterator();
+		while (it.hasNext()) {
+			bh.consume(it.next().getBegin());
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.mnsuk.converter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vivisimo.parser.input.ConverterInput;
+import com.vivisimo.parser.input.InputFilterFactory;
+import com.vivisimo.parser.input.VXMLInputBuilder;
+
+/**
+ * Getting the filtered contents of every document of a batch, through the DOM input and
+ * the content filter or with the streaming reader. The <code>binary</code> content of each
+ * document is excluded by the content list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InputBenchmark {
+	@Param({ "1", "50" })
+	public int documents;
+
+	@Param({ "1000" })
+	public int words;
+
+	@Param({ "0", "100000" })
+	public int binaryChars;
+
+	private final Set<String> contentList = new HashSet<String>(Collections.singleton("binary"));
+	private byte[] input;
+	private StreamingVxmlReader reader;
+
+	@Setup
+	public void setUp() throws Exception {
+		input = BenchFixtures.vxml(documents, words, binaryChars);
+		reader = new StreamingVxmlReader(contentList, false);
+	}
+
+	@Benchmark
+	public int dom() throws Exception {
+		VXMLInputBuilder inputBuilder = new VXMLInputBuilder(new String(input, StandardCharsets.UTF_8));
+		int chars = 0;
+		for (ConverterInput document : inputBuilder.documents()) {
+			chars += InputFilterFactory.createInputFilter(document, contentList).filterInput(false).length();
+		}
+		return chars;
+	}
+
+	@Benchmark
+	public int streaming() {
+		int count = reader.begin(input);
+		int chars = 0;
+		for (int i = 0; i < count; i++) {
+			chars += reader.filteredContents(i).length();
+		}
+		return chars;
+	}
+}
@@ -0,0 +1,77 @@
+package com.mnsuk.converter;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.uima.cas.CAS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Generating the content elements from an already processed CAS, into a DOM element or
+ * through the streaming writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputBenchmark {
+	@Param({ "1000", "100000" })
+	public int words;
+
+	private UimaEngine engine;
+	private CAS cas;
+	private ExtractionPlan plan;
+	private byte[] input;
+	private StreamingVxmlWriter streamingWriter;
+	private DocumentBuilderFactory dbf;
+
+	@Setup
+	public void setUp() throws Exception {
+		engine = BenchFixtures.createEngine(1);
+		cas = engine.analyse(BenchFixtures.text(words, 1));
+		UimaAEConverterOptions opts = new UimaAEConverterOptions(BenchFixtures.options());
+		plan = ExtractionPlan.compile(opts.contentTypes, cas.getTypeSystem(), opts.annotationOffsets);
+		input = BenchFixtures.vxml(1, 0);
+		streamingWriter = new StreamingVxmlWriter();
+		dbf = DocumentBuilderFactory.newInstance();
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.release(cas);
+		engine.destroy();
+	}
+
+	@Benchmark
+	public Element dom() throws Exception {
+		Document doc = dbf.newDocumentBuilder().newDocument();
+		Element document = doc.createElement("document");
+		doc.appendChild(document);
+		plan.write(cas, new DomEntityWriter(document));
+		return document;
+	}
+
+	@Benchmark
+	public byte[] streaming() {
+		streamingWriter.begin(input);
+		streamingWriter.document(0);
+		plan.write(cas, streamingWriter);
+		return streamingWriter.finish();
+	}
+}
@@ -0,0 +1,61 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end <code>convert(byte[])</code> of a batch of many small documents, each analysed
+ * in its own CAS against packed into shared CASes, in documents per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackBenchmark {
+	private static final int DOCUMENTS = 500;
+
+	@Param({ "10", "50" })
+	public int words;
+
+	@Param({ "0", "4096" })
+	public int packSize;
+
+	private File pearSupportFolder;
+	private UimaAE converter;
+	private byte[] input;
+
+	@Setup
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		converter = new UimaAE(BenchFixtures.options("pack-size", Integer.toString(packSize)), pearSupportFolder);
+		input = BenchFixtures.vxml(DOCUMENTS, words);
+	}
+
+	@TearDown
+	public void tearDown() {
+		converter.terminate();
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCUMENTS)
+	public byte[] convert() throws Exception {
+		return converter.convert(input);
+	}
+}
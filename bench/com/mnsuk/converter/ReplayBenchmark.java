@@ -0,0 +1,65 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end <code>convert(byte[])</code> of a batch analysed and stored in the CAS store,
+ * against the same batch written from the stored CASes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReplayBenchmark {
+	@Param({ "50" })
+	public int documents;
+
+	@Param({ "1000", "10000" })
+	public int words;
+
+	@Param({ "false", "true" })
+	public boolean replay;
+
+	private File pearSupportFolder;
+	private UimaAE converter;
+	private byte[] input;
+
+	@Setup
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		BenchConverterOptions options = BenchFixtures.options("cas-store-path", "cas");
+		if (replay)
+			options.add("enable-cas-replay", "enable-cas-replay");
+		converter = new UimaAE(options, pearSupportFolder);
+		input = BenchFixtures.vxml(documents, words);
+		// store the CASes before they are replayed
+		converter.convert(input);
+	}
+
+	@TearDown
+	public void tearDown() {
+		converter.terminate();
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Benchmark
+	public byte[] convert() throws Exception {
+		return converter.convert(input);
+	}
+}
@@ -0,0 +1,48 @@
+package com.mnsuk.converter;
+
+import org.apache.uima.analysis_component.CasAnnotator_ImplBase;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+
+/**
+ * A small annotator for benchmarks: every whitespace separated word is a token, and every
+ * capitalised word is also a person.
+ */
+public class StubAnnotator extends CasAnnotator_ImplBase {
+	private Type token;
+	private Type person;
+	private Feature gender;
+
+	@Override
+	public void typeSystemInit(TypeSystem typeSystem) throws AnalysisEngineProcessException {
+		token = typeSystem.getType(BenchFixtures.TOKEN);
+		person = typeSystem.getType(BenchFixtures.PERSON);
+		gender = person.getFeatureByBaseName("gender");
+	}
+
+	@Override
+	public void process(CAS cas) throws AnalysisEngineProcessException {
+		String text = cas.getDocumentText();
+		int n = text.length();
+		int i = 0;
+		while (i < n) {
+			while (i < n && Character.isWhitespace(text.charAt(i)))
+				i++;
+			int begin = i;
+			while (i < n && !Character.isWhitespace(text.charAt(i)))
+				i++;
+			if (i > begin) {
+				cas.addFsToIndexes(cas.createAnnotation(token, begin, i));
+				if (Character.isUpperCase(text.charAt(begin))) {
+					AnnotationFS p = cas.createAnnotation(person, begin, i);
+					p.setStringValue(gender, (begin & 1) == 0 ? "f" : "m");
+					cas.addFsToIndexes(p);
+				}
+			}
+		}
+	}
+}
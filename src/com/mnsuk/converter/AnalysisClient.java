@@ -0,0 +1,340 @@
+package com.mnsuk.converter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A converter's connection to an {@link AnalysisDaemon}.
+ * <p>
+ * Documents are sent as soon as they are submitted, without waiting for earlier results,
+ * and their results are read back by a reader thread in whatever order the daemon finishes
+ * them. At most a set number of documents are outstanding; submitting more waits for a
+ * result. When the daemon cannot be reached, or a connection fails, no documents are sent
+ * for a few seconds so the converter can analyse them itself.
+ */
+public class AnalysisClient implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AnalysisClient.class);
+
+	private static final int CONNECT_TIMEOUT_MS = 2000;
+	// how long to wait before connecting again after the daemon could not be reached
+	private static final long RETRY_DELAY_MS = 5000;
+
+	private final int port;
+	private final List<String> configuration;
+	private final Semaphore inFlight;
+	private final long timeoutMs;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private Connection connection = null;
+	private long retryAt = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * A document sent to the daemon.
+	 */
+	public static final class Request {
+		private final int id;
+		private final Connection connection;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile int outcome;
+		private volatile byte[] result;
+		private volatile String failure = null;
+		private volatile boolean analysisFailed = false;
+
+		private Request(int id, Connection connection) {
+			this.id = id;
+			this.connection = connection;
+		}
+
+		private void complete(int outcome, byte[] result) {
+			this.outcome = outcome;
+			this.result = result;
+			done.countDown();
+		}
+
+		private void fail(String failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+	}
+
+	/**
+	 * @param port The daemon's loopback port
+	 * @param configuration The converter's analysis option names and values, in pairs
+	 * @param maxInFlight The most documents outstanding at once
+	 * @param timeoutSeconds How long to wait for a document's result
+	 */
+	public AnalysisClient(int port, List<String> configuration, int maxInFlight, int timeoutSeconds) {
+		this.port = port;
+		this.configuration = configuration;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.timeoutMs = timeoutSeconds * 1000L;
+	}
+
+	/**
+	 * Send a document to be analysed.
+	 *
+	 * @return The request, or null if the daemon cannot be reached or did not take the
+	 *         document in time
+	 */
+	public Request submit(String text) {
+		Connection c = connect();
+		if (c == null)
+			return null;
+		try {
+			// the documents holding the slots time out on their own
+			if (!inFlight.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS))
+				return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		Request request = new Request(nextId.incrementAndGet(), c);
+		c.pending.put(Integer.valueOf(request.id), request);
+		if (c.failed && c.pending.remove(Integer.valueOf(request.id)) != null) {
+			// the connection failed before the request was recorded
+			inFlight.release();
+			return null;
+		}
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		try {
+			synchronized (c.out) {
+				c.out.writeInt(1 + 4 + bytes.length);
+				c.out.writeByte(AnalysisDaemon.ANALYSE);
+				c.out.writeInt(request.id);
+				c.out.write(bytes);
+				c.out.flush();
+			}
+		} catch (IOException e) {
+			c.fail("Cannot send a document to the analysis daemon: " + e.getMessage());
+			return null;
+		}
+		return request;
+	}
+
+	/**
+	 * Wait for a document's result. A document whose result does not come in time is given
+	 * up on, but the connection is kept for the other documents sent on it.
+	 *
+	 * @return The outcome of analysing the document
+	 * @throws IOException if the daemon failed to analyse the document, the connection failed
+	 *         or the result did not come in time
+	 */
+	public int await(Request request) throws IOException {
+		try {
+			if (!request.done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+				request.connection.timeOut(request, "No result from the analysis daemon in " + timeoutMs + " ms");
+				request.done.await(); // at once, unless the result is being recorded
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the analysis daemon");
+		}
+		if (request.failure != null)
+			throw new IOException(request.failure);
+		return request.outcome;
+	}
+
+	/**
+	 * @return The entities of a document whose result has been awaited
+	 */
+	public EntityBuffer getEntities(Request request) {
+		return EntityBuffer.decode(ByteBuffer.wrap(request.result));
+	}
+
+	/**
+	 * @return Whether a document failed because the daemon could not analyse it, rather than
+	 *         because the daemon could not be used
+	 */
+	public boolean analysisFailed(Request request) {
+		return request.analysisFailed;
+	}
+
+	/**
+	 * Stop using the daemon, failing any outstanding documents.
+	 */
+	@Override
+	public void close() {
+		Connection c;
+		synchronized (this) {
+			closed = true;
+			c = connection;
+		}
+		if (c != null)
+			c.fail("Analysis daemon client closed");
+	}
+
+	/**
+	 * @return The open connection, connecting if there is none and the daemon has not failed
+	 *         recently, or null
+	 */
+	private synchronized Connection connect() {
+		if (connection != null || closed)
+			return connection;
+		long now = System.currentTimeMillis();
+		if (now < retryAt)
+			return null;
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS);
+			socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMs));
+			final Connection c = new Connection(socket);
+			c.configure();
+			socket.setSoTimeout(0);
+			connection = c;
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					c.read();
+				}
+			}, "uimaae-daemon-client");
+			reader.setDaemon(true);
+			reader.start();
+			LOGGER.info("Connected to the analysis daemon on port " + port);
+			return c;
+		} catch (IOException e) {
+			LOGGER.warn("Cannot use the analysis daemon on port " + port + ", analysing documents in the converter: "
+					+ e.getMessage());
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				LOGGER.debug("Error closing socket", e1);
+			}
+			retryAt = now + RETRY_DELAY_MS;
+			return null;
+		}
+	}
+
+	/**
+	 * Forget a failed connection and wait before connecting again.
+	 */
+	private synchronized void disconnected(Connection c) {
+		if (connection == c) {
+			connection = null;
+			retryAt = System.currentTimeMillis() + RETRY_DELAY_MS;
+		}
+	}
+
+	/**
+	 * An open connection and the documents sent on it that have no result yet.
+	 */
+	private final class Connection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private final Map<Integer, Request> pending = new ConcurrentHashMap<Integer, Request>();
+		private volatile boolean failed = false;
+
+		private Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		}
+
+		/**
+		 * Send the converter's analysis options and wait for the daemon to accept them.
+		 */
+		private void configure() throws IOException {
+			int length = 1 + 4;
+			for (String s : configuration) {
+				length += 2 + AnalysisDaemon.utfLength(s);
+			}
+			out.writeInt(length);
+			out.writeByte(AnalysisDaemon.CONFIGURE);
+			out.writeInt(configuration.size() / 2);
+			for (String s : configuration) {
+				out.writeUTF(s);
+			}
+			out.flush();
+			in.readInt();
+			if (in.readByte() != AnalysisDaemon.CONFIGURED)
+				throw new IOException("Unexpected reply from the analysis daemon");
+			boolean ok = in.readBoolean();
+			String message = in.readUTF();
+			if (!ok)
+				throw new IOException("The analysis daemon rejected the configuration: " + message);
+		}
+
+		/**
+		 * Read results until the connection closes.
+		 */
+		private void read() {
+			try {
+				while (!failed) {
+					int length = in.readInt();
+					if (length < 6 || in.readByte() != AnalysisDaemon.RESULT)
+						throw new IOException("Invalid result from the analysis daemon");
+					int id = in.readInt();
+					byte outcome = in.readByte();
+					byte[] result = new byte[length - 6];
+					in.readFully(result);
+					Request request = pending.remove(Integer.valueOf(id));
+					if (request == null)
+						continue;
+					inFlight.release();
+					request.analysisFailed = outcome == AnalysisDaemon.FAILED;
+					if (request.analysisFailed)
+						request.fail("The analysis daemon failed to analyse the document: "
+								+ new String(result, StandardCharsets.UTF_8));
+					else
+						request.complete(outcome, result);
+				}
+			} catch (IOException e) {
+				fail("Connection to the analysis daemon failed: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Give up on one document, so a result that comes later is ignored.
+		 */
+		private void timeOut(Request request, String message) {
+			if (pending.remove(Integer.valueOf(request.id)) != null) {
+				inFlight.release();
+				LOGGER.warn(message);
+				request.fail(message);
+			}
+		}
+
+		/**
+		 * Close the connection and fail every document sent on it.
+		 */
+		private void fail(String message) {
+			if (!failed) {
+				failed = true;
+				if (!closed)
+					LOGGER.warn(message);
+			}
+			disconnected(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				LOGGER.debug("Error closing socket", e);
+			}
+			for (Request request : pending.values()) {
+				if (pending.remove(Integer.valueOf(request.id)) != null) {
+					inFlight.release();
+					request.fail(message);
+				}
+			}
+		}
+	}
+}
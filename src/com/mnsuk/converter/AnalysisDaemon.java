@@ -0,0 +1,555 @@
+package com.mnsuk.converter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.ConverterOptions;
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * A local analysis daemon that hosts the analysis engines for converters in other
+ * processes, so each process does not load its own copy of the models.
+ * <p>
+ * The daemon listens on a loopback port. A converter connects, sends the options that
+ * decide what is extracted (pear, types, offsets, languages, segments), then sends the
+ * filtered text of documents without waiting for results. Each document is analysed on
+ * the daemon's analysis threads and its entities sent back, tagged with the request
+ * number, as soon as they are ready. Connections with the same options share one set of
+ * engines, and engines for the same pear are shared between sets through the engine
+ * registry. Resource options, such as the CAS pool size, analysis threads and result
+ * cache, are the daemon's own.
+ * <p>
+ * When every analysis thread is busy and the queue is full, the connection's reader thread
+ * analyses the document itself and stops reading, so senders are held back by the socket.
+ * A document longer than the daemon's maximum document size, or than 256 MB of UTF-8 if it
+ * has none, is skipped without being read into memory and sent back not analysed. Pears
+ * are only loaded from the pear repository.
+ * <p>
+ * Run it with
+ * <pre>
+ * java com.mnsuk.converter.AnalysisDaemon &lt;pear support folder&gt; &lt;port&gt; [option=value ...]
+ * </pre>
+ */
+public class AnalysisDaemon implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AnalysisDaemon.class);
+
+	// frame types, each frame is an int length, the type and its payload
+	static final byte CONFIGURE = 1;
+	static final byte CONFIGURED = 2;
+	static final byte ANALYSE = 3;
+	static final byte RESULT = 4;
+	// result outcome for a document the daemon failed to analyse
+	static final byte FAILED = -1;
+
+	private static final int QUEUE_PER_THREAD = 4;
+	// largest document text accepted, in UTF-8 bytes, when no maximum document size is set
+	private static final int DEFAULT_MAX_TEXT_BYTES = 256 * 1024 * 1024;
+	// bytes of an analyse frame before the text: the type and request number
+	private static final int ANALYSE_HEADER = 1 + 4;
+	// converter options that decide what is extracted, taken from the converter
+	private static final Set<String> FORWARDED_OPTIONS = new HashSet<String>(UimaAEConverterOptions.ANALYSIS_OPTIONS);
+
+	private final File pearSupportFolder;
+	private final ArgumentOptions options;
+	private final int port;
+	private final int maxDocumentSize;
+	private final int maxFrameLength;
+	private final ThreadPoolExecutor workers;
+	private final Map<List<String>, Session> sessions = new HashMap<List<String>, Session>();
+	private final Set<Connection> connections = Collections.synchronizedSet(new HashSet<Connection>());
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private ServerSocket serverSocket = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * Converters configured the same way, sharing one converter instance to analyse their
+	 * documents.
+	 */
+	private static final class Session {
+		private final UimaAE converter;
+		private int refCount = 0;
+
+		private Session(UimaAE converter) {
+			this.converter = converter;
+		}
+	}
+
+	/**
+	 * @param pearSupportFolder Folder containing the <code>repo</code> and <code>run</code> folders
+	 * @param options The daemon's converter options, used for everything a converter does
+	 *        not send
+	 * @param port Loopback port to listen on, 0 for any free port
+	 */
+	public AnalysisDaemon(File pearSupportFolder, ConverterOptions options, int port) {
+		this.pearSupportFolder = pearSupportFolder;
+		this.options = new ArgumentOptions(options);
+		this.options.remove(UimaAEConverterOptions.OPTION_ANALYSIS_DAEMON_PORT);
+		this.port = port;
+		UimaAEConverterOptions opts = new UimaAEConverterOptions(this.options);
+		int threads = opts.analysisThreads;
+		// a character takes at most 3 bytes in UTF-8
+		this.maxDocumentSize = opts.maxDocumentSize;
+		long maxTextBytes = maxDocumentSize > 0 ? 3L * maxDocumentSize : DEFAULT_MAX_TEXT_BYTES;
+		this.maxFrameLength = (int) Math.min(Integer.MAX_VALUE, ANALYSE_HEADER + maxTextBytes);
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), threadFactory("uimaae-daemon-analysis"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Start listening for converters.
+	 *
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "uimaae-daemon-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOGGER.info("Analysis daemon listening on " + serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * @return The port the daemon is listening on
+	 */
+	public synchronized int getPort() {
+		return serverSocket == null ? port : serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stop listening, close every connection and release the engines.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			closeQuietly(serverSocket);
+		}
+		List<Connection> open;
+		synchronized (connections) {
+			open = new ArrayList<Connection>(connections);
+		}
+		for (Connection connection : open) {
+			closeQuietly(connection.socket);
+		}
+		workers.shutdownNow();
+		synchronized (sessions) {
+			for (Session session : sessions.values()) {
+				session.converter.terminate();
+			}
+			sessions.clear();
+		}
+		LOGGER.info("Analysis daemon stopped");
+	}
+
+	private void accept() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!closed)
+					LOGGER.error("Analysis daemon stopped accepting connections: " + e.getMessage());
+				return;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				final Connection connection = new Connection(socket);
+				connections.add(connection);
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						connection.serve();
+					}
+				}, "uimaae-daemon-connection-" + connectionCount.incrementAndGet());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				LOGGER.warn("Cannot open analysis daemon connection: " + e.getMessage());
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	/**
+	 * Get the session for a converter configuration, creating its converter on first use.
+	 *
+	 * @param forwarded Option names and values sent by the converter, in pairs
+	 */
+	private Session acquireSession(List<String> forwarded) throws FatalConverterException {
+		synchronized (sessions) {
+			Session session = sessions.get(forwarded);
+			if (session == null) {
+				checkPearNames(forwarded);
+				ArgumentOptions sessionOptions = new ArgumentOptions(options);
+				for (String name : FORWARDED_OPTIONS) {
+					sessionOptions.remove(name);
+				}
+				for (int i = 0; i + 1 < forwarded.size(); i += 2) {
+					if (FORWARDED_OPTIONS.contains(forwarded.get(i)))
+						sessionOptions.add(forwarded.get(i), forwarded.get(i + 1));
+				}
+				session = new Session(new UimaAE(sessionOptions, pearSupportFolder));
+				sessions.put(forwarded, session);
+			}
+			session.refCount++;
+			return session;
+		}
+	}
+
+	/**
+	 * Check that the pears a converter asks for are files in the pear repository, so a
+	 * converter cannot load a pear from anywhere else.
+	 *
+	 * @throws FatalConverterException if a pear name is a path
+	 */
+	static void checkPearNames(List<String> forwarded) throws FatalConverterException {
+		for (int i = 0; i + 1 < forwarded.size(); i += 2) {
+			String name = forwarded.get(i);
+			String value = forwarded.get(i + 1);
+			if (UimaAEConverterOptions.OPTION_PEAR_FILENAME.equals(name)) {
+				checkPearName(value);
+			} else if (UimaAEConverterOptions.OPTION_LANGUAGES.equals(name)) {
+				for (String language : value.split("[\\r\\n,]+")) {
+					int eq = language.indexOf('=');
+					if (eq >= 0)
+						checkPearName(language.substring(eq + 1).trim());
+				}
+			}
+		}
+	}
+
+	private static void checkPearName(String pearName) throws FatalConverterException {
+		if (pearName.indexOf('/') >= 0 || pearName.indexOf('\\') >= 0 || pearName.indexOf(File.separatorChar) >= 0
+				|| pearName.contains(".."))
+			throw new FatalConverterException("Pear file name must name a file in the pear repository: " + pearName);
+	}
+
+	private void releaseSession(List<String> forwarded) {
+		synchronized (sessions) {
+			Session session = sessions.get(forwarded);
+			if (session != null && --session.refCount == 0) {
+				sessions.remove(forwarded);
+				session.converter.terminate();
+			}
+		}
+	}
+
+	/**
+	 * One converter's connection. Requests are read on the connection's thread and
+	 * analysed on the daemon's analysis threads, which write the results back.
+	 */
+	private final class Connection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private List<String> forwarded = null;
+		private Session session = null;
+
+		private Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		}
+
+		private void serve() {
+			try {
+				while (!closed) {
+					int length;
+					try {
+						length = in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					if (length < 1)
+						throw new IOException("Invalid frame length " + length);
+					byte type = in.readByte();
+					if (type == CONFIGURE) {
+						if (length > maxFrameLength)
+							throw new IOException("Invalid frame length " + length);
+						configure(length);
+					} else if (type == ANALYSE && session != null) {
+						if (length < ANALYSE_HEADER)
+							throw new IOException("Invalid frame length " + length);
+						int id = in.readInt();
+						if (length > maxFrameLength) {
+							skipText(id, length - ANALYSE_HEADER);
+							continue;
+						}
+						byte[] text = new byte[length - ANALYSE_HEADER];
+						in.readFully(text);
+						workers.execute(new Request(session.converter, id, text));
+					} else if (length > maxFrameLength) {
+						throw new IOException("Invalid frame length " + length);
+					} else {
+						throw new IOException("Unexpected frame type " + type);
+					}
+				}
+			} catch (SocketException e) {
+				if (!closed)
+					LOGGER.debug("Analysis daemon connection closed: " + e.getMessage());
+			} catch (IOException e) {
+				LOGGER.warn("Analysis daemon connection failed: " + e.getMessage());
+			} catch (RuntimeException e) {
+				LOGGER.warn("Analysis daemon connection failed: " + e.toString());
+			} finally {
+				closeQuietly(socket);
+				connections.remove(this);
+				if (session != null)
+					releaseSession(forwarded);
+			}
+		}
+
+		/**
+		 * Skip the text of a document too large to analyse, without reading it into memory,
+		 * and send it back not analysed.
+		 */
+		private void skipText(int id, int bytes) throws IOException {
+			LOGGER.warn("Not analysing a document of " + bytes + " bytes, more than the " + maxFrameLength
+					+ " byte limit");
+			for (int skipped = 0; skipped < bytes;) {
+				int n = in.skipBytes(bytes - skipped);
+				if (n <= 0)
+					throw new EOFException("Connection closed in a document");
+				skipped += n;
+			}
+			sendResult(id, (byte) UimaAE.NOT_ANALYSED, new EntityBuffer().encode());
+		}
+
+		private void sendResult(int id, byte outcome, byte[] result) throws IOException {
+			synchronized (out) {
+				out.writeInt(1 + 4 + 1 + result.length);
+				out.writeByte(RESULT);
+				out.writeInt(id);
+				out.writeByte(outcome);
+				out.write(result);
+				out.flush();
+			}
+		}
+
+		/**
+		 * Read a converter's options from a configure frame, no more than the frame holds, and
+		 * set up the analysis for them.
+		 */
+		private void configure(int length) throws IOException {
+			byte[] frame = new byte[length - 1];
+			in.readFully(frame);
+			DataInputStream options = new DataInputStream(new ByteArrayInputStream(frame));
+			int count = options.readInt();
+			// each option is at least two empty strings
+			if (count < 0 || count > (length - 5) / 4)
+				throw new IOException("Invalid option count " + count);
+			List<String> received = new ArrayList<String>(count * 2);
+			try {
+				for (int i = 0; i < count * 2; i++) {
+					received.add(options.readUTF());
+				}
+			} catch (EOFException e) {
+				throw new IOException("Configure frame of " + length + " bytes is too short for " + count + " options");
+			}
+			String error = null;
+			if (session == null) {
+				try {
+					session = acquireSession(received);
+					forwarded = received;
+				} catch (RuntimeException e) {
+					error = e.getMessage() == null ? e.toString() : e.getMessage();
+					LOGGER.error("Cannot configure analysis for a converter: " + error);
+				}
+			} else {
+				error = "Connection is already configured";
+			}
+			synchronized (out) {
+				out.writeInt(2 + utfLength(error == null ? "" : error) + 2);
+				out.writeByte(CONFIGURED);
+				out.writeBoolean(error == null);
+				out.writeUTF(error == null ? "" : error);
+				out.flush();
+			}
+		}
+
+		/**
+		 * Analyse one document and send its outcome and entities back.
+		 */
+		private final class Request implements Runnable {
+			private final UimaAE converter;
+			private final int id;
+			private final byte[] text;
+
+			private Request(UimaAE converter, int id, byte[] text) {
+				this.converter = converter;
+				this.id = id;
+				this.text = text;
+			}
+
+			@Override
+			public void run() {
+				byte outcome;
+				byte[] result;
+				try {
+					EntityBuffer entities = new EntityBuffer();
+					String filteredContents = new String(text, StandardCharsets.UTF_8);
+					if (maxDocumentSize > 0 && filteredContents.length() > maxDocumentSize)
+						outcome = UimaAE.NOT_ANALYSED;
+					else
+						outcome = (byte) converter.analyse(null, filteredContents, entities);
+					result = entities.encode();
+				} catch (Exception e) {
+					LOGGER.warn("Analysis daemon failed to analyse a document: " + e.toString());
+					outcome = FAILED;
+					result = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+				}
+				try {
+					sendResult(id, outcome, result);
+				} catch (IOException e) {
+					LOGGER.debug("Cannot send analysis result: " + e.getMessage());
+					closeQuietly(socket);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bytes taken by a string written with {@link DataOutputStream#writeUTF(String)}, less
+	 * its 2 byte length.
+	 */
+	static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += c >= 1 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+		return length;
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				LOGGER.debug("Error closing socket", e);
+			}
+		}
+	}
+
+	/**
+	 * Converter options from name=value arguments, or copied from other options.
+	 */
+	static final class ArgumentOptions implements ConverterOptions {
+		private final Map<String, List<String>> values = new HashMap<String, List<String>>();
+
+		ArgumentOptions() {
+		}
+
+		ArgumentOptions(ConverterOptions options) {
+			if (options instanceof ArgumentOptions) {
+				for (Map.Entry<String, List<String>> entry : ((ArgumentOptions) options).values.entrySet()) {
+					values.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+				}
+			} else {
+				for (String name : UimaAEConverterOptions.ALL_OPTIONS) {
+					for (String value : options.getOptionValues(name)) {
+						add(name, value);
+					}
+				}
+			}
+		}
+
+		void add(String name, String value) {
+			List<String> list = values.get(name);
+			if (list == null) {
+				list = new ArrayList<String>();
+				values.put(name, list);
+			}
+			list.add(value);
+		}
+
+		void remove(String name) {
+			values.remove(name);
+		}
+
+		@Override
+		public String getLastOptionValue(String name) {
+			List<String> list = values.get(name);
+			return list == null || list.isEmpty() ? null : list.get(list.size() - 1);
+		}
+
+		@Override
+		public List<String> getOptionValues(String name) {
+			List<String> list = values.get(name);
+			return list == null ? Collections.<String>emptyList() : list;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java " + AnalysisDaemon.class.getName()
+					+ " <pear support folder> <port> [option=value ...]");
+			System.exit(2);
+		}
+		ArgumentOptions options = new ArgumentOptions();
+		for (int i = 2; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Options must be given as name=value: " + args[i]);
+				System.exit(2);
+			}
+			options.add(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		final AnalysisDaemon daemon = new AnalysisDaemon(new File(args[0]), options, Integer.parseInt(args[1]));
+		daemon.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				daemon.close();
+			}
+		}, "uimaae-daemon-shutdown"));
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,28 @@
+package com.mnsuk.converter;
+
+/**
+ * The analysis engine failed on a document, or did not finish it in time. The document's CAS
+ * has been discarded and no entities can be taken from it.
+ */
+public class AnalysisFailedException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final boolean timedOut;
+
+	public AnalysisFailedException(String message, boolean timedOut) {
+		super(message);
+		this.timedOut = timedOut;
+	}
+
+	public AnalysisFailedException(String message, Throwable cause) {
+		super(message, cause);
+		this.timedOut = false;
+	}
+
+	/**
+	 * @return true if the engine did not finish the document in time, rather than failing
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+}
@@ -0,0 +1,327 @@
+package com.mnsuk.converter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar store of the CASes of analysed documents, so their entities can be written again,
+ * for example for a changed type list, without running the annotators.
+ * <p>
+ * Each document's CAS is kept in a file named from a hash of the document's URL, in UIMA's
+ * compressed binary form with only the stored types: the configured types, any extra types,
+ * their supertypes and the types their features refer to. The file also holds a hash of the
+ * document's filtered text, so a document whose text has changed is not replayed, and the
+ * names of the stored types and their features, so the CAS can be read back with the same
+ * filtered type system. A CAS is only read back if it holds every type the current
+ * configuration stores, so a document is analysed again rather than written without the
+ * entities of a type added since it was stored.
+ */
+public class CasStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CasStore.class);
+
+	private static final int MAGIC = 0x55414553; // "UAES"
+	private static final int FORMAT = 2;
+	private static final String SUFFIX = ".cas";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final File directory;
+	private final List<String> extraTypes;
+	// the names of the stored types for each extraction plan
+	private final Map<ExtractionPlan, List<String>> storedTypes = new WeakHashMap<ExtractionPlan, List<String>>();
+	// the filtered type systems built from each engine type system, by stored type names
+	private final Map<TypeSystem, Map<List<String>, TypeSystem>> filters =
+			new WeakHashMap<TypeSystem, Map<List<String>, TypeSystem>>();
+
+	/**
+	 * @param directory Folder holding the stored CASes, created if it does not exist
+	 * @param extraTypes Names of types to store as well as the configured types
+	 */
+	public CasStore(File directory, List<String> extraTypes) {
+		this.directory = directory;
+		this.extraTypes = extraTypes;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			LOGGER.warn("Cannot create CAS store folder " + directory);
+	}
+
+	/**
+	 * Write a document's analysed CAS to the store, replacing any CAS stored for the
+	 * document before.
+	 *
+	 * @param plan The extraction plan for the CAS's type system, naming the configured types
+	 * @return false if the CAS could not be written
+	 */
+	public boolean put(String url, String text, CAS cas, ExtractionPlan plan) {
+		File file = file(url);
+		File temp = null;
+		try {
+			List<String> typeNames = storedTypes(plan);
+			TypeSystem filter = filter(cas.getTypeSystem(), typeNames);
+			File parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs())
+				throw new IOException("Cannot create folder " + parent);
+			temp = File.createTempFile("cas", ".tmp", parent);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.write(textHash(text));
+				out.writeInt(typeNames.size());
+				for (String name : typeNames) {
+					out.writeUTF(name);
+					List<Feature> features = declaredFeatures(cas.getTypeSystem().getType(name));
+					out.writeInt(features.size());
+					for (Feature feature : features) {
+						out.writeUTF(feature.getShortName());
+					}
+				}
+				Serialization.serializeWithCompression(cas, out, filter);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Cannot store the CAS of " + url + ": " + e.getMessage());
+		} catch (ResourceInitializationException e) {
+			LOGGER.warn("Cannot store the CAS of " + url + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			LOGGER.warn("Cannot store the CAS of " + url + ": " + e.toString());
+		}
+		if (temp != null && temp.exists() && !temp.delete())
+			LOGGER.debug("Cannot delete " + temp);
+		return false;
+	}
+
+	/**
+	 * Read the CAS stored for a document into an empty CAS of the engine's type system.
+	 *
+	 * @param plan The extraction plan for the CAS's type system, naming the configured types
+	 * @return false if no CAS is stored for the document, the document's text has changed
+	 *         since, the stored CAS does not hold all the types stored for the plan, or it
+	 *         cannot be read into this type system
+	 */
+	public boolean load(String url, String text, CAS cas, ExtractionPlan plan) {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(url)), 64 * 1024));
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+				return false;
+			byte[] hash = new byte[32];
+			in.readFully(hash);
+			if (!Arrays.equals(hash, textHash(text)))
+				return false;
+			TypeSystem typeSystem = cas.getTypeSystem();
+			int count = in.readInt();
+			List<String> typeNames = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				int features = in.readInt();
+				List<String> featureNames = new ArrayList<String>(features);
+				for (int j = 0; j < features; j++) {
+					featureNames.add(in.readUTF());
+				}
+				Type type = typeSystem.getType(name);
+				// a type changed since the CAS was stored cannot be read back
+				if (type == null || !featureNames.equals(shortNames(declaredFeatures(type))))
+					return false;
+				typeNames.add(name);
+			}
+			if (!typeNames.containsAll(storedTypes(plan)))
+				return false;
+			Serialization.deserializeCAS(cas, in, filter(typeSystem, typeNames), null);
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Cannot read the stored CAS of " + url + ": " + e.getMessage());
+		} catch (ResourceInitializationException e) {
+			LOGGER.warn("Cannot read the stored CAS of " + url + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			LOGGER.warn("Cannot read the stored CAS of " + url + ": " + e.toString());
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOGGER.debug("Error closing stored CAS", e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The names of the types stored for a plan: the configured and extra types, their
+	 * supertypes and the types their features refer to, other than UIMA's built in types.
+	 */
+	private List<String> storedTypes(ExtractionPlan plan) {
+		synchronized (storedTypes) {
+			List<String> names = storedTypes.get(plan);
+			if (names != null)
+				return names;
+		}
+		TypeSystem typeSystem = plan.getTypeSystem();
+		Deque<Type> pending = new ArrayDeque<Type>();
+		for (ExtractionPlan.TypeExtraction extraction : plan.getExtractions()) {
+			pending.add(extraction.getType());
+		}
+		for (String name : extraTypes) {
+			Type type = typeSystem.getType(name);
+			if (type == null)
+				LOGGER.warn("Type " + name + " to store is not in the type system");
+			else
+				pending.add(type);
+		}
+		Set<String> names = new LinkedHashSet<String>();
+		while (!pending.isEmpty()) {
+			Type type = pending.poll();
+			if (isBuiltIn(type) || !names.add(type.getName()))
+				continue;
+			pending.add(typeSystem.getParent(type));
+			for (Feature feature : declaredFeatures(type)) {
+				Type range = feature.getRange();
+				if (range.isArray())
+					range = range.getComponentType();
+				if (range != null && !range.isPrimitive())
+					pending.add(range);
+			}
+		}
+		List<String> result = Collections.unmodifiableList(new ArrayList<String>(names));
+		synchronized (storedTypes) {
+			storedTypes.put(plan, result);
+		}
+		return result;
+	}
+
+	/**
+	 * The type system with only the named types, and UIMA's built in types, of an engine's
+	 * type system.
+	 */
+	private TypeSystem filter(TypeSystem typeSystem, List<String> typeNames) throws ResourceInitializationException {
+		synchronized (filters) {
+			Map<List<String>, TypeSystem> byNames = filters.get(typeSystem);
+			if (byNames == null) {
+				byNames = new HashMap<List<String>, TypeSystem>();
+				filters.put(typeSystem, byNames);
+			}
+			TypeSystem filter = byNames.get(typeNames);
+			if (filter == null) {
+				filter = CasCreationUtils.createCas(describe(typeSystem, typeNames), null, null).getTypeSystem();
+				byNames.put(typeNames, filter);
+			}
+			return filter;
+		}
+	}
+
+	private static TypeSystemDescription describe(TypeSystem typeSystem, List<String> typeNames) {
+		TypeSystemDescription description = UIMAFramework.getResourceSpecifierFactory().createTypeSystemDescription();
+		for (String name : typeNames) {
+			Type type = typeSystem.getType(name);
+			if (type == null)
+				throw new IllegalStateException("Stored type " + name + " is not in the type system");
+			TypeDescription typeDescription = description.addType(name, "", typeSystem.getParent(type).getName());
+			for (Feature feature : declaredFeatures(type)) {
+				Type range = feature.getRange();
+				Type component = range.isArray() ? range.getComponentType() : null;
+				if (component != null && !component.isPrimitive() && !CAS.TYPE_NAME_TOP.equals(component.getName()))
+					typeDescription.addFeature(feature.getShortName(), "", CAS.TYPE_NAME_FS_ARRAY, component.getName(), null);
+				else if (range.isPrimitive() && !isBuiltIn(range))
+					// a string subtype, stored as a plain string
+					typeDescription.addFeature(feature.getShortName(), "", typeSystem.getParent(range).getName());
+				else
+					typeDescription.addFeature(feature.getShortName(), "", range.getName());
+			}
+		}
+		return description;
+	}
+
+	private static List<Feature> declaredFeatures(Type type) {
+		List<Feature> declared = new ArrayList<Feature>();
+		for (Feature feature : type.getFeatures()) {
+			if (feature.getDomain().getName().equals(type.getName()))
+				declared.add(feature);
+		}
+		return declared;
+	}
+
+	private static List<String> shortNames(List<Feature> features) {
+		List<String> names = new ArrayList<String>(features.size());
+		for (Feature feature : features) {
+			names.add(feature.getShortName());
+		}
+		return names;
+	}
+
+	private static boolean isBuiltIn(Type type) {
+		return type.getName().startsWith("uima.cas.") || type.getName().startsWith("uima.tcas.");
+	}
+
+	private File file(String url) {
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		String name = hex(digest.digest(url.getBytes(StandardCharsets.UTF_8)));
+		return new File(new File(directory, name.substring(0, 2)), name + SUFFIX);
+	}
+
+	private static byte[] textHash(String text) {
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		return digest.digest(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,128 @@
+package com.mnsuk.converter;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops documents like those the analysis engine recently failed on, or did not finish in
+ * time, from being analysed, so one pathological input cannot keep stalling analysis.
+ * <p>
+ * Documents are matched on two signatures. A document whose exact text failed is not
+ * analysed again for the cool down. Documents are also grouped into size classes, each
+ * twice as long as the last; when enough documents of one class fail in a row the breaker
+ * for that class trips, and documents of that size are not analysed for the cool down.
+ * After that the next document of the class is analysed again, and the breaker trips again
+ * straight away if it fails.
+ */
+public class CircuitBreaker {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	// most failed texts remembered
+	private static final int MAX_FAILED_TEXTS = 1024;
+
+	private final int failures;
+	private final long cooldownNanos;
+	private final ConverterMetrics metrics;
+	// the end of the cool down of each failed text, by signature, oldest first
+	private final LinkedHashMap<Long, Long> failedTexts = new LinkedHashMap<Long, Long>(64, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > MAX_FAILED_TEXTS;
+		}
+	};
+	private final Map<Integer, SizeClass> sizeClasses = new HashMap<Integer, SizeClass>();
+
+	/**
+	 * The failures in a row of the documents of one size class.
+	 */
+	private static final class SizeClass {
+		private int failures = 0;
+		private boolean open = false;
+		private long openUntil;
+	}
+
+	/**
+	 * @param failures Failures in a row of documents of a size class that trip the breaker
+	 * @param cooldownSeconds How long documents matching a failure are not analysed
+	 */
+	public CircuitBreaker(int failures, int cooldownSeconds, ConverterMetrics metrics) {
+		this.failures = failures;
+		this.cooldownNanos = TimeUnit.SECONDS.toNanos(cooldownSeconds);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return false if the document matches a recent failure and should not be analysed
+	 */
+	public synchronized boolean allows(String text) {
+		long now = System.nanoTime();
+		Long signature = Long.valueOf(signature(text));
+		Long until = failedTexts.get(signature);
+		if (until != null) {
+			if (until.longValue() - now > 0) {
+				metrics.recordBreakerSkip();
+				return false;
+			}
+			failedTexts.remove(signature);
+		}
+		SizeClass sizeClass = sizeClasses.get(Integer.valueOf(sizeClass(text)));
+		if (sizeClass != null && sizeClass.open && sizeClass.openUntil - now > 0) {
+			metrics.recordBreakerSkip();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Record that the engine analysed a document.
+	 */
+	public synchronized void recordSuccess(String text) {
+		SizeClass sizeClass = sizeClasses.get(Integer.valueOf(sizeClass(text)));
+		if (sizeClass != null) {
+			sizeClass.failures = 0;
+			sizeClass.open = false;
+		}
+	}
+
+	/**
+	 * Record that the engine failed on a document or did not finish it in time.
+	 */
+	public synchronized void recordFailure(String text) {
+		long now = System.nanoTime();
+		failedTexts.put(Long.valueOf(signature(text)), Long.valueOf(now + cooldownNanos));
+		Integer key = Integer.valueOf(sizeClass(text));
+		SizeClass sizeClass = sizeClasses.get(key);
+		if (sizeClass == null) {
+			sizeClass = new SizeClass();
+			sizeClasses.put(key, sizeClass);
+		}
+		sizeClass.failures++;
+		// a class that has been open trips again on its first failure
+		if (sizeClass.failures >= failures || sizeClass.open) {
+			sizeClass.open = true;
+			sizeClass.openUntil = now + cooldownNanos;
+			metrics.recordBreakerTrip();
+			LOGGER.warn("Not analysing documents of " + (1L << (key.intValue() - 1)) + " to "
+					+ ((1L << key.intValue()) - 1) + " characters for " + TimeUnit.NANOSECONDS.toSeconds(cooldownNanos)
+					+ " s after " + sizeClass.failures + " failures");
+		}
+	}
+
+	private static long signature(String text) {
+		return ((long) text.hashCode() << 32) | (text.length() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return The number of bits in the document's length
+	 */
+	private static int sizeClass(String text) {
+		return 32 - Integer.numberOfLeadingZeros(text.length());
+	}
+}
@@ -0,0 +1,693 @@
+package com.mnsuk.converter;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per stage timings and volumes for the converters running one pear file.
+ * <p>
+ * One instance is shared by all converters in the JVM configured with the same pear file.
+ * It is registered as a JMX MBean named <code>com.mnsuk.converter:type=UimaAE,name=&lt;pear&gt;</code>
+ * and can log a one line summary periodically. Recording uses only preallocated primitive
+ * counters so it can stay on in production.
+ */
+public class ConverterMetrics implements ConverterMetricsMBean {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConverterMetrics.class);
+
+	private static final Map<String, ConverterMetrics> METRICS = new HashMap<String, ConverterMetrics>();
+	private static volatile boolean casHeapAvailable = true;
+
+	final LatencyHistogram parse = new LatencyHistogram();
+	final LatencyHistogram filter = new LatencyHistogram();
+	final LatencyHistogram analyse = new LatencyHistogram();
+	final LatencyHistogram extract = new LatencyHistogram();
+	final LatencyHistogram serialize = new LatencyHistogram();
+	final LatencyHistogram replay = new LatencyHistogram();
+	final LatencyHistogram engineInit = new LatencyHistogram();
+	final LatencyHistogram engineWarmUp = new LatencyHistogram();
+	final LatencyHistogram firstDocument = new LatencyHistogram();
+	final LatencyHistogram engineSwap = new LatencyHistogram();
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicLong analysedDocuments = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong annotations = new AtomicLong();
+	private final AtomicLong casHeapCellsLast = new AtomicLong();
+	private final AtomicLong casHeapCellsMax = new AtomicLong();
+	private final AtomicLong engineSwaps = new AtomicLong();
+	private final AtomicLong engineSwapFailures = new AtomicLong();
+	private final AtomicLong resultCacheHits = new AtomicLong();
+	private final AtomicLong resultCacheMisses = new AtomicLong();
+	private final AtomicLong resultCacheEvictions = new AtomicLong();
+	// documents by identified language
+	private final ConcurrentMap<String, LanguageCounts> languages = new ConcurrentHashMap<String, LanguageCounts>();
+	private final AtomicLong languageSkipped = new AtomicLong();
+	private final AtomicLong languageSkippedChars = new AtomicLong();
+	private final AtomicLong daemonDocuments = new AtomicLong();
+	private final AtomicLong daemonFallbacks = new AtomicLong();
+	private final AtomicLong casStored = new AtomicLong();
+	private final AtomicLong casReplayed = new AtomicLong();
+	private final AtomicLong packs = new AtomicLong();
+	private final AtomicLong packedDocuments = new AtomicLong();
+	private final AtomicLong analysisFailures = new AtomicLong();
+	private final AtomicLong analysisTimeouts = new AtomicLong();
+	private final AtomicLong batchTimeouts = new AtomicLong();
+	private final AtomicLong breakerTrips = new AtomicLong();
+	private final AtomicLong breakerSkips = new AtomicLong();
+	private final AtomicLong admissionWaits = new AtomicLong();
+	private final AtomicLong oversizeDocuments = new AtomicLong();
+	private final AtomicLong truncatedDocuments = new AtomicLong();
+	private volatile MemoryBudget memoryBudget = null;
+	private volatile long startNanos = System.nanoTime();
+
+	private final String name;
+	private ObjectName objectName = null;
+	private ScheduledExecutorService summaryLogger = null;
+	private int refCount = 0;
+
+	private static final class LanguageCounts {
+		private final AtomicLong analysed = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		private final AtomicLong skippedChars = new AtomicLong();
+	}
+
+	private ConverterMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the metrics for a pear file, creating and registering them on first use. Every
+	 * call must be matched by a call to {@link #release()}.
+	 *
+	 * @param name Name of the pear file
+	 * @param logIntervalSeconds How often to log a summary, 0 for never
+	 */
+	public static ConverterMetrics acquire(String name, int logIntervalSeconds) {
+		synchronized (METRICS) {
+			ConverterMetrics metrics = METRICS.get(name);
+			if (metrics == null) {
+				metrics = new ConverterMetrics(name);
+				metrics.register();
+				METRICS.put(name, metrics);
+			}
+			if (logIntervalSeconds > 0 && metrics.summaryLogger == null) {
+				metrics.startSummaryLogger(logIntervalSeconds);
+			}
+			metrics.refCount++;
+			return metrics;
+		}
+	}
+
+	/**
+	 * Stop using the metrics. They are unregistered when the last converter releases them.
+	 */
+	public void release() {
+		synchronized (METRICS) {
+			if (--refCount > 0)
+				return;
+			METRICS.remove(name);
+			if (summaryLogger != null) {
+				summaryLogger.shutdownNow();
+				summaryLogger = null;
+			}
+			unregister();
+		}
+	}
+
+	public void recordBatch(int batchBytes, int batchDocuments) {
+		batches.incrementAndGet();
+		bytes.addAndGet(batchBytes);
+		documents.addAndGet(batchDocuments);
+	}
+
+	public void recordAnalysed(int documentAnnotations) {
+		analysedDocuments.incrementAndGet();
+		annotations.addAndGet(documentAnnotations);
+	}
+
+	/**
+	 * Record a new analysis engine swapped in for a changed pear file.
+	 *
+	 * @param nanos Time taken to install, create and warm up the new engine
+	 */
+	public void recordEngineSwap(long nanos) {
+		engineSwaps.incrementAndGet();
+		engineSwap.record(nanos);
+	}
+
+	public void recordEngineSwapFailure() {
+		engineSwapFailures.incrementAndGet();
+	}
+
+	public void recordResultCacheHit() {
+		resultCacheHits.incrementAndGet();
+	}
+
+	public void recordResultCacheMiss() {
+		resultCacheMisses.incrementAndGet();
+	}
+
+	public void recordResultCacheEvictions(int evicted) {
+		resultCacheEvictions.addAndGet(evicted);
+	}
+
+	/**
+	 * Record a document analysed in an identified language.
+	 */
+	public void recordLanguageAnalysed(String language) {
+		languageCounts(language).analysed.incrementAndGet();
+	}
+
+	/**
+	 * Record a document not analysed because it is in a language that is not configured.
+	 *
+	 * @param chars Length of the document's filtered text
+	 */
+	public void recordLanguageSkipped(String language, int chars) {
+		LanguageCounts counts = languageCounts(language);
+		counts.skipped.incrementAndGet();
+		counts.skippedChars.addAndGet(chars);
+		languageSkipped.incrementAndGet();
+		languageSkippedChars.addAndGet(chars);
+	}
+
+	/**
+	 * Record a document analysed by the analysis daemon.
+	 */
+	public void recordDaemonDocument() {
+		daemonDocuments.incrementAndGet();
+	}
+
+	/**
+	 * Record a document analysed in the converter because the analysis daemon could not
+	 * analyse it.
+	 */
+	public void recordDaemonFallback() {
+		daemonFallbacks.incrementAndGet();
+	}
+
+	/**
+	 * Record a document's CAS written to the CAS store.
+	 */
+	public void recordCasStored() {
+		casStored.incrementAndGet();
+	}
+
+	/**
+	 * Record a document whose entities were written from its stored CAS.
+	 */
+	public void recordCasReplayed() {
+		casReplayed.incrementAndGet();
+	}
+
+	/**
+	 * Record several documents analysed together in one CAS.
+	 */
+	public void recordPack(int documents) {
+		packs.incrementAndGet();
+		packedDocuments.addAndGet(documents);
+	}
+
+	/**
+	 * Record a document output without entities because the engine failed on it.
+	 */
+	public void recordAnalysisFailure() {
+		analysisFailures.incrementAndGet();
+	}
+
+	/**
+	 * Record a document output without entities because the engine did not finish it in time.
+	 */
+	public void recordAnalysisTimeout() {
+		analysisTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * Record a document output without entities because its batch ran out of time, or a
+	 * whole batch output as it came because it had no room in the memory budget in time.
+	 */
+	public void recordBatchTimeout() {
+		batchTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * Record the circuit breaker tripping for a size of document.
+	 */
+	public void recordBreakerTrip() {
+		breakerTrips.incrementAndGet();
+	}
+
+	/**
+	 * Record a document not analysed because it matches a recent failure.
+	 */
+	public void recordBreakerSkip() {
+		breakerSkips.incrementAndGet();
+	}
+
+	/**
+	 * Record a batch or document that waited for room in the memory budget.
+	 */
+	public void recordAdmissionWait() {
+		admissionWaits.incrementAndGet();
+	}
+
+	/**
+	 * Record a document output without entities because it is over the maximum size.
+	 */
+	public void recordOversizeDocument() {
+		oversizeDocuments.incrementAndGet();
+	}
+
+	/**
+	 * Record a document cut to the maximum size before analysis.
+	 */
+	public void recordTruncatedDocument() {
+		truncatedDocuments.incrementAndGet();
+	}
+
+	/**
+	 * Set the memory budget whose reservations are reported.
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	private LanguageCounts languageCounts(String language) {
+		LanguageCounts counts = languages.get(language);
+		if (counts == null) {
+			LanguageCounts created = new LanguageCounts();
+			counts = languages.putIfAbsent(language, created);
+			if (counts == null)
+				counts = created;
+		}
+		return counts;
+	}
+
+	/**
+	 * Record how much of the CAS heap a processed document used, where the CAS
+	 * implementation makes it available.
+	 */
+	public void recordCasHeap(CAS cas) {
+		if (!casHeapAvailable)
+			return;
+		try {
+			Object ll = cas.getLowLevelCAS();
+			if (!(ll instanceof CASImpl))
+				return;
+			long cells = ((CASImpl) ll).getHeap().getCellsUsed();
+			casHeapCellsLast.set(cells);
+			long max = casHeapCellsMax.get();
+			while (cells > max && !casHeapCellsMax.compareAndSet(max, cells)) {
+				max = casHeapCellsMax.get();
+			}
+		} catch (LinkageError e) {
+			casHeapAvailable = false;
+			LOGGER.debug("CAS heap usage is not available from this UIMA version");
+		}
+	}
+
+	@Override
+	public long getBatches() {
+		return batches.get();
+	}
+
+	@Override
+	public long getDocuments() {
+		return documents.get();
+	}
+
+	@Override
+	public long getAnalysedDocuments() {
+		return analysedDocuments.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getAnnotations() {
+		return annotations.get();
+	}
+
+	@Override
+	public double getDocumentsPerSecond() {
+		return perSecond(documents.get());
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return perSecond(bytes.get());
+	}
+
+	@Override
+	public double getAnnotationsPerSecond() {
+		return perSecond(annotations.get());
+	}
+
+	@Override
+	public double getParseMeanMillis() {
+		return parse.getMeanMillis();
+	}
+
+	@Override
+	public double getParseP99Millis() {
+		return parse.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getFilterMeanMillis() {
+		return filter.getMeanMillis();
+	}
+
+	@Override
+	public double getFilterP99Millis() {
+		return filter.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getAnalyseMeanMillis() {
+		return analyse.getMeanMillis();
+	}
+
+	@Override
+	public double getAnalyseP50Millis() {
+		return analyse.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getAnalyseP99Millis() {
+		return analyse.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getAnalyseMaxMillis() {
+		return analyse.getMaxMillis();
+	}
+
+	@Override
+	public double getExtractMeanMillis() {
+		return extract.getMeanMillis();
+	}
+
+	@Override
+	public double getExtractP99Millis() {
+		return extract.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getSerializeMeanMillis() {
+		return serialize.getMeanMillis();
+	}
+
+	@Override
+	public double getSerializeP99Millis() {
+		return serialize.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getEngineInitMillis() {
+		return engineInit.getMaxMillis();
+	}
+
+	@Override
+	public double getEngineWarmUpMillis() {
+		return engineWarmUp.getMaxMillis();
+	}
+
+	@Override
+	public double getFirstDocumentMillis() {
+		return firstDocument.getMaxMillis();
+	}
+
+	@Override
+	public long getEngineSwaps() {
+		return engineSwaps.get();
+	}
+
+	@Override
+	public long getEngineSwapFailures() {
+		return engineSwapFailures.get();
+	}
+
+	@Override
+	public double getEngineSwapMillis() {
+		return engineSwap.getMaxMillis();
+	}
+
+	@Override
+	public long getResultCacheHits() {
+		return resultCacheHits.get();
+	}
+
+	@Override
+	public long getResultCacheMisses() {
+		return resultCacheMisses.get();
+	}
+
+	@Override
+	public long getResultCacheEvictions() {
+		return resultCacheEvictions.get();
+	}
+
+	@Override
+	public double getResultCacheHitRate() {
+		long hits = resultCacheHits.get();
+		long lookups = hits + resultCacheMisses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public long getLanguageSkippedDocuments() {
+		return languageSkipped.get();
+	}
+
+	@Override
+	public long getLanguageSkippedChars() {
+		return languageSkippedChars.get();
+	}
+
+	@Override
+	public String[] getLanguageCounts() {
+		Map<String, LanguageCounts> sorted = new TreeMap<String, LanguageCounts>(languages);
+		String[] lines = new String[sorted.size()];
+		int i = 0;
+		for (Map.Entry<String, LanguageCounts> entry : sorted.entrySet()) {
+			LanguageCounts counts = entry.getValue();
+			lines[i++] = entry.getKey() + ": analysed=" + counts.analysed.get() + " skipped=" + counts.skipped.get()
+					+ " skippedChars=" + counts.skippedChars.get();
+		}
+		return lines;
+	}
+
+	@Override
+	public long getDaemonDocuments() {
+		return daemonDocuments.get();
+	}
+
+	@Override
+	public long getDaemonFallbacks() {
+		return daemonFallbacks.get();
+	}
+
+	@Override
+	public long getCasStored() {
+		return casStored.get();
+	}
+
+	@Override
+	public long getCasReplayed() {
+		return casReplayed.get();
+	}
+
+	@Override
+	public long getPacks() {
+		return packs.get();
+	}
+
+	@Override
+	public long getPackedDocuments() {
+		return packedDocuments.get();
+	}
+
+	@Override
+	public long getAnalysisFailures() {
+		return analysisFailures.get();
+	}
+
+	@Override
+	public long getAnalysisTimeouts() {
+		return analysisTimeouts.get();
+	}
+
+	@Override
+	public long getBatchTimeouts() {
+		return batchTimeouts.get();
+	}
+
+	@Override
+	public long getBreakerTrips() {
+		return breakerTrips.get();
+	}
+
+	@Override
+	public long getBreakerSkips() {
+		return breakerSkips.get();
+	}
+
+	@Override
+	public long getAdmissionWaits() {
+		return admissionWaits.get();
+	}
+
+	@Override
+	public long getOversizeDocuments() {
+		return oversizeDocuments.get();
+	}
+
+	@Override
+	public long getTruncatedDocuments() {
+		return truncatedDocuments.get();
+	}
+
+	@Override
+	public long getMemoryReserved() {
+		MemoryBudget budget = memoryBudget;
+		return budget == null ? 0 : budget.getReserved();
+	}
+
+	@Override
+	public long getMemoryReservedMax() {
+		MemoryBudget budget = memoryBudget;
+		return budget == null ? 0 : budget.getMaxReserved();
+	}
+
+	@Override
+	public long getCasHeapCellsLast() {
+		return casHeapCellsLast.get();
+	}
+
+	@Override
+	public long getCasHeapCellsMax() {
+		return casHeapCellsMax.get();
+	}
+
+	@Override
+	public String getSummary() {
+		return String.format("%s: batches=%d docs=%d analysed=%d bytes=%d annotations=%d docs/s=%.1f bytes/s=%.0f annotations/s=%.1f"
+				+ " casHeapMax=%d engineInit=%.0fms warmUp=%.0fms firstDoc=%.1fms engineSwaps=%d/%d failed cacheHitRate=%.3f cacheEvictions=%d"
+				+ " languageSkipped=%d/%dchars daemonDocs=%d daemonFallbacks=%d casStored=%d casReplayed=%d"
+				+ " packs=%d packedDocs=%d failures=%d timeouts=%d batchTimeouts=%d breakerTrips=%d breakerSkips=%d"
+				+ " memoryReserved=%d/%dmax admissionWaits=%d oversizeDocs=%d truncatedDocs=%d | parse %s | filter %s | analyse %s | extract %s | serialize %s | replay %s",
+				name, getBatches(), getDocuments(), getAnalysedDocuments(), getBytes(), getAnnotations(),
+				getDocumentsPerSecond(), getBytesPerSecond(), getAnnotationsPerSecond(), getCasHeapCellsMax(),
+				getEngineInitMillis(), getEngineWarmUpMillis(), getFirstDocumentMillis(), getEngineSwaps(), getEngineSwapFailures(), getResultCacheHitRate(),
+				getResultCacheEvictions(), getLanguageSkippedDocuments(), getLanguageSkippedChars(), getDaemonDocuments(),
+				getDaemonFallbacks(), getCasStored(), getCasReplayed(), getPacks(), getPackedDocuments(),
+				getAnalysisFailures(), getAnalysisTimeouts(), getBatchTimeouts(), getBreakerTrips(), getBreakerSkips(),
+				getMemoryReserved(), getMemoryReservedMax(), getAdmissionWaits(), getOversizeDocuments(),
+				getTruncatedDocuments(), parse, filter, analyse, extract, serialize, replay);
+	}
+
+	@Override
+	public void reset() {
+		parse.reset();
+		filter.reset();
+		analyse.reset();
+		extract.reset();
+		serialize.reset();
+		replay.reset();
+		batches.set(0);
+		documents.set(0);
+		analysedDocuments.set(0);
+		resultCacheHits.set(0);
+		resultCacheMisses.set(0);
+		resultCacheEvictions.set(0);
+		languages.clear();
+		languageSkipped.set(0);
+		languageSkippedChars.set(0);
+		daemonDocuments.set(0);
+		daemonFallbacks.set(0);
+		casStored.set(0);
+		casReplayed.set(0);
+		packs.set(0);
+		packedDocuments.set(0);
+		analysisFailures.set(0);
+		analysisTimeouts.set(0);
+		batchTimeouts.set(0);
+		breakerTrips.set(0);
+		breakerSkips.set(0);
+		admissionWaits.set(0);
+		oversizeDocuments.set(0);
+		truncatedDocuments.set(0);
+		bytes.set(0);
+		annotations.set(0);
+		casHeapCellsLast.set(0);
+		casHeapCellsMax.set(0);
+		startNanos = System.nanoTime();
+	}
+
+	private double perSecond(long value) {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds <= 0 ? 0 : value / seconds;
+	}
+
+	private void startSummaryLogger(int intervalSeconds) {
+		summaryLogger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "uimaae-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		summaryLogger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				LOGGER.info(getSummary());
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("com.mnsuk.converter:type=UimaAE,name=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName))
+				server.registerMBean(this, objectName);
+		} catch (Exception e) {
+			LOGGER.warn("Unable to register converter metrics MBean: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	private void unregister() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			LOGGER.debug("Unable to unregister converter metrics MBean: " + e.getMessage());
+		}
+		objectName = null;
+	}
+}
@@ -0,0 +1,189 @@
+package com.mnsuk.converter;
+
+/**
+ * JMX view of the converter metrics. Times are in milliseconds.
+ */
+public interface ConverterMetricsMBean {
+
+	long getBatches();
+
+	long getDocuments();
+
+	long getAnalysedDocuments();
+
+	long getBytes();
+
+	long getAnnotations();
+
+	double getDocumentsPerSecond();
+
+	double getBytesPerSecond();
+
+	double getAnnotationsPerSecond();
+
+	double getParseMeanMillis();
+
+	double getParseP99Millis();
+
+	double getFilterMeanMillis();
+
+	double getFilterP99Millis();
+
+	double getAnalyseMeanMillis();
+
+	double getAnalyseP50Millis();
+
+	double getAnalyseP99Millis();
+
+	double getAnalyseMaxMillis();
+
+	double getExtractMeanMillis();
+
+	double getExtractP99Millis();
+
+	double getSerializeMeanMillis();
+
+	double getSerializeP99Millis();
+
+	/**
+	 * The slowest engine initialisation, which is the one that created the engine rather
+	 * than reusing it.
+	 */
+	double getEngineInitMillis();
+
+	/**
+	 * The slowest run of the warm up documents through a new engine, part of its
+	 * initialisation.
+	 */
+	double getEngineWarmUpMillis();
+
+	/**
+	 * The slowest analysis of the first document a converter analysed, to compare with the
+	 * analysis times once the converter is warm.
+	 */
+	double getFirstDocumentMillis();
+
+	/**
+	 * Analysis engines swapped in for a changed pear file since the converter started.
+	 */
+	long getEngineSwaps();
+
+	long getEngineSwapFailures();
+
+	/**
+	 * The slowest swap, from noticing the settled pear to the new engine being in use.
+	 */
+	double getEngineSwapMillis();
+
+	long getResultCacheHits();
+
+	long getResultCacheMisses();
+
+	long getResultCacheEvictions();
+
+	/**
+	 * Fraction of documents whose entities came from the result cache.
+	 */
+	double getResultCacheHitRate();
+
+	/**
+	 * Documents not analysed because they are in a language that is not configured.
+	 */
+	long getLanguageSkippedDocuments();
+
+	long getLanguageSkippedChars();
+
+	/**
+	 * Documents analysed and skipped by identified language, one line per language.
+	 */
+	String[] getLanguageCounts();
+
+	/**
+	 * Documents analysed by the analysis daemon.
+	 */
+	long getDaemonDocuments();
+
+	/**
+	 * Documents analysed in the converter because the analysis daemon could not be used.
+	 */
+	long getDaemonFallbacks();
+
+	/**
+	 * Documents whose CAS was written to the CAS store.
+	 */
+	long getCasStored();
+
+	/**
+	 * Documents whose entities were written from their stored CAS, without analysis.
+	 */
+	long getCasReplayed();
+
+	/**
+	 * CASes each holding several small documents analysed together.
+	 */
+	long getPacks();
+
+	/**
+	 * Documents analysed in a CAS holding several documents.
+	 */
+	long getPackedDocuments();
+
+	/**
+	 * Documents output without entities because the analysis engine failed on them.
+	 */
+	long getAnalysisFailures();
+
+	/**
+	 * Documents output without entities because the analysis engine did not finish them
+	 * within the document timeout.
+	 */
+	long getAnalysisTimeouts();
+
+	/**
+	 * Documents output without entities because their batch ran out of time.
+	 */
+	long getBatchTimeouts();
+
+	/**
+	 * Times the circuit breaker stopped documents of a size from being analysed.
+	 */
+	long getBreakerTrips();
+
+	/**
+	 * Documents not analysed because they match a recent failure.
+	 */
+	long getBreakerSkips();
+
+	/**
+	 * Heap bytes currently reserved in the memory budget by all converters sharing it.
+	 */
+	long getMemoryReserved();
+
+	/**
+	 * The most heap bytes reserved in the memory budget at once.
+	 */
+	long getMemoryReservedMax();
+
+	/**
+	 * Batches and documents that waited for room in the memory budget.
+	 */
+	long getAdmissionWaits();
+
+	/**
+	 * Documents output without entities because they are over the maximum document size.
+	 */
+	long getOversizeDocuments();
+
+	/**
+	 * Documents cut to the maximum document size before analysis.
+	 */
+	long getTruncatedDocuments();
+
+		long getCasHeapCellsLast();
+
+	long getCasHeapCellsMax();
+
+	String getSummary();
+
+	void reset();
+}
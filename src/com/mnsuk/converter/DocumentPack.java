@@ -0,0 +1,75 @@
+package com.mnsuk.converter;
+
+import java.util.Arrays;
+
+/**
+ * The text of several small documents joined to be analysed in one CAS.
+ * <p>
+ * Documents are separated by a blank line, a paragraph break that annotators do not carry
+ * sentences or entities across. The position of each document in the joined text is kept
+ * so the annotations can be given back to the document they were found in.
+ */
+public class DocumentPack {
+	static final String SEPARATOR = "\n\n";
+
+	private final int maxSize;
+	private final StringBuilder text;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int size = 0;
+
+	/**
+	 * @param maxSize Most characters of joined text, including separators
+	 */
+	public DocumentPack(int maxSize) {
+		this.maxSize = maxSize;
+		this.text = new StringBuilder(Math.min(maxSize, 64 * 1024));
+	}
+
+	/**
+	 * Add a document's text to the pack, if it fits or the pack is empty.
+	 *
+	 * @return false if the pack is full
+	 */
+	public boolean add(String document) {
+		int start = size == 0 ? 0 : text.length() + SEPARATOR.length();
+		if (size > 0 && start + document.length() > maxSize)
+			return false;
+		if (size == starts.length) {
+			starts = Arrays.copyOf(starts, size * 2);
+			ends = Arrays.copyOf(ends, size * 2);
+		}
+		if (size > 0)
+			text.append(SEPARATOR);
+		text.append(document);
+		starts[size] = start;
+		ends[size] = text.length();
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return The number of documents in the pack
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getText() {
+		return text.toString();
+	}
+
+	/**
+	 * @return The start of each document in the joined text
+	 */
+	public int[] getStarts() {
+		return Arrays.copyOf(starts, size);
+	}
+
+	/**
+	 * @return The end of each document in the joined text, exclusive
+	 */
+	public int[] getEnds() {
+		return Arrays.copyOf(ends, size);
+	}
+}
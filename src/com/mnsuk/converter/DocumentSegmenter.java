@@ -0,0 +1,115 @@
+package com.mnsuk.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the text of a very large document into segments that are analysed separately.
+ * <p>
+ * Segments are cut after a paragraph break where there is one in the second half of the
+ * segment, otherwise after the end of a sentence, otherwise at whitespace. Each segment is
+ * analysed with a window of overlapping text either side of it, so entities crossing a cut
+ * are still found whole. An entity belongs to the segment its begin offset falls in, which
+ * keeps the entities found twice in the overlap from being written twice.
+ */
+public class DocumentSegmenter {
+	private final int maxSize;
+	private final int overlap;
+
+	/**
+	 * A segment of a document: the text it owns and the larger window that is analysed.
+	 */
+	public static final class Segment {
+		final int start;
+		final int end;
+		final int windowStart;
+		final int windowEnd;
+
+		Segment(int start, int end, int windowStart, int windowEnd) {
+			this.start = start;
+			this.end = end;
+			this.windowStart = windowStart;
+			this.windowEnd = windowEnd;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + start + "," + end + ") window [" + windowStart + "," + windowEnd + ")";
+		}
+	}
+
+	/**
+	 * @param maxSize Maximum length of a segment, without its overlap
+	 * @param overlap Length of the text either side of a segment analysed with it
+	 */
+	public DocumentSegmenter(int maxSize, int overlap) {
+		this.maxSize = Math.max(2, maxSize);
+		this.overlap = Math.max(0, overlap);
+	}
+
+	/**
+	 * @return true if the text is too long to be analysed in one go
+	 */
+	public boolean needsSplit(String text) {
+		return text.length() > maxSize;
+	}
+
+	/**
+	 * Split a text into consecutive segments covering all of it.
+	 */
+	public List<Segment> split(String text) {
+		int length = text.length();
+		List<Segment> segments = new ArrayList<Segment>(length / maxSize + 1);
+		int start = 0;
+		while (start < length) {
+			int end = length - start <= maxSize ? length : cut(text, start, start + maxSize);
+			segments.add(new Segment(start, end, Math.max(0, start - overlap), Math.min(length, end + overlap)));
+			start = end;
+		}
+		return segments;
+	}
+
+	/**
+	 * Where to end a segment starting at <code>start</code>, no later than <code>limit</code>.
+	 */
+	static int cut(String text, int start, int limit) {
+		int min = start + (limit - start) / 2;
+		int sentence = -1;
+		int space = -1;
+		for (int i = limit; i > min; i--) {
+			char c = text.charAt(i - 1);
+			if (!Character.isWhitespace(c))
+				continue;
+			if (c == '\n' && isParagraphBreak(text, start, i - 1))
+				return i;
+			if (space < 0)
+				space = i;
+			if (sentence < 0 && i >= 2 && isSentenceEnd(text.charAt(i - 2)))
+				sentence = i;
+		}
+		if (sentence > 0)
+			return sentence;
+		if (space > 0)
+			return space;
+		// no boundary at all, at least don't split a surrogate pair
+		return Character.isHighSurrogate(text.charAt(limit - 1)) ? limit - 1 : limit;
+	}
+
+	/**
+	 * @return true if the newline at <code>newline</code> ends a blank line
+	 */
+	private static boolean isParagraphBreak(String text, int start, int newline) {
+		for (int j = newline - 1; j >= start; j--) {
+			char c = text.charAt(j);
+			if (c == '\n')
+				return true;
+			if (c != ' ' && c != '\t' && c != '\r')
+				return false;
+		}
+		return false;
+	}
+
+	private static boolean isSentenceEnd(char c) {
+		return c == '.' || c == '!' || c == '?' || c == '\u3002';
+	}
+}
@@ -0,0 +1,36 @@
+package com.mnsuk.converter;
+
+import org.w3c.dom.Element;
+
+/**
+ * Writes entities as <code>content</code> elements appended to a VXML document element.
+ */
+public class DomEntityWriter implements EntityWriter {
+	private final Element documentElement;
+	private Element newContent = null;
+
+	public DomEntityWriter(Element documentElement) {
+		this.documentElement = documentElement;
+	}
+
+	@Override
+	public void startEntity() {
+		newContent = documentElement.getOwnerDocument().createElement("content");
+	}
+
+	@Override
+	public void attribute(String name, String value) {
+		newContent.setAttribute(name, value);
+	}
+
+	@Override
+	public void text(String text) {
+		newContent.setTextContent(text);
+	}
+
+	@Override
+	public void endEntity() {
+		documentElement.appendChild(newContent);
+		newContent = null;
+	}
+}
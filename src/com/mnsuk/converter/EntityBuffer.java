@@ -0,0 +1,204 @@
+package com.mnsuk.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Records entities so they can be written later, after the CAS they came from has been
+ * given back to the pool. Used to hand results from analysis threads back to the thread
+ * that owns the output document.
+ */
+public class EntityBuffer implements EntityWriter {
+	private static final byte START = 0;
+	private static final byte ATTRIBUTE = 1;
+	private static final byte TEXT = 2;
+	private static final byte END = 3;
+
+	private byte[] ops = new byte[64];
+	private String[] names = new String[64];
+	private String[] values = new String[64];
+	private int size = 0;
+	private int entities = 0;
+
+	@Override
+	public void startEntity() {
+		add(START, null, null);
+	}
+
+	@Override
+	public void attribute(String name, String value) {
+		add(ATTRIBUTE, name, value);
+	}
+
+	@Override
+	public void text(String text) {
+		add(TEXT, null, text);
+	}
+
+	@Override
+	public void endEntity() {
+		add(END, null, null);
+		entities++;
+	}
+
+	/**
+	 * Write the recorded entities, in the order they were recorded, to another writer.
+	 */
+	public void replay(EntityWriter out) {
+		replay(out, 0, size);
+	}
+
+	/**
+	 * Write the entities recorded between two positions to another writer.
+	 *
+	 * @param from A position returned by {@link #position()}
+	 * @param to A later position
+	 */
+	public void replay(EntityWriter out, int from, int to) {
+		for (int i = from; i < to; i++) {
+			switch (ops[i]) {
+			case START:
+				out.startEntity();
+				break;
+			case ATTRIBUTE:
+				out.attribute(names[i], values[i]);
+				break;
+			case TEXT:
+				out.text(values[i]);
+				break;
+			default:
+				out.endEntity();
+			}
+		}
+	}
+
+	/**
+	 * The current end of the recording, to replay part of it with
+	 * {@link #replay(EntityWriter, int, int)}.
+	 */
+	public int position() {
+		return size;
+	}
+
+	/**
+	 * Approximate heap size of the recorded entities, in bytes.
+	 */
+	public long getSizeBytes() {
+		long bytes = 64 + size * 17L;
+		for (int i = 0; i < size; i++) {
+			if (values[i] != null)
+				bytes += 40 + 2L * values[i].length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Encode the recorded entities, to be decoded with {@link #decode(ByteBuffer)}.
+	 */
+	public byte[] encode() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + size * 16);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeByte(ops[i]);
+				if (ops[i] == ATTRIBUTE)
+					writeString(out, names[i]);
+				if (ops[i] == ATTRIBUTE || ops[i] == TEXT)
+					writeString(out, values[i]);
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by an in memory stream
+		}
+	}
+
+	/**
+	 * Decode entities encoded with {@link #encode()}.
+	 *
+	 * @param in Positioned at the start of the encoded entities
+	 * @throws IllegalArgumentException if the data is not valid
+	 */
+	public static EntityBuffer decode(ByteBuffer in) {
+		EntityBuffer buffer = new EntityBuffer();
+		try {
+			int count = in.getInt();
+			if (count < 0)
+				throw new IllegalArgumentException("Invalid entity count " + count);
+			for (int i = 0; i < count; i++) {
+				byte op = in.get();
+				switch (op) {
+				case START:
+					buffer.startEntity();
+					break;
+				case ATTRIBUTE:
+					String name = readString(in);
+					buffer.attribute(name, readString(in));
+					break;
+				case TEXT:
+					buffer.text(readString(in));
+					break;
+				case END:
+					buffer.endEntity();
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid entity op " + op);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated entities", e);
+		}
+		return buffer;
+	}
+
+	public int getEntityCount() {
+		return entities;
+	}
+
+	public void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		entities = 0;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0)
+			return null;
+		if (length > in.remaining())
+			throw new IllegalArgumentException("Invalid string length " + length);
+		byte[] b = new byte[length];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private void add(byte op, String name, String value) {
+		if (size == ops.length) {
+			int capacity = size * 2;
+			ops = Arrays.copyOf(ops, capacity);
+			names = Arrays.copyOf(names, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		ops[size] = op;
+		names[size] = name;
+		values[size] = value;
+		size++;
+	}
+}
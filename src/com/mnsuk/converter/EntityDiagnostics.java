@@ -0,0 +1,65 @@
+package com.mnsuk.converter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per document entity counts by configured type, logged at DEBUG.
+ * <p>
+ * At most one line is logged per second; the line says how many documents were not
+ * logged since the previous one. Nothing is counted unless the option is set and DEBUG is
+ * enabled for this class.
+ */
+public class EntityDiagnostics {
+	private static final Logger LOGGER = LoggerFactory.getLogger(EntityDiagnostics.class);
+	private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final boolean enabled;
+	private final String[] names;
+	private final AtomicLong nextLogNanos = new AtomicLong(System.nanoTime());
+	private final AtomicLong suppressed = new AtomicLong();
+
+	public EntityDiagnostics(boolean enabled, ExtractionPlan plan) {
+		this.enabled = enabled;
+		ExtractionPlan.TypeExtraction[] extractions = plan.getExtractions();
+		this.names = new String[extractions.length];
+		for (int i = 0; i < extractions.length; i++) {
+			names[i] = extractions[i].getContentName() + "(" + extractions[i].getType().getName() + ")";
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled && LOGGER.isDebugEnabled();
+	}
+
+	/**
+	 * @return An array for the per type counts of one document, or null if nothing is logged
+	 */
+	public int[] newCounts() {
+		return isEnabled() ? new int[names.length] : null;
+	}
+
+	/**
+	 * Log the counts for a document, unless a line was logged less than a second ago.
+	 */
+	public void log(int textLength, int[] counts) {
+		long now = System.nanoTime();
+		long next = nextLogNanos.get();
+		if (now - next < 0 || !nextLogNanos.compareAndSet(next, now + INTERVAL_NANOS)) {
+			suppressed.incrementAndGet();
+			return;
+		}
+		StringBuilder sb = new StringBuilder(64 + names.length * 32);
+		sb.append("Entities for document of ").append(textLength).append(" chars:");
+		for (int i = 0; i < names.length; i++) {
+			sb.append(' ').append(names[i]).append('=').append(counts[i]);
+		}
+		long skipped = suppressed.getAndSet(0);
+		if (skipped > 0)
+			sb.append(" (").append(skipped).append(" documents not logged)");
+		LOGGER.debug(sb.toString());
+	}
+}
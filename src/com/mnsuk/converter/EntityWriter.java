@@ -0,0 +1,18 @@
+package com.mnsuk.converter;
+
+/**
+ * Receives the content elements generated from annotations. Each entity is written as
+ * {@link #startEntity()}, any number of attributes, at most one text value, then
+ * {@link #endEntity()}. Attributes always come before the text so that writers can
+ * stream the element.
+ */
+public interface EntityWriter {
+
+	void startEntity();
+
+	void attribute(String name, String value);
+
+	void text(String text);
+
+	void endEntity();
+}
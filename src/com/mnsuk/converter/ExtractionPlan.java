@@ -0,0 +1,452 @@
+package com.mnsuk.converter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CASRuntimeException;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * The configured <code>type</code> options resolved against the analysis engine's type system.
+ * <p>
+ * The plan is built once when the converter starts. It holds the {@link Type} and
+ * {@link Feature} handles, the attribute names and a value accessor for every feature
+ * written, so generating the content elements for an annotation needs no option parsing
+ * and no type system lookups. Types or features that do not exist fail when the plan is
+ * built.
+ */
+public class ExtractionPlan {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExtractionPlan.class);
+
+	private static final String SENTENCETYPE = "uima.tt.SentenceAnnotation";
+	private static final String PARAGRAPHTYPE = "uima.tt.ParagraphAnnotation";
+	private static final String LEMMATYPE = "uima.tt.Lemma";
+	private static final String LEMMAKEY = "key";
+
+	private final TypeSystem typeSystem;
+	private final TypeExtraction[] extractions;
+
+	private ExtractionPlan(TypeSystem typeSystem, TypeExtraction[] extractions) {
+		this.typeSystem = typeSystem;
+		this.extractions = extractions;
+	}
+
+	/**
+	 * Resolve the <code>type</code> options against a type system.
+	 *
+	 * @param contentTypes Options of the form <code>content:type</code> or
+	 *        <code>content:type:feature</code>
+	 * @param typeSystem The analysis engine's type system
+	 * @param annotationOffsets Whether begin and end offsets are written
+	 * @return The plan
+	 * @throws FatalConverterException if an option is malformed or names an unknown type or feature
+	 */
+	public static ExtractionPlan compile(List<String> contentTypes, TypeSystem typeSystem, boolean annotationOffsets)
+			throws FatalConverterException {
+		Resolver resolver = new Resolver(typeSystem, annotationOffsets);
+		Type annotationType = typeSystem.getType(CAS.TYPE_NAME_ANNOTATION);
+		List<TypeExtraction> extractions = new ArrayList<TypeExtraction>();
+		if (contentTypes != null) {
+			for (String f : contentTypes) {
+				String[] t = f.split(String.valueOf(TypeSystem.FEATURE_SEPARATOR));
+				if (t.length < 2 || t.length > 3 || t[0].isEmpty() || t[1].isEmpty())
+					throw new FatalConverterException("Invalid type option, expected content:type[:feature]: " + f);
+				String contentName = t[0];
+				String typeName = t[1];
+				String featureName = (t.length == 3) ? t[2] : null;
+				Type type = typeSystem.getType(typeName);
+				if (type == null)
+					throw new FatalConverterException("Type " + typeName + " not found in typesystem");
+				if (!typeSystem.subsumes(annotationType, type))
+					throw new FatalConverterException("Type " + typeName + " is not an annotation type");
+				if (featureName == null) {
+					extractions.add(new TypeExtraction(contentName, type, resolver.typeAttributes(type)));
+				} else {
+					Feature ft = type.getFeatureByBaseName(featureName);
+					if (ft == null)
+						throw new FatalConverterException("Feature " + featureName + " not found for type " + typeName);
+					extractions.add(new TypeExtraction(contentName, type, resolver.accessor(ft), resolver.offsets()));
+				}
+				LOGGER.debug("Extracting {}", f);
+			}
+		}
+		return new ExtractionPlan(typeSystem, extractions.toArray(new TypeExtraction[extractions.size()]));
+	}
+
+	/**
+	 * The type system the plan was built for. It can only be used with a CAS of this type system.
+	 */
+	public TypeSystem getTypeSystem() {
+		return typeSystem;
+	}
+
+	public TypeExtraction[] getExtractions() {
+		return extractions;
+	}
+
+	/**
+	 * Write the entities for all configured types from a processed CAS. The annotations of
+	 * each type are read straight from that type's annotation index.
+	 *
+	 * @return The number of entities written
+	 */
+	public int write(CAS cas, EntityWriter out) {
+		return write(cas, out, null);
+	}
+
+	/**
+	 * Write the entities for all configured types from a processed CAS, counting them by type.
+	 *
+	 * @param counts If not null, receives the number of entities written for each extraction
+	 * @return The number of entities written
+	 */
+	public int write(CAS cas, EntityWriter out, int[] counts) {
+		int entities = 0;
+		for (int i = 0; i < extractions.length; i++) {
+			int n = extractions[i].write(cas, out);
+			if (counts != null)
+				counts[i] = n;
+			entities += n;
+		}
+		return entities;
+	}
+
+	/**
+	 * How to write the annotations of one configured type.
+	 */
+	public static final class TypeExtraction {
+		private final String contentName;
+		private final Type type;
+		// whole type: attributes for the configured type and each of its subtypes
+		private final Map<Type, Attributes> attributesByType;
+		// single feature
+		private final FeatureAccessor featureValue;
+		private final Attributes offsets;
+
+		private TypeExtraction(String contentName, Type type, Map<Type, Attributes> attributesByType) {
+			this.contentName = contentName;
+			this.type = type;
+			this.attributesByType = attributesByType;
+			this.featureValue = null;
+			this.offsets = null;
+		}
+
+		private TypeExtraction(String contentName, Type type, FeatureAccessor featureValue, Attributes offsets) {
+			this.contentName = contentName;
+			this.type = type;
+			this.attributesByType = null;
+			this.featureValue = featureValue;
+			this.offsets = offsets;
+		}
+
+		public String getContentName() {
+			return contentName;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Write a content element for each annotation of this type, and its subtypes, in
+		 * annotation index order.
+		 *
+		 * @return The number of entities written
+		 */
+		public int write(CAS cas, EntityWriter out) {
+			int entities = 0;
+			FSIterator<AnnotationFS> it = cas.getAnnotationIndex(type).iterator();
+			while (it.hasNext()) {
+				write(it.next(), out, 0);
+				entities++;
+			}
+			return entities;
+		}
+
+		/**
+		 * Write a content element for each annotation of this type, and its subtypes, that
+		 * begins in a range of the CAS's text, with the offsets rebased by a fixed amount.
+		 * Used when a CAS holds one segment of a larger document.
+		 *
+		 * @param offset Added to the begin and end offsets written
+		 * @param from First begin offset, in the CAS, of the annotations written
+		 * @param to End of the range of begin offsets, exclusive
+		 * @return The number of entities written
+		 */
+		public int write(CAS cas, EntityWriter out, int offset, int from, int to) {
+			int entities = 0;
+			FSIterator<AnnotationFS> it = cas.getAnnotationIndex(type).iterator();
+			while (it.hasNext()) {
+				AnnotationFS anno = it.next();
+				int begin = anno.getBegin();
+				if (begin >= to)
+					break; // the index is sorted by begin
+				if (begin < from)
+					continue;
+				write(anno, out, offset);
+				entities++;
+			}
+			return entities;
+		}
+
+		/**
+		 * Write a content element for each annotation of this type, and its subtypes, in a
+		 * CAS holding several documents, to the writer of the document it lies in, with the
+		 * offsets rebased to that document. Annotations that do not lie wholly in one
+		 * document are left out.
+		 *
+		 * @param starts Start of each document in the CAS's text, in ascending order
+		 * @param ends End of each document, exclusive
+		 * @param counts Incremented by the number of entities written for each document
+		 */
+		public void write(CAS cas, EntityWriter[] outs, int[] starts, int[] ends, int[] counts) {
+			int d = 0;
+			FSIterator<AnnotationFS> it = cas.getAnnotationIndex(type).iterator();
+			while (it.hasNext()) {
+				AnnotationFS anno = it.next();
+				int begin = anno.getBegin();
+				while (d < ends.length && begin >= ends[d])
+					d++; // the index is sorted by begin
+				if (d == ends.length)
+					break;
+				if (begin < starts[d] || anno.getEnd() > ends[d])
+					continue;
+				write(anno, outs[d], -starts[d]);
+				counts[d]++;
+			}
+		}
+
+		/**
+		 * Write one content element for an annotation of this type.
+		 */
+		public void write(AnnotationFS anno, EntityWriter out) {
+			write(anno, out, 0);
+		}
+
+		private void write(AnnotationFS anno, EntityWriter out, int offset) {
+			out.startEntity();
+			if (featureValue == null) {
+				Attributes attributes = attributesByType.get(anno.getType());
+				if (attributes == null) // not in the type system the plan was built for
+					attributes = attributesByType.get(type);
+				for (int i = 0; i < attributes.names.length; i++) {
+					String str = attributes.accessors[i].get(anno, offset);
+					out.attribute(attributes.names[i], str == null ? "" : str);
+				}
+				out.attribute("name", contentName);
+				out.text(anno.getCoveredText());
+			} else {
+				out.attribute("name", contentName);
+				out.attribute("coveredtext", anno.getCoveredText());
+				for (int i = 0; i < offsets.names.length; i++) {
+					out.attribute(offsets.names[i], offsets.accessors[i].get(anno, offset));
+				}
+				out.text(featureValue.get(anno, offset));
+			}
+			out.endEntity();
+		}
+	}
+
+	private static final class Attributes {
+		private final String[] names;
+		private final FeatureAccessor[] accessors;
+
+		private Attributes(List<String> names, List<FeatureAccessor> accessors) {
+			this.names = names.toArray(new String[names.size()]);
+			this.accessors = accessors.toArray(new FeatureAccessor[accessors.size()]);
+		}
+	}
+
+	/**
+	 * Reads the value of one feature of an annotation as a string, or null if there is none.
+	 * The offset is added to begin and end offsets, for a CAS holding a segment of a document.
+	 */
+	abstract static class FeatureAccessor {
+		protected final Feature ft;
+
+		FeatureAccessor(Feature ft) {
+			this.ft = ft;
+		}
+
+		final String get(AnnotationFS anno, int offset) {
+			try {
+				return value(anno, offset);
+			} catch (CASRuntimeException e) {
+				LOGGER.debug("Failed to get feature value for feature: {}", ft.getName(), e);
+				return null;
+			}
+		}
+
+		abstract String value(AnnotationFS anno, int offset);
+	}
+
+	private static final class PrimitiveAccessor extends FeatureAccessor {
+		PrimitiveAccessor(Feature ft) {
+			super(ft);
+		}
+
+		@Override
+		String value(AnnotationFS anno, int offset) {
+			return anno.getFeatureValueAsString(ft);
+		}
+	}
+
+	/**
+	 * The covered text of the first element of an array of annotations.
+	 */
+	private static final class AnnotationArrayAccessor extends FeatureAccessor {
+		AnnotationArrayAccessor(Feature ft) {
+			super(ft);
+		}
+
+		@Override
+		String value(AnnotationFS anno, int offset) {
+			FeatureStructure array = anno.getFeatureValue(ft);
+			if (!(array instanceof ArrayFS) || ((ArrayFS) array).size() == 0)
+				return null;
+			FeatureStructure fs = ((ArrayFS) array).get(0);
+			if (fs instanceof AnnotationFS)
+				return ((AnnotationFS) fs).getCoveredText();
+			return null;
+		}
+	}
+
+	/**
+	 * The covered text of a sentence or paragraph, or the key of a lemma.
+	 */
+	private static final class ReferenceAccessor extends FeatureAccessor {
+		private final Type sentenceType;
+		private final Type paragraphType;
+		private final Type lemmaType;
+		private final Feature lemmaKey;
+
+		ReferenceAccessor(Feature ft, Type sentenceType, Type paragraphType, Type lemmaType, Feature lemmaKey) {
+			super(ft);
+			this.sentenceType = sentenceType;
+			this.paragraphType = paragraphType;
+			this.lemmaType = lemmaType;
+			this.lemmaKey = lemmaKey;
+		}
+
+		@Override
+		String value(AnnotationFS anno, int offset) {
+			FeatureStructure fs = anno.getFeatureValue(ft);
+			if (fs == null)
+				return null;
+			Type fsType = fs.getType();
+			if (fsType == sentenceType || fsType == paragraphType)
+				return ((AnnotationFS) fs).getCoveredText();
+			if (fsType == lemmaType && lemmaKey != null)
+				return fs.getStringValue(lemmaKey);
+			return null;
+		}
+	}
+
+	private static final class BeginAccessor extends FeatureAccessor {
+		BeginAccessor(Feature ft) {
+			super(ft);
+		}
+
+		@Override
+		String value(AnnotationFS anno, int offset) {
+			return Integer.toString(anno.getBegin() + offset);
+		}
+	}
+
+	private static final class EndAccessor extends FeatureAccessor {
+		EndAccessor(Feature ft) {
+			super(ft);
+		}
+
+		@Override
+		String value(AnnotationFS anno, int offset) {
+			return Integer.toString(anno.getEnd() + offset);
+		}
+	}
+
+	/**
+	 * Builds accessors, sharing the handles resolved from the type system.
+	 */
+	private static final class Resolver {
+		private final TypeSystem typeSystem;
+		private final boolean annotationOffsets;
+		private final Type sentenceType;
+		private final Type paragraphType;
+		private final Type lemmaType;
+		private final Feature lemmaKey;
+
+		private Resolver(TypeSystem typeSystem, boolean annotationOffsets) {
+			this.typeSystem = typeSystem;
+			this.annotationOffsets = annotationOffsets;
+			this.sentenceType = typeSystem.getType(SENTENCETYPE);
+			this.paragraphType = typeSystem.getType(PARAGRAPHTYPE);
+			this.lemmaType = typeSystem.getType(LEMMATYPE);
+			this.lemmaKey = lemmaType == null ? null : lemmaType.getFeatureByBaseName(LEMMAKEY);
+		}
+
+		/**
+		 * Attributes for a whole type and, since the index returns them too, its subtypes.
+		 */
+		private Map<Type, Attributes> typeAttributes(Type type) {
+			Map<Type, Attributes> result = new IdentityHashMap<Type, Attributes>();
+			result.put(type, attributes(type));
+			for (Type subtype : typeSystem.getProperlySubsumedTypes(type)) {
+				result.put(subtype, attributes(subtype));
+			}
+			return result;
+		}
+
+		private Attributes attributes(Type type) {
+			List<String> names = new ArrayList<String>();
+			List<FeatureAccessor> accessors = new ArrayList<FeatureAccessor>();
+			for (Feature ft : type.getFeatures()) {
+				String shortName = ft.getShortName();
+				if (shortName.equals("ruleId") || shortName.equals("sofa"))
+					continue;
+				if ((shortName.equals("begin") || shortName.equals("end")) && !annotationOffsets)
+					continue;
+				names.add(shortName);
+				accessors.add(accessor(ft));
+			}
+			return new Attributes(names, accessors);
+		}
+
+		private Attributes offsets() {
+			List<String> names = new ArrayList<String>();
+			List<FeatureAccessor> accessors = new ArrayList<FeatureAccessor>();
+			if (annotationOffsets) {
+				names.add("begin");
+				accessors.add(new BeginAccessor(null));
+				names.add("end");
+				accessors.add(new EndAccessor(null));
+			}
+			return new Attributes(names, accessors);
+		}
+
+		private FeatureAccessor accessor(Feature ft) {
+			if (CAS.FEATURE_FULL_NAME_BEGIN.equals(ft.getName()))
+				return new BeginAccessor(ft);
+			if (CAS.FEATURE_FULL_NAME_END.equals(ft.getName()))
+				return new EndAccessor(ft);
+			Type range = ft.getRange();
+			if (range.isPrimitive())
+				return new PrimitiveAccessor(ft);
+			if (range.isArray())
+				return new AnnotationArrayAccessor(ft);
+			return new ReferenceAccessor(ft, sentenceType, paragraphType, lemmaType, lemmaKey);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.mnsuk.converter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identifies the language of a document from the start of its text.
+ * <p>
+ * Letters are first counted by Unicode script. Text mostly in a script written in one
+ * language, such as Greek or Hangul, is identified from the script alone. Text in the Latin
+ * or Cyrillic scripts is scored against a character trigram profile of each language's most
+ * common words, so only word trigrams are looked up, one hash lookup each. Text too short
+ * or too evenly scored to tell is {@link #UNDETERMINED}.
+ */
+public class LanguageIdentifier {
+	/** The UIMA document language for text in an unknown language. */
+	public static final String UNDETERMINED = "x-unspecified";
+
+	// fewer trigrams than this, or a best score less than this much ahead of the next, is a guess
+	private static final int MIN_TRIGRAMS = 8;
+	private static final double MIN_MARGIN = 2.0;
+	// probability given to a trigram missing from a language's profile
+	private static final double UNSEEN = 0.0005;
+
+	private static final String[] LANGUAGES = { "en", "de", "fr", "es", "it", "pt", "nl", "sv", "da", "pl", "ru", "uk" };
+	private static final String[] COMMON_WORDS = {
+		// en
+		"the of and to in a is that for it as was with be by on not he this are or his from at which but have an "
+		+ "they you were her she there one all we their been has will would who its had more when if can what "
+		+ "about some out them than into other only these also",
+		// de
+		"der die und in den von zu das mit sich des auf für ist im dem nicht ein eine als auch es an werden aus er hat "
+		+ "dass sie nach wird bei einer um am sind noch wie einem über einen so zum war haben nur oder aber vor zur "
+		+ "bis mehr durch man sein wurde sei",
+		// fr
+		"de la le et les des en un du une que est pour qui dans par plus pas au sur ne se ce il sont avec ou son "
+		+ "mais comme aux elle cette ont été nous leur sa ses fait tout aussi être entre deux même où sans peut",
+		// es
+		"de la que el en y a los del se las por un para con no una su al lo como más pero sus le ya o este fue "
+		+ "ha sí porque esta entre cuando muy sin sobre también me hasta hay donde quien desde todo nos durante "
+		+ "todos uno les ni contra otros",
+		// it
+		"di e il la che in a per un del non è una le della si con sono i da al dei alla gli anche come delle nel "
+		+ "ma più lo ha questo o se suo sua nella dal stato loro essere tra degli ci quando molto perché questa "
+		+ "sulla dopo",
+		// pt
+		"de a o que e do da em um para é com não uma os no se na por mais as dos como mas foi ao ele das tem à "
+		+ "seu sua ou ser quando muito há nos já está eu também só pelo pela até isso ela entre era depois sem "
+		+ "mesmo aos ter seus",
+		// nl
+		"de van een het en in is dat op te zijn met voor niet aan er die ook als bij door maar om dan zo nog "
+		+ "wordt naar of uit worden werd over heeft kan wel hij meer deze tot ze was geen al hun haar",
+		// sv
+		"och i att det som en på är av för med till den har de inte om ett han men var jag sig från vi så kan "
+		+ "man när år säger hon under också efter eller nu sin där vid mot ska skulle kommer ut får finns vara "
+		+ "hade alla andra",
+		// da
+		"og i at det er en til på som de med for af har ikke der et den var han men om fra sig kan vi jeg eller "
+		+ "så skal efter også blev ved over hun når være ud vil hvor sin op havde have mod nu alle andre meget",
+		// pl
+		"i w na z do nie się to że jest o jak co po od za a tak ale przez dla jego ich jej być może już tylko "
+		+ "oraz są czy gdy które który która także było był była lub przy pod ze bardzo został można",
+		// ru
+		"и в не на что с по он я как это а из к у то за но от все так его она для же о был бы было при мы "
+		+ "только или уже до их также когда они если ее может быть есть даже где этого который которые",
+		// uk
+		"і в на з що не у до та як це за від по й він але для я а його все є ми також вона про їх був було "
+		+ "коли бо які який яка ще вже між під буде може тому щоб або чи цього своїх"
+	};
+
+	// scripts identifying a language on their own; kana is checked before Han so Japanese is not taken for Chinese
+	private static final Character.UnicodeScript[] SCRIPTS = {
+		Character.UnicodeScript.HIRAGANA, Character.UnicodeScript.KATAKANA, Character.UnicodeScript.HANGUL,
+		Character.UnicodeScript.HAN, Character.UnicodeScript.ARABIC, Character.UnicodeScript.HEBREW,
+		Character.UnicodeScript.GREEK, Character.UnicodeScript.THAI, Character.UnicodeScript.DEVANAGARI
+	};
+	private static final String[] SCRIPT_LANGUAGES = { "ja", "ja", "ko", "zh", "ar", "he", "el", "th", "hi" };
+
+	// open addressed table of the profiled trigrams and their weight in each language's profile,
+	// the log of how much likelier the trigram is in the language than if it were unseen
+	private static final long[] KEYS;
+	private static final float[][] WEIGHTS;
+
+	static {
+		Map<Long, float[]> profiles = buildProfiles();
+		int capacity = Integer.highestOneBit(profiles.size() * 4 - 1);
+		KEYS = new long[capacity];
+		WEIGHTS = new float[capacity][];
+		for (Map.Entry<Long, float[]> entry : profiles.entrySet()) {
+			long key = entry.getKey().longValue();
+			int slot = slot(key);
+			while (KEYS[slot] != 0) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			KEYS[slot] = key;
+			WEIGHTS[slot] = entry.getValue();
+		}
+	}
+
+	private final int sampleLength;
+
+	/**
+	 * @param sampleLength How many characters from the start of a document to look at
+	 */
+	public LanguageIdentifier(int sampleLength) {
+		this.sampleLength = Math.max(1, sampleLength);
+	}
+
+	/**
+	 * @return The ISO 639-1 code of the language of the text, or {@link #UNDETERMINED}
+	 */
+	public String identify(String text) {
+		int end = Math.min(text.length(), sampleLength);
+		if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1)))
+			end--;
+		int profiled = 0;
+		int letters = 0;
+		int[] scriptCounts = new int[SCRIPT_LANGUAGES.length];
+		double[] scores = new double[LANGUAGES.length];
+		int trigrams = 0;
+		char c1 = ' ';
+		char c2 = ' ';
+		for (int i = 0; i <= end;) {
+			int cp;
+			if (i < end) {
+				cp = text.codePointAt(i);
+				i += Character.charCount(cp);
+			} else {
+				cp = ' ';
+				i++;
+			}
+			if (!Character.isLetter(cp)) {
+				if (c2 != ' ') {
+					trigrams += score(c1, c2, ' ', scores);
+					c1 = ' ';
+					c2 = ' ';
+				}
+				continue;
+			}
+			letters++;
+			if (cp < 0x250 || (cp >= 0x400 && cp < 0x530)) {
+				// Latin or Cyrillic, without the script lookup
+				profiled++;
+			} else {
+				Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+				if (script == Character.UnicodeScript.LATIN || script == Character.UnicodeScript.CYRILLIC)
+					profiled++;
+				for (int s = 0; s < SCRIPTS.length; s++) {
+					if (SCRIPTS[s] == script) {
+						scriptCounts[s]++;
+						break;
+					}
+				}
+			}
+			if (cp > Character.MAX_VALUE)
+				continue;
+			char c = Character.toLowerCase((char) cp);
+			if (c2 != ' ')
+				trigrams += score(c1, c2, c, scores);
+			c1 = c2;
+			c2 = c;
+		}
+		if (letters == 0)
+			return UNDETERMINED;
+		String byScript = identifyScript(scriptCounts, profiled, letters);
+		if (byScript != null)
+			return byScript;
+		if (trigrams < MIN_TRIGRAMS)
+			return UNDETERMINED;
+		int best = -1;
+		double bestScore = 0;
+		double nextScore = 0;
+		for (int l = 0; l < scores.length; l++) {
+			if (scores[l] > bestScore) {
+				nextScore = bestScore;
+				bestScore = scores[l];
+				best = l;
+			} else if (scores[l] > nextScore) {
+				nextScore = scores[l];
+			}
+		}
+		if (best < 0 || bestScore - nextScore < MIN_MARGIN)
+			return UNDETERMINED;
+		return LANGUAGES[best];
+	}
+
+	/**
+	 * @return The language if the text is mostly in a script used by one language, otherwise null
+	 */
+	private static String identifyScript(int[] scriptCounts, int profiled, int letters) {
+		int other = letters - profiled;
+		if (other * 2 < letters)
+			return null;
+		// any kana in Han text makes it Japanese
+		if (scriptCounts[0] + scriptCounts[1] > 0 && scriptCounts[0] + scriptCounts[1] + scriptCounts[3] >= other / 2)
+			return "ja";
+		int best = 0;
+		for (int s = 1; s < scriptCounts.length; s++) {
+			if (scriptCounts[s] > scriptCounts[best])
+				best = s;
+		}
+		return scriptCounts[best] * 2 >= other ? SCRIPT_LANGUAGES[best] : UNDETERMINED;
+	}
+
+	/**
+	 * Add a trigram's profile weights to the language scores.
+	 *
+	 * @return 1 if the trigram is in a profile, otherwise 0
+	 */
+	private static int score(char c1, char c2, char c3, double[] scores) {
+		long key = key(c1, c2, c3);
+		int slot = slot(key);
+		while (KEYS[slot] != key) {
+			if (KEYS[slot] == 0)
+				return 0;
+			slot = (slot + 1) & (KEYS.length - 1);
+		}
+		float[] weights = WEIGHTS[slot];
+		for (int l = 0; l < weights.length; l++) {
+			scores[l] += weights[l];
+		}
+		return 1;
+	}
+
+	private static long key(char c1, char c2, char c3) {
+		return ((long) c1 << 32) | ((long) c2 << 16) | c3;
+	}
+
+	private static int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 40) & (KEYS.length - 1);
+	}
+
+	/**
+	 * Build the trigram profiles from the word lists. Words earlier in a list are more common
+	 * and weigh more.
+	 */
+	private static Map<Long, float[]> buildProfiles() {
+		Map<Long, float[]> profiles = new HashMap<Long, float[]>();
+		for (int l = 0; l < LANGUAGES.length; l++) {
+			String[] words = COMMON_WORDS[l].split(" ");
+			double total = 0;
+			Map<Long, Double> weights = new HashMap<Long, Double>();
+			for (int w = 0; w < words.length; w++) {
+				String padded = " " + words[w] + " ";
+				double weight = 2.0 - (double) w / words.length;
+				for (int i = 0; i + 3 <= padded.length(); i++) {
+					Long key = Long.valueOf(key(padded.charAt(i), padded.charAt(i + 1), padded.charAt(i + 2)));
+					Double previous = weights.get(key);
+					weights.put(key, Double.valueOf(previous == null ? weight : previous.doubleValue() + weight));
+					total += weight;
+				}
+			}
+			for (Map.Entry<Long, Double> entry : weights.entrySet()) {
+				float[] languageWeights = profiles.get(entry.getKey());
+				if (languageWeights == null) {
+					languageWeights = new float[LANGUAGES.length];
+					profiles.put(entry.getKey(), languageWeights);
+				}
+				languageWeights[l] = (float) Math.log(1 + entry.getValue().doubleValue() / total / UNSEEN);
+			}
+		}
+		return profiles;
+	}
+}
@@ -0,0 +1,155 @@
+package com.mnsuk.converter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A budget for the heap used by the converters in the JVM, so that several large batches
+ * arriving together wait for each other instead of running the JVM out of memory.
+ * <p>
+ * The heap each batch and each document being analysed will use is estimated from its size
+ * and reserved before the work starts; work that would take the reservations over the budget
+ * waits until enough is freed. The estimates are rough multiples of the input size, not
+ * measurements. A reservation larger than the whole budget waits until it can run alone.
+ * So that batches holding reservations cannot all wait on each other, a document is always
+ * let in when no other document is being analysed. Work given a time limit waits no longer
+ * than that, so a batch or document cannot wait past its deadline.
+ * <p>
+ * One budget is shared by all converters in the JVM configured with the same size.
+ */
+public class MemoryBudget {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryBudget.class);
+
+	/** Estimated heap bytes to analyse a character of text: the text, its copy in the CAS,
+	 *  the annotations on it and the entities taken from them. */
+	public static final int ANALYSIS_BYTES_PER_CHAR = 40;
+	/** Estimated heap bytes for each byte of a batch read into a DOM: the input string, the
+	 *  DOM and the output string. */
+	public static final int DOM_BYTES_PER_INPUT_BYTE = 12;
+	/** Estimated heap bytes for each byte of a batch read and written as a stream: the
+	 *  output buffer. */
+	public static final int STREAMING_BYTES_PER_INPUT_BYTE = 2;
+
+	private static final Map<Long, MemoryBudget> BUDGETS = new HashMap<Long, MemoryBudget>();
+
+	private final long budget;
+	private long reserved = 0;
+	// the part of the reservations held by documents being analysed
+	private long analysing = 0;
+	private long maxReserved = 0;
+	private int refCount = 0;
+
+	private MemoryBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Get the budget of a size shared by the converters in the JVM, creating it for the
+	 * first converter. It must be given back with {@link #release()}.
+	 *
+	 * @param budget The budget in bytes
+	 */
+	public static MemoryBudget acquire(long budget) {
+		synchronized (BUDGETS) {
+			MemoryBudget memoryBudget = BUDGETS.get(Long.valueOf(budget));
+			if (memoryBudget == null) {
+				memoryBudget = new MemoryBudget(budget);
+				BUDGETS.put(Long.valueOf(budget), memoryBudget);
+				LOGGER.info("Memory budget of " + budget + " bytes for analysis");
+			}
+			memoryBudget.refCount++;
+			return memoryBudget;
+		}
+	}
+
+	public void release() {
+		synchronized (BUDGETS) {
+			if (--refCount == 0)
+				BUDGETS.remove(Long.valueOf(budget));
+		}
+	}
+
+	/**
+	 * Reserve the heap for a batch, waiting while the budget is in use.
+	 *
+	 * @param timeoutNanos How long to wait for room
+	 * @return The bytes reserved, to be given to {@link #free(long, boolean)}
+	 * @throws TimeoutException if there was no room in time
+	 */
+	public long reserveBatch(long bytes, long timeoutNanos, ConverterMetrics metrics)
+			throws InterruptedException, TimeoutException {
+		return reserve(bytes, false, timeoutNanos, metrics);
+	}
+
+	/**
+	 * Reserve the heap for analysing a document, waiting while the budget is in use and
+	 * another document is being analysed.
+	 *
+	 * @param timeoutNanos How long to wait for room
+	 * @return The bytes reserved, to be given to {@link #free(long, boolean)}
+	 * @throws TimeoutException if there was no room in time
+	 */
+	public long reserveAnalysis(long bytes, long timeoutNanos, ConverterMetrics metrics)
+			throws InterruptedException, TimeoutException {
+		return reserve(bytes, true, timeoutNanos, metrics);
+	}
+
+	private synchronized long reserve(long bytes, boolean analysis, long timeoutNanos, ConverterMetrics metrics)
+			throws InterruptedException, TimeoutException {
+		bytes = Math.min(bytes, budget);
+		long end = System.nanoTime() + timeoutNanos;
+		long remaining = timeoutNanos;
+		boolean waited = false;
+		while (reserved + bytes > budget && (analysis ? analysing : reserved) > 0) {
+			if (remaining <= 0)
+				throw new TimeoutException("No room in the memory budget in "
+						+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+			if (!waited) {
+				waited = true;
+				metrics.recordAdmissionWait();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = end - System.nanoTime();
+		}
+		reserved += bytes;
+		if (analysis)
+			analysing += bytes;
+		maxReserved = Math.max(maxReserved, reserved);
+		return bytes;
+	}
+
+	/**
+	 * Give back a reservation.
+	 *
+	 * @param analysis Whether it was reserved for analysing a document
+	 */
+	public synchronized void free(long bytes, boolean analysis) {
+		reserved -= bytes;
+		if (analysis)
+			analysing -= bytes;
+		notifyAll();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return The bytes currently reserved by all converters sharing the budget
+	 */
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	/**
+	 * @return The most bytes reserved at once
+	 */
+	public synchronized long getMaxReserved() {
+		return maxReserved;
+	}
+}
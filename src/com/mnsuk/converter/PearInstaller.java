@@ -0,0 +1,384 @@
+package com.mnsuk.converter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.uima.pear.tools.InstallationDescriptor;
+import org.apache.uima.pear.tools.PackageBrowser;
+import org.apache.uima.pear.tools.PackageInstaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * Installs pear files into the pear run folder, one installation per pear content hash.
+ * <p>
+ * A pear is installed into <code>run/&lt;componentId&gt;-&lt;hash&gt;</code>. The pear installer
+ * writes absolute paths into the installed descriptors, so the installation cannot be moved
+ * once made. Instead the directory is a staging directory until its marker file is renamed
+ * into it, atomically, when installation has finished. Only installations with a marker are
+ * used, and one with a marker matching the pear's hash is used as is, whatever the pear's
+ * timestamp.
+ * <p>
+ * Installations of a component are serialised between processes with the lock file
+ * <code>run/&lt;componentId&gt;.lock</code>, so processes starting together share one
+ * installation. Every process using an installation holds a shared lock on its
+ * <code>in-use.lock</code> file. After installing, the other installations of the component
+ * that no process holds are deleted.
+ */
+public class PearInstaller {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PearInstaller.class);
+
+	private static final String MARKER = "installed.properties";
+	private static final String IN_USE_LOCK = "in-use.lock";
+	private static final int HASH_LENGTH = 16;
+
+	// file locks are held by the JVM, so users in this JVM share one lock per installation
+	private static final Map<String, InUse> IN_USE = new HashMap<String, InUse>();
+	private static final Object JVM_LOCK = new Object();
+
+	private final File pearRun;
+
+	/**
+	 * @param pearRun The pear run folder
+	 */
+	public PearInstaller(File pearRun) {
+		this.pearRun = pearRun;
+	}
+
+	/**
+	 * An installed pear, in use until it is closed.
+	 */
+	public static final class Installation implements Closeable {
+		private final InUse inUse;
+		private final String componentId;
+		private PackageBrowser browser = null;
+		private boolean closed = false;
+
+		private Installation(InUse inUse, String componentId) {
+			this.inUse = inUse;
+			this.componentId = componentId;
+		}
+
+		public PackageBrowser getPackageBrowser() {
+			return browser;
+		}
+
+		public File getDirectory() {
+			return inUse.dir;
+		}
+
+		/**
+		 * Identifies the pear content: the component ID and content hash.
+		 */
+		public String getId() {
+			return inUse.dir.getName();
+		}
+
+		/**
+		 * The pear's main component ID.
+		 */
+		public String getComponentId() {
+			return componentId;
+		}
+
+		/**
+		 * Stop using the installation, so it can be deleted once it has been replaced.
+		 */
+		@Override
+		public void close() {
+			synchronized (JVM_LOCK) {
+				if (closed)
+					return;
+				closed = true;
+				if (--inUse.refCount == 0) {
+					IN_USE.remove(inUse.key);
+					inUse.unlock();
+				}
+			}
+		}
+	}
+
+	private static final class InUse {
+		private final String key;
+		private final File dir;
+		private final RandomAccessFile file;
+		private final FileLock lock;
+		private int refCount = 0;
+
+		private InUse(String key, File dir, RandomAccessFile file, FileLock lock) {
+			this.key = key;
+			this.dir = dir;
+			this.file = file;
+			this.lock = lock;
+		}
+
+		private void unlock() {
+			try {
+				lock.release();
+			} catch (IOException e) {
+				LOGGER.debug("Error releasing pear installation lock", e);
+			}
+			closeQuietly(file);
+		}
+	}
+
+	/**
+	 * Get the installation of a pear, installing it if no installation with the same content
+	 * exists, and delete the component's installations that are no longer in use.
+	 *
+	 * @param pear The pear file
+	 * @param componentId The pear's main component ID
+	 * @return The installation, which must be closed when it is no longer used
+	 * @throws FatalConverterException if the pear cannot be installed
+	 */
+	public Installation install(File pear, String componentId) throws FatalConverterException {
+		String hash;
+		try {
+			hash = hash(pear);
+		} catch (IOException e) {
+			LOGGER.error("Error reading pear file: " + e.getMessage());
+			throw new FatalConverterException("Error reading pear file: " + e.getMessage(), (Throwable) e);
+		}
+		File dir = new File(pearRun, componentId + "-" + hash.substring(0, HASH_LENGTH));
+		synchronized (JVM_LOCK) {
+			RandomAccessFile lockFile = null;
+			try {
+				lockFile = new RandomAccessFile(new File(pearRun, componentId + ".lock"), "rw");
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					if (hash.equals(installedHash(dir))) {
+						LOGGER.info("Pear file: " + pear.getName() + " is already installed in " + dir);
+					} else {
+						if (dir.exists()) {
+							LOGGER.info("Removing incomplete pear installation " + dir);
+							delete(dir);
+						}
+						if (!dir.mkdir())
+							throw new IOException("Cannot create " + dir);
+						LOGGER.info("Installing pear file: " + pear.getName() + " into " + dir);
+						PackageInstaller.installPackage(dir, pear, true);
+						activate(dir, pear, hash);
+					}
+					Installation installation = open(dir, componentId);
+					collectGarbage(componentId, dir);
+					return installation;
+				} finally {
+					lock.release();
+				}
+			} catch (FatalConverterException e) {
+				throw e;
+			} catch (Exception e) {
+				LOGGER.error("Pear install error: " + e.getMessage());
+				throw new FatalConverterException("Pear install error: " + e.getMessage(), (Throwable) e);
+			} finally {
+				closeQuietly(lockFile);
+			}
+		}
+	}
+
+	/**
+	 * Lock an activated installation for use and check that it holds the expected component.
+	 */
+	private Installation open(File dir, String componentId) throws IOException, FatalConverterException {
+		String key = dir.getCanonicalPath();
+		InUse inUse = IN_USE.get(key);
+		if (inUse == null) {
+			RandomAccessFile file = new RandomAccessFile(new File(dir, IN_USE_LOCK), "rw");
+			try {
+				inUse = new InUse(key, dir, file, file.getChannel().lock(0L, Long.MAX_VALUE, true));
+			} catch (IOException e) {
+				closeQuietly(file);
+				throw e;
+			}
+			IN_USE.put(key, inUse);
+		}
+		inUse.refCount++;
+		Installation installation = new Installation(inUse, componentId);
+		boolean opened = false;
+		try {
+			PackageBrowser browser = new PackageBrowser(new File(dir, componentId));
+			InstallationDescriptor id = browser.getInstallationDescriptor();
+			if (id == null || !componentId.equals(id.getMainComponentId()))
+				throw new FatalConverterException("Specified Component ID does not match installed pear file in " + dir);
+			installation.browser = browser;
+			opened = true;
+			return installation;
+		} finally {
+			if (!opened)
+				installation.close();
+		}
+	}
+
+	/**
+	 * Write the marker that makes an installation usable, renaming it into place so it
+	 * appears complete or not at all.
+	 */
+	private static void activate(File dir, File pear, String hash) throws IOException {
+		Properties marker = new Properties();
+		marker.setProperty("hash", hash);
+		marker.setProperty("pear", pear.getName());
+		marker.setProperty("installed", String.valueOf(System.currentTimeMillis()));
+		File tmp = new File(dir, MARKER + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			marker.store(out, "Pear installation");
+			out.flush();
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), new File(dir, MARKER).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), new File(dir, MARKER).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return The hash in an installation's marker, or null if it has not been activated
+	 */
+	private static String installedHash(File dir) {
+		File marker = new File(dir, MARKER);
+		if (!marker.isFile())
+			return null;
+		Properties props = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(marker);
+			props.load(in);
+		} catch (IOException e) {
+			LOGGER.warn("Cannot read pear installation marker " + marker + ": " + e.getMessage());
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+		return props.getProperty("hash");
+	}
+
+	/**
+	 * Delete the component's other installations that no process is using. Must be called
+	 * holding the component's install lock, so nothing can start using them meanwhile.
+	 */
+	private void collectGarbage(String componentId, File current) {
+		File[] dirs = pearRun.listFiles();
+		if (dirs == null)
+			return;
+		String prefix = componentId + "-";
+		for (File dir : dirs) {
+			String name = dir.getName();
+			if (!dir.isDirectory() || dir.equals(current) || !name.startsWith(prefix)
+					|| !isHash(name.substring(prefix.length())))
+				continue;
+			try {
+				if (IN_USE.containsKey(dir.getCanonicalPath()) || isLocked(dir))
+					continue;
+				delete(dir);
+				LOGGER.info("Deleted unused pear installation " + dir);
+			} catch (IOException e) {
+				LOGGER.warn("Cannot delete unused pear installation " + dir + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return true if another process holds the installation's in use lock
+	 */
+	private static boolean isLocked(File dir) throws IOException {
+		File lockFile = new File(dir, IN_USE_LOCK);
+		if (!lockFile.isFile())
+			return false;
+		RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+		try {
+			FileLock lock = file.getChannel().tryLock();
+			if (lock == null)
+				return true;
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			return true;
+		} finally {
+			closeQuietly(file);
+		}
+	}
+
+	private static boolean isHash(String s) {
+		if (s.length() != HASH_LENGTH)
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * SHA-256 of a file's content, as lower case hex.
+	 */
+	static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Delete a file or a directory and its children.
+	 * @param file The directory to delete.
+	 * @throws IOException Exception when problem occurs during deleting the directory.
+	 */
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File childFile : children) {
+				delete(childFile);
+			}
+		}
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Cannot delete " + file);
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				LOGGER.debug("Error closing file", e);
+			}
+		}
+	}
+}
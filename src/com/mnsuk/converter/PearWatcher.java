@@ -0,0 +1,138 @@
+package com.mnsuk.converter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * Watches the pear file of a running engine and swaps in a new analysis engine when the
+ * pear changes.
+ * <p>
+ * The pear's timestamp and size are polled. Once a change has been stable for one poll,
+ * so a pear still being copied is not read, the pear is installed, a new analysis engine
+ * is created and warmed up on the watcher thread, and it is swapped into the running
+ * {@link UimaEngine}. A pear with the same content as the running one, or a different
+ * component ID, is not swapped in. Either way the engine is registered under the pear's new
+ * timestamp, so converters starting later share it. Swaps and failed swaps are counted in
+ * the pear's {@link ConverterMetrics}.
+ */
+public class PearWatcher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PearWatcher.class);
+
+	private final UimaEngineLoader loader;
+	private final UimaEngine engine;
+	private final File pearRun;
+	private final File pear;
+	private final String componentId;
+	private final ConverterMetrics metrics;
+	private final ScheduledExecutorService scheduler;
+
+	private File installed;
+	private long lastModified;
+	private long length;
+	private boolean pending = false;
+
+	/**
+	 * @param installed Installation directory of the pear the engine is running
+	 * @param intervalSeconds How often to check the pear file
+	 */
+	public PearWatcher(UimaEngineLoader loader, UimaEngine engine, File pearRun, File pear, String componentId,
+			File installed, int intervalSeconds) {
+		this.loader = loader;
+		this.engine = engine;
+		this.pearRun = pearRun;
+		this.pear = pear;
+		this.componentId = componentId;
+		this.installed = installed;
+		this.lastModified = pear.lastModified();
+		this.length = pear.length();
+		this.metrics = ConverterMetrics.acquire(pear.getName(), 0);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "uimaae-pear-watcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		LOGGER.info("Watching pear file " + pear + " for changes every " + intervalSeconds + " seconds");
+	}
+
+	/**
+	 * Stop watching. A swap in progress is interrupted.
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		try {
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		metrics.release();
+	}
+
+	private void poll() {
+		try {
+			long modified = pear.lastModified();
+			long size = pear.length();
+			if (modified == 0L) {
+				return; // missing, or being replaced
+			}
+			if (modified != lastModified || size != length) {
+				lastModified = modified;
+				length = size;
+				pending = true;
+				LOGGER.info("Pear file " + pear + " changed, waiting for it to settle");
+				return;
+			}
+			if (pending) {
+				pending = false;
+				swap();
+			}
+		} catch (RuntimeException e) {
+			// keep watching, the next change may install
+			metrics.recordEngineSwapFailure();
+			LOGGER.error("Error swapping in the changed pear file " + pear + ": " + e.getMessage());
+		}
+	}
+
+	private void swap() throws FatalConverterException {
+		long start = System.nanoTime();
+		String newComponentId = UimaEngineLoader.readComponentId(pear);
+		if (!componentId.equals(newComponentId)) {
+			LOGGER.warn("Changed pear file " + pear + " has component ID " + newComponentId + " instead of "
+					+ componentId + ", it will be used when the converter is restarted");
+			return;
+		}
+		PearInstaller.Installation installation = loader.installPear(pearRun, pear, componentId);
+		if (installation.getDirectory().equals(installed)) {
+			installation.close();
+			UimaEngineRegistry.rekey(engine, lastModified);
+			LOGGER.info("Pear file " + pear + " content is unchanged, keeping the running analysis engine");
+			return;
+		}
+		AnalysisEngine ae = loader.createAnalysisEngine(installation);
+		engine.swap(ae, installation);
+		installed = installation.getDirectory();
+		UimaEngineRegistry.rekey(engine, lastModified);
+		metrics.recordEngineSwap(System.nanoTime() - start);
+		LOGGER.info("Swapped in analysis engine from " + installed + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+	}
+}
@@ -0,0 +1,436 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the entities found in documents, so unchanged documents are not analysed again
+ * on a recrawl.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the filtered document text, the pear content the
+ * analysis engine was created from and the configured types. Recently used entries are
+ * kept in memory up to a byte budget. Optionally entries are also written to a memory
+ * mapped file under the pear support folder, which survives restarts. The file is written
+ * as a log; when it is full it is started again. Entries from another pear are never
+ * returned, and the cache is emptied when the pear changes.
+ * <p>
+ * One cache is shared by all converters in the JVM configured with the same pear file and
+ * cache sizes. Only one cache can use a cache file; others run with the memory tier only.
+ */
+public class ResultCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+	private static final Map<String, ResultCache> CACHES = new HashMap<String, ResultCache>();
+	private static final int FORMAT = 1;
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final String name;
+	private final String registryKey;
+	private final long memoryBudget;
+	private final ConverterMetrics metrics;
+	private final LinkedHashMap<Key, EntityBuffer> memory = new LinkedHashMap<Key, EntityBuffer>(256, 0.75f, true);
+	private long memoryBytes = 0;
+	private DiskTier disk = null;
+	private volatile String modelId = null;
+	private int refCount = 0;
+
+	/**
+	 * Identifies the entities of one document for one pear and type configuration.
+	 */
+	public static final class Key {
+		private final byte[] hash;
+		private final String modelId;
+		private final int hashCode;
+
+		private Key(byte[] hash, String modelId) {
+			this.hash = hash;
+			this.modelId = modelId;
+			this.hashCode = Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+		}
+	}
+
+	private ResultCache(String name, String registryKey, long memoryBudget, ConverterMetrics metrics) {
+		this.name = name;
+		this.registryKey = registryKey;
+		this.memoryBudget = memoryBudget;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Get the cache for a pear file and cache sizes, creating it on first use. Every call
+	 * must be matched by a call to {@link #release()}.
+	 *
+	 * @param name Name of the pear file
+	 * @param memoryBudget Bytes of entities to keep in memory
+	 * @param diskFile File for the disk tier, or null for none
+	 * @param diskSize Size of the disk tier file in bytes
+	 * @param metrics Where hits, misses and evictions are counted
+	 */
+	public static ResultCache acquire(String name, long memoryBudget, File diskFile, long diskSize,
+			ConverterMetrics metrics) {
+		boolean onDisk = diskFile != null && diskSize > 0;
+		String key = name + " (" + memoryBudget + " bytes" + (onDisk ? ", " + diskSize + " bytes in " + diskFile : "") + ")";
+		synchronized (CACHES) {
+			ResultCache cache = CACHES.get(key);
+			if (cache == null) {
+				cache = new ResultCache(name, key, memoryBudget, metrics);
+				if (onDisk)
+					cache.disk = DiskTier.open(diskFile, diskSize);
+				CACHES.put(key, cache);
+				LOGGER.info("Result cache for " + name + ": " + memoryBudget + " bytes in memory"
+						+ (cache.disk == null ? "" : ", " + diskSize + " bytes in " + diskFile));
+			}
+			cache.refCount++;
+			return cache;
+		}
+	}
+
+	/**
+	 * Stop using the cache. The disk tier is closed when the last converter releases it.
+	 */
+	public void release() {
+		synchronized (CACHES) {
+			if (--refCount > 0)
+				return;
+			CACHES.remove(registryKey);
+		}
+		synchronized (this) {
+			memory.clear();
+			memoryBytes = 0;
+			if (disk != null) {
+				disk.close();
+				disk = null;
+			}
+		}
+	}
+
+	/**
+	 * Hash of the type configuration, part of every key.
+	 */
+	public static byte[] configDigest(List<String> contentTypes, boolean annotationOffsets) {
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		digest.update((byte) FORMAT);
+		digest.update((byte) (annotationOffsets ? 1 : 0));
+		if (contentTypes != null) {
+			for (String type : contentTypes) {
+				digest.update(type.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * The key for a document's filtered text. If the pear has changed since the last key
+	 * the cache is emptied.
+	 *
+	 * @param config From {@link #configDigest(List, boolean)}
+	 * @param modelId The engine's {@link UimaEngine#getModelId()}
+	 */
+	public Key key(byte[] config, String modelId, String text) {
+		if (!modelId.equals(this.modelId))
+			changeModel(modelId);
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		digest.update(config);
+		digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(text.getBytes(StandardCharsets.UTF_8));
+		return new Key(digest.digest(), modelId);
+	}
+
+	/**
+	 * @return The cached entities, which must not be changed, or null if there are none
+	 */
+	public EntityBuffer get(Key key) {
+		EntityBuffer entities;
+		synchronized (this) {
+			entities = memory.get(key);
+			if (entities == null && disk != null && key.modelId.equals(modelId)) {
+				entities = disk.get(key.hash);
+				if (entities != null)
+					addToMemory(key, entities);
+			}
+		}
+		if (entities == null)
+			metrics.recordResultCacheMiss();
+		else
+			metrics.recordResultCacheHit();
+		return entities;
+	}
+
+	/**
+	 * Cache the entities of a document. They must not be changed afterwards.
+	 */
+	public void put(Key key, EntityBuffer entities) {
+		synchronized (this) {
+			if (!key.modelId.equals(modelId))
+				return; // analysed by an engine that has since been replaced
+			addToMemory(key, entities);
+			if (disk != null) {
+				int evicted = disk.put(key.hash, entities);
+				if (evicted > 0)
+					metrics.recordResultCacheEvictions(evicted);
+			}
+		}
+	}
+
+	private synchronized void changeModel(String newModelId) {
+		if (newModelId.equals(modelId))
+			return;
+		if (modelId != null || (disk != null && !newModelId.equals(disk.getModelId()))) {
+			int evicted = memory.size();
+			memory.clear();
+			memoryBytes = 0;
+			if (disk != null)
+				evicted += disk.reset(newModelId);
+			if (evicted > 0) {
+				metrics.recordResultCacheEvictions(evicted);
+				LOGGER.info("Pear changed, emptied the result cache for " + name);
+			}
+		}
+		modelId = newModelId;
+	}
+
+	private void addToMemory(Key key, EntityBuffer entities) {
+		long size = entities.getSizeBytes();
+		if (size > memoryBudget)
+			return;
+		EntityBuffer previous = memory.put(key, entities);
+		if (previous != null)
+			memoryBytes -= previous.getSizeBytes();
+		memoryBytes += size;
+		int evicted = 0;
+		for (Iterator<EntityBuffer> it = memory.values().iterator(); memoryBytes > memoryBudget && it.hasNext();) {
+			memoryBytes -= it.next().getSizeBytes();
+			it.remove();
+			evicted++;
+		}
+		if (evicted > 0)
+			metrics.recordResultCacheEvictions(evicted);
+	}
+
+	/**
+	 * A memory mapped log of encoded entities, with an index of where each key's entities
+	 * are held in memory.
+	 * <p>
+	 * The file starts with a header holding the format, the end of the log and the pear the
+	 * entries belong to. Each entry is its length, its key hash and its encoded entities.
+	 * The end of the log is only moved after an entry has been written, so an entry being
+	 * written when the process stopped is ignored.
+	 */
+	private static final class DiskTier {
+		private static final int MAGIC = 0x55414543; // "UAEC"
+		private static final int HEADER_SIZE = 512;
+		private static final int MAX_MODEL_ID = HEADER_SIZE - 16;
+		private static final int HASH_SIZE = 32;
+
+		private final File file;
+		private final RandomAccessFile raf;
+		private final FileLock lock;
+		private final MappedByteBuffer buffer;
+		private final Map<Key, Integer> index = new HashMap<Key, Integer>();
+		private int end;
+		private String modelId;
+
+		private DiskTier(File file, RandomAccessFile raf, FileLock lock, MappedByteBuffer buffer) {
+			this.file = file;
+			this.raf = raf;
+			this.lock = lock;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return The disk tier, or null if the file cannot be used
+		 */
+		static DiskTier open(File file, long size) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(size, HEADER_SIZE * 2));
+			RandomAccessFile raf = null;
+			try {
+				File dir = file.getParentFile();
+				if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Cannot create " + dir);
+				raf = new RandomAccessFile(file, "rw");
+				FileLock lock;
+				try {
+					lock = raf.getChannel().tryLock();
+				} catch (OverlappingFileLockException e) {
+					lock = null;
+				}
+				if (lock == null) {
+					LOGGER.info("Result cache file " + file + " is in use by another process, using the memory cache only");
+					raf.close();
+					return null;
+				}
+				raf.setLength(capacity);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+				DiskTier disk = new DiskTier(file, raf, lock, buffer);
+				disk.load();
+				return disk;
+			} catch (IOException e) {
+				LOGGER.warn("Cannot use result cache file " + file + ": " + e.getMessage());
+				if (raf != null) {
+					try {
+						raf.close();
+					} catch (IOException e1) {
+						LOGGER.debug("Error closing result cache file", e1);
+					}
+				}
+				return null;
+			}
+		}
+
+		String getModelId() {
+			return modelId;
+		}
+
+		/**
+		 * Read the header and index the entries, starting again if the file is not valid.
+		 */
+		private void load() {
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+				reset("");
+				return;
+			}
+			end = buffer.getInt(8);
+			int idLength = buffer.getInt(12);
+			if (end < HEADER_SIZE || end > buffer.capacity() || idLength < 0 || idLength > MAX_MODEL_ID) {
+				reset("");
+				return;
+			}
+			byte[] id = new byte[idLength];
+			ByteBuffer view = buffer.duplicate();
+			view.position(16);
+			view.get(id);
+			modelId = new String(id, StandardCharsets.UTF_8);
+			int position = HEADER_SIZE;
+			while (position + 4 + HASH_SIZE <= end) {
+				int length = buffer.getInt(position);
+				if (length < 0 || position + 4 + HASH_SIZE + length > end)
+					break;
+				byte[] hash = new byte[HASH_SIZE];
+				view.position(position + 4);
+				view.get(hash);
+				index.put(new Key(hash, modelId), Integer.valueOf(position));
+				position += 4 + HASH_SIZE + length;
+			}
+			LOGGER.info("Loaded " + index.size() + " cached results from " + file);
+		}
+
+		EntityBuffer get(byte[] hash) {
+			Integer position = index.get(new Key(hash, modelId));
+			if (position == null)
+				return null;
+			int p = position.intValue();
+			int length = buffer.getInt(p);
+			ByteBuffer view = buffer.duplicate();
+			view.position(p + 4 + HASH_SIZE);
+			view.limit(p + 4 + HASH_SIZE + length);
+			try {
+				return EntityBuffer.decode(view.slice());
+			} catch (IllegalArgumentException e) {
+				LOGGER.warn("Invalid entry in result cache file " + file + ": " + e.getMessage());
+				index.remove(new Key(hash, modelId));
+				return null;
+			}
+		}
+
+		/**
+		 * Append an entry, starting the log again if it is full.
+		 *
+		 * @return The number of entries evicted to make room
+		 */
+		int put(byte[] hash, EntityBuffer entities) {
+			Key key = new Key(hash, modelId);
+			if (index.containsKey(key))
+				return 0;
+			byte[] encoded = entities.encode();
+			int size = 4 + HASH_SIZE + encoded.length;
+			if (HEADER_SIZE + size > buffer.capacity())
+				return 0;
+			int evicted = 0;
+			if ((long) end + size > buffer.capacity())
+				evicted = reset(modelId);
+			ByteBuffer view = buffer.duplicate();
+			view.position(end);
+			view.putInt(encoded.length);
+			view.put(hash);
+			view.put(encoded);
+			index.put(key, Integer.valueOf(end));
+			end += size;
+			buffer.putInt(8, end);
+			return evicted;
+		}
+
+		/**
+		 * Empty the log and set the pear its entries belong to.
+		 *
+		 * @return The number of entries removed
+		 */
+		int reset(String newModelId) {
+			int removed = index.size();
+			index.clear();
+			byte[] id = newModelId.getBytes(StandardCharsets.UTF_8);
+			if (id.length > MAX_MODEL_ID)
+				id = Arrays.copyOf(id, MAX_MODEL_ID);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, FORMAT);
+			buffer.putInt(8, HEADER_SIZE);
+			buffer.putInt(12, id.length);
+			ByteBuffer view = buffer.duplicate();
+			view.position(16);
+			view.put(id);
+			end = HEADER_SIZE;
+			modelId = newModelId;
+			return removed;
+		}
+
+		void close() {
+			try {
+				buffer.force();
+				lock.release();
+				raf.close();
+			} catch (IOException e) {
+				LOGGER.warn("Error closing result cache file " + file + ": " + e.getMessage());
+			}
+		}
+	}
+}
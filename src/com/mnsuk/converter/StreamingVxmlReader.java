@@ -0,0 +1,485 @@
+package com.mnsuk.converter;
+
+import static com.mnsuk.converter.VxmlBytes.bytes;
+import static com.mnsuk.converter.VxmlBytes.endOfTag;
+import static com.mnsuk.converter.VxmlBytes.indexOf;
+import static com.mnsuk.converter.VxmlBytes.isName;
+import static com.mnsuk.converter.VxmlBytes.startsWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Reads the text to analyse from each document of a VXML batch straight from the UTF-8
+ * input, without decoding the batch or building a DOM.
+ * <p>
+ * {@link #begin(byte[])} finds the documents and, in each, the <code>content</code>
+ * elements that pass the content list. Nothing is decoded until
+ * {@link #filteredContents(int)} asks for a document, and then only its filtered contents
+ * are decoded, into a reusable character buffer, joined by newlines. Contents that are
+ * filtered out are skipped over without being decoded. The input itself is copied to the
+ * output untouched by the {@link StreamingVxmlWriter}. The reader is not thread safe.
+ */
+public class StreamingVxmlReader {
+	// don't keep a buffer larger than this between batches
+	private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+	private static final byte[] DOCUMENT = bytes("document");
+	private static final byte[] CONTENT = bytes("content");
+	private static final String NAME = "name";
+	private static final String URL = "url";
+
+	private final Set<String> contentList;
+	private final boolean excludeByDefault;
+
+	private byte[] input = null;
+	private int documentCount = 0;
+	// the filtered contents of document d are contents firstContent[d] to firstContent[d + 1] - 1
+	private int[] firstContent = new int[65];
+	// the attributes of the start tag of document d are between tagStarts[d] and tagEnds[d]
+	private int[] tagStarts = new int[64];
+	private int[] tagEnds = new int[64];
+	// start and end offsets of the text of each filtered content
+	private int[] contentStarts = new int[64];
+	private int[] contentEnds = new int[64];
+	private int contentCount = 0;
+	private char[] chars = new char[64 * 1024];
+	private int length = 0;
+
+	/**
+	 * @param contentList Names of the contents to exclude, or to include if excluding by default
+	 * @param excludeByDefault Whether contents not in the list are excluded
+	 */
+	public StreamingVxmlReader(Set<String> contentList, boolean excludeByDefault) {
+		this.contentList = contentList;
+		this.excludeByDefault = excludeByDefault;
+	}
+
+	/**
+	 * Start reading a batch.
+	 *
+	 * @param data UTF-8 VXML input
+	 * @return The number of documents found, or -1 if the input cannot be streamed (nested
+	 *         documents or unterminated markup) and the DOM input must be used instead
+	 */
+	public int begin(byte[] data) {
+		input = data;
+		documentCount = 0;
+		contentCount = 0;
+		if (data == null)
+			return -1;
+		if (scan(data))
+			return documentCount;
+		input = null;
+		return -1;
+	}
+
+	/**
+	 * The filtered contents of a document, decoded and joined by newlines.
+	 *
+	 * @return The text, empty if the document has no filtered contents
+	 */
+	public String filteredContents(int index) {
+		if (index < 0 || index >= documentCount)
+			throw new IllegalStateException("Document " + index + " out of range, " + documentCount + " documents");
+		length = 0;
+		for (int c = firstContent[index]; c < firstContent[index + 1]; c++) {
+			int start = contentStarts[c];
+			int end = contentEnds[c];
+			if (start == end)
+				continue;
+			// UTF-8 never takes fewer bytes than UTF-16 chars, nor do references
+			ensureCapacity(length + 1 + end - start);
+			int before = length;
+			if (length > 0)
+				chars[length++] = '\n';
+			int textStart = length;
+			decode(input, start, end);
+			// a content holding only comments or processing instructions is empty too
+			if (length == textStart)
+				length = before;
+		}
+		String text = new String(chars, 0, length);
+		if (chars.length > MAX_RETAINED_CAPACITY)
+			chars = new char[64 * 1024];
+		return text;
+	}
+
+	/**
+	 * @return The <code>url</code> attribute of a document, or null if it has none
+	 */
+	public String url(int index) {
+		if (index < 0 || index >= documentCount)
+			throw new IllegalStateException("Document " + index + " out of range, " + documentCount + " documents");
+		return attribute(input, tagStarts[index], tagEnds[index], URL);
+	}
+
+	/**
+	 * Find the documents and the text of their filtered contents, skipping comments, CDATA
+	 * sections, processing instructions and declarations.
+	 *
+	 * @return false if documents are nested or markup is not terminated
+	 */
+	private boolean scan(byte[] data) {
+		boolean inDocument = false;
+		int i = 0;
+		int n = data.length;
+		while (i < n) {
+			if (data[i] != '<') {
+				i++;
+				continue;
+			}
+			if (i + 1 == n)
+				return false;
+			int skipped = skipMarkup(data, i);
+			if (skipped != i) {
+				if (skipped < 0)
+					return false;
+				i = skipped;
+			} else if (data[i + 1] == '/' && isName(data, i + 2, DOCUMENT)) {
+				if (!inDocument)
+					return false;
+				inDocument = false;
+				documentCount++;
+				i = endOfTag(data, i);
+				if (i < 0)
+					return false;
+				i += 1;
+			} else if (isName(data, i + 1, DOCUMENT)) {
+				if (inDocument)
+					return false;
+				int end = endOfTag(data, i + 1 + DOCUMENT.length);
+				if (end < 0)
+					return false;
+				startDocument(i + 1 + DOCUMENT.length, data[end - 1] == '/' ? end - 1 : end);
+				if (data[end - 1] == '/')
+					documentCount++;
+				else
+					inDocument = true;
+				i = end + 1;
+			} else if (inDocument && isName(data, i + 1, CONTENT)) {
+				i = scanContent(data, i);
+				if (i < 0)
+					return false;
+			} else {
+				i++;
+			}
+		}
+		return !inDocument;
+	}
+
+	/**
+	 * Record the text of a content element if it passes the content list.
+	 *
+	 * @return The position after the element, or -1 if it is not terminated
+	 */
+	private int scanContent(byte[] data, int from) {
+		int tagEnd = endOfTag(data, from + 1 + CONTENT.length);
+		if (tagEnd < 0)
+			return -1;
+		if (data[tagEnd - 1] == '/')
+			return tagEnd + 1;
+		int textEnd = endOfElement(data, tagEnd + 1);
+		if (textEnd < 0)
+			return -1;
+		int end = endOfTag(data, textEnd);
+		if (end < 0)
+			return -1;
+		String name = attribute(data, from + 1 + CONTENT.length, tagEnd, NAME);
+		if (contentList.contains(name) == excludeByDefault)
+			addContent(tagEnd + 1, textEnd);
+		return end + 1;
+	}
+
+	/**
+	 * Position of the end tag closing the element whose content starts at <code>from</code>.
+	 */
+	private static int endOfElement(byte[] data, int from) {
+		int depth = 0;
+		int i = from;
+		int n = data.length;
+		while (i < n) {
+			if (data[i] != '<') {
+				i++;
+				continue;
+			}
+			if (i + 1 == n)
+				return -1;
+			int skipped = skipMarkup(data, i);
+			if (skipped != i) {
+				if (skipped < 0)
+					return -1;
+				i = skipped;
+				continue;
+			}
+			boolean endTag = data[i + 1] == '/';
+			if (endTag && depth == 0)
+				return i;
+			int end = endOfTag(data, i + 1);
+			if (end < 0)
+				return -1;
+			if (endTag)
+				depth--;
+			else if (data[end - 1] != '/')
+				depth++;
+			i = end + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Skip a comment, CDATA section, processing instruction or declaration.
+	 *
+	 * @return The position after it, <code>i</code> if there is none at <code>i</code>, or
+	 *         -1 if it is not terminated
+	 */
+	private static int skipMarkup(byte[] data, int i) {
+		int end;
+		if (startsWith(data, i, "<!--")) {
+			end = indexOf(data, i + 4, "-->");
+			return end < 0 ? -1 : end + 3;
+		} else if (startsWith(data, i, "<![CDATA[")) {
+			end = indexOf(data, i + 9, "]]>");
+			return end < 0 ? -1 : end + 3;
+		} else if (startsWith(data, i, "<?")) {
+			end = indexOf(data, i + 2, "?>");
+			return end < 0 ? -1 : end + 2;
+		} else if (startsWith(data, i, "<!")) {
+			end = indexOf(data, i + 2, ">");
+			return end < 0 ? -1 : end + 1;
+		}
+		return i;
+	}
+
+	/**
+	 * The value of an attribute of a start tag, or null if the tag does not have it.
+	 */
+	private String attribute(byte[] data, int from, int tagEnd, String name) {
+		int i = from;
+		while (i < tagEnd) {
+			while (i < tagEnd && isSpace(data[i]))
+				i++;
+			int nameStart = i;
+			while (i < tagEnd && data[i] != '=' && !isSpace(data[i]))
+				i++;
+			int nameEnd = i;
+			while (i < tagEnd && isSpace(data[i]))
+				i++;
+			if (i == tagEnd || data[i] != '=')
+				return null;
+			i++;
+			while (i < tagEnd && isSpace(data[i]))
+				i++;
+			if (i == tagEnd)
+				return null;
+			byte quote = data[i];
+			if (quote != '"' && quote != '\'')
+				return null;
+			int valueStart = ++i;
+			while (i < tagEnd && data[i] != quote)
+				i++;
+			if (nameEnd - nameStart == name.length() && startsWith(data, nameStart, name)) {
+				for (int j = valueStart; j < i; j++) {
+					if (data[j] == '&')
+						return decodeAttribute(data, valueStart, i);
+				}
+				return new String(data, valueStart, i - valueStart, StandardCharsets.UTF_8);
+			}
+			i++;
+		}
+		return null;
+	}
+
+	private String decodeAttribute(byte[] data, int start, int end) {
+		length = 0;
+		ensureCapacity(end - start);
+		decode(data, start, end);
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Decode element content into the character buffer: UTF-8 text, character and entity
+	 * references and CDATA sections. Tags, comments and processing instructions are left
+	 * out and line ends are normalised to newlines, as an XML parser does. The buffer must
+	 * have room for one character per byte.
+	 */
+	private void decode(byte[] data, int start, int end) {
+		char[] out = chars;
+		int len = length;
+		int i = start;
+		while (i < end) {
+			byte b = data[i];
+			if (b >= 0 && b != '<' && b != '&' && b != '\r') {
+				out[len++] = (char) b;
+				i++;
+			} else if (b == '<') {
+				length = len;
+				if (startsWith(data, i, "<![CDATA[")) {
+					int cdataEnd = indexOf(data, i + 9, "]]>");
+					decodeText(data, i + 9, cdataEnd);
+					i = cdataEnd + 3;
+				} else {
+					int skipped = skipMarkup(data, i);
+					i = skipped != i ? skipped : endOfTag(data, i + 1) + 1;
+				}
+				len = length;
+			} else if (b == '&') {
+				length = len;
+				i = decodeReference(data, i, end);
+				len = length;
+			} else {
+				length = len;
+				i = decodeChar(data, i, end);
+				len = length;
+			}
+		}
+		length = len;
+	}
+
+	/**
+	 * Decode UTF-8 text with no markup or references.
+	 */
+	private void decodeText(byte[] data, int start, int end) {
+		int i = start;
+		while (i < end) {
+			byte b = data[i];
+			if (b >= 0 && b != '\r') {
+				chars[length++] = (char) b;
+				i++;
+			} else {
+				i = decodeChar(data, i, end);
+			}
+		}
+	}
+
+	/**
+	 * Decode a carriage return or a multi-byte UTF-8 character, replacing a malformed one
+	 * with U+FFFD as the UTF-8 decoder does.
+	 *
+	 * @return The position after it
+	 */
+	private int decodeChar(byte[] data, int i, int end) {
+		int b0 = data[i] & 0xff;
+		if (b0 == '\r') {
+			chars[length++] = '\n';
+			return i + 1 < end && data[i + 1] == '\n' ? i + 2 : i + 1;
+		}
+		if (b0 >= 0xc2 && b0 < 0xe0 && i + 1 < end && isContinuation(data[i + 1])) {
+			chars[length++] = (char) (((b0 & 0x1f) << 6) | (data[i + 1] & 0x3f));
+			return i + 2;
+		}
+		if (b0 >= 0xe0 && b0 < 0xf0 && i + 2 < end && isContinuation(data[i + 1]) && isContinuation(data[i + 2])) {
+			int cp = ((b0 & 0x0f) << 12) | ((data[i + 1] & 0x3f) << 6) | (data[i + 2] & 0x3f);
+			if (cp >= 0x800 && !Character.isSurrogate((char) cp)) {
+				chars[length++] = (char) cp;
+				return i + 3;
+			}
+		} else if (b0 >= 0xf0 && b0 < 0xf5 && i + 3 < end && isContinuation(data[i + 1])
+				&& isContinuation(data[i + 2]) && isContinuation(data[i + 3])) {
+			int cp = ((b0 & 0x07) << 18) | ((data[i + 1] & 0x3f) << 12) | ((data[i + 2] & 0x3f) << 6)
+					| (data[i + 3] & 0x3f);
+			if (cp >= 0x10000 && cp <= Character.MAX_CODE_POINT) {
+				chars[length++] = Character.highSurrogate(cp);
+				chars[length++] = Character.lowSurrogate(cp);
+				return i + 4;
+			}
+		}
+		chars[length++] = '\uFFFD';
+		return i + 1;
+	}
+
+	/**
+	 * Decode a character or predefined entity reference. Anything else is kept as text.
+	 *
+	 * @return The position after it
+	 */
+	private int decodeReference(byte[] data, int i, int end) {
+		int semi = i + 1;
+		while (semi < end && semi - i <= 10 && data[semi] != ';')
+			semi++;
+		if (semi < end && data[semi] == ';') {
+			int cp = -1;
+			if (data[i + 1] == '#') {
+				cp = parseCharRef(data, i + 2, semi);
+			} else if (startsWith(data, i, "&amp;")) {
+				cp = '&';
+			} else if (startsWith(data, i, "&lt;")) {
+				cp = '<';
+			} else if (startsWith(data, i, "&gt;")) {
+				cp = '>';
+			} else if (startsWith(data, i, "&quot;")) {
+				cp = '"';
+			} else if (startsWith(data, i, "&apos;")) {
+				cp = '\'';
+			}
+			if (cp >= 0) {
+				length += Character.toChars(cp, chars, length);
+				return semi + 1;
+			}
+		}
+		chars[length++] = '&';
+		return i + 1;
+	}
+
+	/**
+	 * @return The code point of a character reference, or -1 if it is not valid
+	 */
+	private static int parseCharRef(byte[] data, int start, int end) {
+		int radix = 10;
+		if (start < end && (data[start] == 'x' || data[start] == 'X')) {
+			radix = 16;
+			start++;
+		}
+		if (start == end)
+			return -1;
+		int cp = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(data[i], radix);
+			if (digit < 0)
+				return -1;
+			cp = cp * radix + digit;
+			if (cp > Character.MAX_CODE_POINT)
+				return -1;
+		}
+		return cp;
+	}
+
+	private static boolean isContinuation(byte b) {
+		return (b & 0xc0) == 0x80;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private void startDocument(int tagStart, int tagEnd) {
+		if (documentCount + 1 >= firstContent.length)
+			firstContent = Arrays.copyOf(firstContent, firstContent.length * 2);
+		if (documentCount == tagStarts.length) {
+			tagStarts = Arrays.copyOf(tagStarts, documentCount * 2);
+			tagEnds = Arrays.copyOf(tagEnds, documentCount * 2);
+		}
+		tagStarts[documentCount] = tagStart;
+		tagEnds[documentCount] = tagEnd;
+		firstContent[documentCount] = contentCount;
+		firstContent[documentCount + 1] = contentCount;
+	}
+
+	private void addContent(int start, int end) {
+		if (contentCount == contentStarts.length) {
+			contentStarts = Arrays.copyOf(contentStarts, contentCount * 2);
+			contentEnds = Arrays.copyOf(contentEnds, contentCount * 2);
+		}
+		contentStarts[contentCount] = start;
+		contentEnds[contentCount] = end;
+		contentCount++;
+		firstContent[documentCount + 1] = contentCount;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > chars.length) {
+			chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+		}
+	}
+}
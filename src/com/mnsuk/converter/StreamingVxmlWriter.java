@@ -0,0 +1,324 @@
+package com.mnsuk.converter;
+
+import static com.mnsuk.converter.VxmlBytes.bytes;
+import static com.mnsuk.converter.VxmlBytes.endOfTag;
+import static com.mnsuk.converter.VxmlBytes.indexOf;
+import static com.mnsuk.converter.VxmlBytes.isName;
+import static com.mnsuk.converter.VxmlBytes.startsWith;
+
+import java.util.Arrays;
+
+/**
+ * Writes the converter output without building a DOM. The original VXML bytes are copied
+ * through unchanged and the <code>content</code> elements for each document are encoded
+ * straight into a reusable UTF-8 buffer just before that document's end tag.
+ * <p>
+ * Documents must be visited in input order with {@link #document(int)}, each followed by
+ * the entities for that document, then the output is collected with {@link #finish()}.
+ * The writer is not thread safe.
+ */
+public class StreamingVxmlWriter implements EntityWriter {
+	// don't keep a buffer larger than this between batches
+	private static final int MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+
+	private static final byte[] DOCUMENT = bytes("document");
+	private static final byte[] DOCUMENT_END = bytes("</document>");
+	private static final byte[] CONTENT_START = bytes("<content");
+	private static final byte[] CONTENT_END = bytes("</content>");
+	private static final byte[] SELF_CLOSE = bytes("/>");
+	private static final byte[] AMP = bytes("&amp;");
+	private static final byte[] LT = bytes("&lt;");
+	private static final byte[] GT = bytes("&gt;");
+	private static final byte[] QUOT = bytes("&quot;");
+	private static final byte[] TAB = bytes("&#9;");
+	private static final byte[] LF = bytes("&#10;");
+	private static final byte[] CR = bytes("&#13;");
+
+	private byte[] buf = new byte[64 * 1024];
+	private int count = 0;
+
+	private byte[] input = null;
+	// offset of the end tag ("</document>" or the "/>" of an empty element) of each document
+	private int[] documentEnds = new int[64];
+	private boolean[] selfClosing = new boolean[64];
+	private int documentCount = 0;
+	private int copied = 0;
+	private int current = -1;
+	private boolean currentHasContent = false;
+	private boolean inEntity = false;
+	private boolean entityHasText = false;
+
+	/**
+	 * Start writing the output for a batch.
+	 *
+	 * @param data UTF-8 VXML input
+	 * @return The number of documents found, or -1 if the input cannot be streamed (nested
+	 *         documents or unterminated markup) and the DOM output must be used instead
+	 */
+	public int begin(byte[] data) {
+		input = data;
+		count = 0;
+		copied = 0;
+		current = -1;
+		documentCount = 0;
+		if (data == null)
+			return -1;
+		ensureCapacity(data.length + data.length / 4);
+		return scan(data) ? documentCount : -1;
+	}
+
+	/**
+	 * Move to the document with the given index, copying the input up to its end tag.
+	 * Indexes must increase from one call to the next.
+	 */
+	public void document(int index) {
+		if (index <= current || index >= documentCount)
+			throw new IllegalStateException("Document " + index + " out of order, current " + current + " of " + documentCount);
+		closeCurrent();
+		current = index;
+		currentHasContent = false;
+		int end = documentEnds[index];
+		copy(end);
+	}
+
+	/**
+	 * Copy the rest of the input and return the output.
+	 */
+	public byte[] finish() {
+		closeCurrent();
+		current = documentCount;
+		copy(input.length);
+		byte[] result = Arrays.copyOf(buf, count);
+		input = null;
+		if (buf.length > MAX_RETAINED_CAPACITY)
+			buf = new byte[64 * 1024];
+		return result;
+	}
+
+	@Override
+	public void startEntity() {
+		if (current < 0 || current >= documentCount)
+			throw new IllegalStateException("No current document");
+		if (!currentHasContent && selfClosing[current]) {
+			write((byte) '>');
+		}
+		currentHasContent = true;
+		write(CONTENT_START);
+		inEntity = true;
+		entityHasText = false;
+	}
+
+	@Override
+	public void attribute(String name, String value) {
+		if (!inEntity || entityHasText)
+			throw new IllegalStateException("Attribute outside of a content start tag");
+		write((byte) ' ');
+		writeEscaped(name, true);
+		write((byte) '=');
+		write((byte) '"');
+		if (value != null)
+			writeEscaped(value, true);
+		write((byte) '"');
+	}
+
+	@Override
+	public void text(String text) {
+		if (!inEntity || entityHasText)
+			throw new IllegalStateException("Text outside of a content element");
+		write((byte) '>');
+		if (text != null)
+			writeEscaped(text, false);
+		entityHasText = true;
+	}
+
+	@Override
+	public void endEntity() {
+		if (!inEntity)
+			throw new IllegalStateException("No content element to end");
+		if (entityHasText)
+			write(CONTENT_END);
+		else
+			write(SELF_CLOSE);
+		inEntity = false;
+	}
+
+	/**
+	 * Finish the current document, turning an empty document element that was given
+	 * content into a start and end tag.
+	 */
+	private void closeCurrent() {
+		if (current >= 0 && current < documentCount && selfClosing[current]) {
+			if (currentHasContent) {
+				write(DOCUMENT_END);
+			} else {
+				write(SELF_CLOSE);
+			}
+			// skip the "/>" of the input
+			copied = documentEnds[current] + 2;
+		}
+	}
+
+	private void copy(int end) {
+		int len = end - copied;
+		if (len > 0) {
+			ensureCapacity(count + len);
+			System.arraycopy(input, copied, buf, count, len);
+			count += len;
+			copied = end;
+		}
+	}
+
+	private void writeEscaped(String s, boolean attribute) {
+		int len = s.length();
+		ensureCapacity(count + len * 3);
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				write(AMP);
+				break;
+			case '<':
+				write(LT);
+				break;
+			case '>':
+				write(GT);
+				break;
+			case '"':
+				if (attribute)
+					write(QUOT);
+				else
+					write((byte) c);
+				break;
+			case '\t':
+				if (attribute)
+					write(TAB);
+				else
+					write((byte) c);
+				break;
+			case '\n':
+				if (attribute)
+					write(LF);
+				else
+					write((byte) c);
+				break;
+			case '\r':
+				write(CR);
+				break;
+			default:
+				if (c < 0x80) {
+					write((byte) c);
+				} else if (c < 0x800) {
+					ensureCapacity(count + 2);
+					buf[count++] = (byte) (0xc0 | (c >> 6));
+					buf[count++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					ensureCapacity(count + 4);
+					buf[count++] = (byte) (0xf0 | (cp >> 18));
+					buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buf[count++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					write((byte) '?'); // unpaired surrogate, as the UTF-8 encoder does
+				} else {
+					ensureCapacity(count + 3);
+					buf[count++] = (byte) (0xe0 | (c >> 12));
+					buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buf[count++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+		}
+	}
+
+	private void write(byte b) {
+		ensureCapacity(count + 1);
+		buf[count++] = b;
+	}
+
+	private void write(byte[] b) {
+		ensureCapacity(count + b.length);
+		System.arraycopy(b, 0, buf, count, b.length);
+		count += b.length;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+		}
+	}
+
+	/**
+	 * Find the end of every document element, skipping comments, CDATA sections, processing
+	 * instructions and declarations.
+	 *
+	 * @return false if documents are nested or markup is not terminated
+	 */
+	private boolean scan(byte[] data) {
+		int depth = 0;
+		int i = 0;
+		int n = data.length;
+		while (i < n) {
+			if (data[i] != '<') {
+				i++;
+				continue;
+			}
+			if (i + 1 == n)
+				return false;
+			if (startsWith(data, i, "<!--")) {
+				i = indexOf(data, i + 4, "-->");
+				if (i < 0)
+					return false;
+				i += 3;
+			} else if (startsWith(data, i, "<![CDATA[")) {
+				i = indexOf(data, i + 9, "]]>");
+				if (i < 0)
+					return false;
+				i += 3;
+			} else if (startsWith(data, i, "<?")) {
+				i = indexOf(data, i + 2, "?>");
+				if (i < 0)
+					return false;
+				i += 2;
+			} else if (startsWith(data, i, "<!")) {
+				i = indexOf(data, i + 2, ">");
+				if (i < 0)
+					return false;
+				i += 1;
+			} else if (data[i + 1] == '/' && isName(data, i + 2, DOCUMENT)) {
+				if (depth != 1)
+					return false;
+				depth--;
+				addDocument(i, false);
+				i = indexOf(data, i, ">");
+				if (i < 0)
+					return false;
+				i += 1;
+			} else if (isName(data, i + 1, DOCUMENT)) {
+				if (depth != 0)
+					return false;
+				int end = endOfTag(data, i + 1 + DOCUMENT.length);
+				if (end < 0)
+					return false;
+				if (data[end - 1] == '/') {
+					addDocument(end - 1, true);
+				} else {
+					depth++;
+				}
+				i = end + 1;
+			} else {
+				i++;
+			}
+		}
+		return depth == 0;
+	}
+
+	private void addDocument(int end, boolean empty) {
+		if (documentCount == documentEnds.length) {
+			documentEnds = Arrays.copyOf(documentEnds, documentCount * 2);
+			selfClosing = Arrays.copyOf(selfClosing, documentCount * 2);
+		}
+		documentEnds[documentCount] = end;
+		selfClosing[documentCount] = empty;
+		documentCount++;
+	}
+}
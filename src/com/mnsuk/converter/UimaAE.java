@@ -12,42 +12,27 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Properties;
-import java.util.jar.JarFile;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.uima.UIMAFramework;
-import org.apache.uima.analysis_engine.AnalysisEngine;
-import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
-import org.apache.uima.cas.ArrayFS;
 import org.apache.uima.cas.CAS;
-import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.CASRuntimeException;
-import org.apache.uima.cas.ConstraintFactory;
-import org.apache.uima.cas.FSIterator;
-import org.apache.uima.cas.FSTypeConstraint;
-import org.apache.uima.cas.Feature;
-import org.apache.uima.cas.FeatureStructure;
-import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
-import org.apache.uima.cas.text.AnnotationFS;
-import org.apache.uima.cas.text.AnnotationIndex;
-import org.apache.uima.jcas.JCas;
-import org.apache.uima.jcas.JFSIndexRepository;
-import org.apache.uima.jcas.tcas.Annotation;
-import org.apache.uima.pear.tools.InstallationDescriptor;
-import org.apache.uima.pear.tools.PackageBrowser;
-import org.apache.uima.pear.tools.PackageInstaller;
-import org.apache.uima.resource.Resource;
-import org.apache.uima.resource.ResourceInitializationException;
-import org.apache.uima.resource.ResourceManager;
-import org.apache.uima.resource.ResourceSpecifier;
-import org.apache.uima.util.XMLInputSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
 
 import com.ibm.dataexplorer.converter.ByteArrayConverter;
 import com.ibm.dataexplorer.converter.ConversionException;
@@ -60,124 +45,224 @@ import com.vivisimo.parser.input.VXMLInputBuilder;
 
 public class UimaAE implements ByteArrayConverter {
 
-	private static final String SENTENCETYPE = "uima.tt.SentenceAnnotation";
-	private static final String PARAGRAPHTYPE = "uima.tt.ParagraphAnnotation";
-	private static final String LEMMATYPE = "uima.tt.Lemma";
-	private static final String LEMMAKEY = "key";
-	
 	private static final Logger LOGGER = LoggerFactory.getLogger(UimaAE.class);
+
+	// outcome of analysing a document
+	static final int NOT_ANALYSED = 0;
+	private static final int ANALYSED = 1;
+	private static final int ANALYSED_WITH_ERRORS = 2;
+
 	private UimaAEConverterOptions opts;
 	private boolean isAlive;
-	private UimaEngine engine = null;
+	// the engine for the converter's pear, and for each identified language its pear's engine
+	private Route mainRoute = null;
+	private Map<String, Route> languageRoutes = null;
+	private final List<Route> routes = new ArrayList<Route>();
+	private LanguageIdentifier languageIdentifier = null;
+	private StreamingVxmlReader inputReader = null;
+	private StreamingVxmlWriter outputWriter = null;
+	private ConverterMetrics metrics = null;
+	private EntityDiagnostics diagnostics = null;
+	private DocumentSegmenter segmenter = null;
+	private byte[] cacheConfig = null;
+	private CasStore casStore = null;
+	private CircuitBreaker breaker = null;
+	private MemoryBudget memoryBudget = null;
+	// whether the engine has analysed a document for the converter
+	private final AtomicBoolean firstAnalysed = new AtomicBoolean();
+	private ExecutorService executor = null;
+	// client of the analysis daemon, and whether the engines have been loaded in the converter
+	private AnalysisClient daemon = null;
+	private volatile boolean local = false;
+	private File pearSupportFolder;
 
 	public UimaAE(ConverterOptions options) throws FatalConverterException {
+		this(options, null);
+	}
+
+	/**
+	 * Create a converter using the given pear support folder rather than the one found from
+	 * the Engine installation.
+	 */
+	UimaAE(ConverterOptions options, File pearSupportFolder) throws FatalConverterException {
 		LOGGER.trace("entry");
 		this.opts = new UimaAEConverterOptions(options);
-		engine = getAnalysisEngine();
-		if (engine == null)
-			throw new FatalConverterException("Error creating UIMA analysis engine.");
+		long start = System.nanoTime();
+		this.pearSupportFolder = pearSupportFolder == null ? getPearSupportFolder() : pearSupportFolder;
+		metrics = ConverterMetrics.acquire(opts.pearFilenameStr, opts.metricsLogInterval);
+		if (opts.analysisDaemonPort > 0) {
+			daemon = new AnalysisClient(opts.analysisDaemonPort, UimaAEConverterOptions.analysisOptions(options),
+					opts.analysisDaemonMaxInFlight, opts.analysisDaemonTimeout);
+		} else {
+			try {
+				openLocal();
+			} catch (RuntimeException e) {
+				metrics.release();
+				throw e;
+			}
+			metrics.engineInit.record(System.nanoTime() - start);
+		}
+		if (opts.memoryBudget > 0) {
+			memoryBudget = MemoryBudget.acquire(opts.memoryBudget * 1024L * 1024L);
+			metrics.setMemoryBudget(memoryBudget);
+		}
+		if ((opts.streamingOutput || opts.streamingInput) && opts.excludeByDefault) {
+			// the DOM output builder is given exclude-by-default, which the streaming writer cannot honour
+			LOGGER.warn("Streaming input and output are not used with exclude-by-default, using DOM input and output");
+		} else {
+			if (opts.streamingOutput || opts.streamingInput) {
+				outputWriter = new StreamingVxmlWriter();
+			}
+			if (opts.streamingInput) {
+				inputReader = new StreamingVxmlReader(opts.contentList, opts.excludeByDefault);
+			}
+		}
+		if (opts.analysisThreads > 1) {
+			executor = Executors.newFixedThreadPool(opts.analysisThreads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "uimaae-analysis-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
 		isAlive = true;
 		LOGGER.trace("exit");
 	}
 
 	/**
-	 * @throws FatalConverterException
-	 * 
-	 * Get a UIMA analysis engine for the configured pear file. Update or use an existing 
-	 * one depending on the timestamp, if it has already been installed, or install and 
-	 * create a new one if it hasn't.
-	 */
-	private UimaEngine getAnalysisEngine() throws FatalConverterException {
-		UimaEngine result = null;
-		File pearSupportFolder = getPearSupportFolder();		
-		if (!pearSupportFolder.isDirectory()) {
-			String msg = pearSupportFolder != null ? "Installation directory " + getPearSupportFolder().toString() : "Pear support folder";
-			msg += " does not exist.";
-			LOGGER.error(msg);
-			throw new FatalConverterException(msg); 
-		}
-		File pearRepo = new File(pearSupportFolder, "repo");		
-		if (!pearRepo.isDirectory()) {
-			String msg = "Pear repository directory " + pearRepo.toString() + " does not exist.";
-			LOGGER.error(msg);
-			throw new FatalConverterException(msg); 
-		}
-		File pearRun = new File(pearSupportFolder, "run");
-		if (!pearRun.isDirectory()) {
-			String msg = "Installed pear directory " + pearRun.toString() + " does not exist.";
-			LOGGER.error(msg);
-			throw new FatalConverterException(msg);  
-		}
-		if (!pearRun.canWrite()) {
-			String msg = "Cannot write to the pear installation directory " + pearRun.toString();
-			LOGGER.error(msg);
-			throw new FatalConverterException(msg);  
-		}
-		File pear = new File(pearRepo, opts.pearFilenameStr);
-		if (!pear.isFile()) {
-			String msg = "Specified Pear file cannot be read: " + pear.toString();
-			LOGGER.error(msg);
-			throw new FatalConverterException(msg);
-		}
-		long pearModified = pear.lastModified();
-		InstallationDescriptor id;
-		try {
-			JarFile jpear = new JarFile(pear);
-			PackageBrowser pb = new PackageBrowser(jpear);
-			id = pb.getInstallationDescriptor();
-		} catch (Exception e) {
-			throw new FatalConverterException("Error reading pear file: " + e.getMessage(), (Throwable) e);
-		}
-		String pearCompId = id.getMainComponentId();
-		if (pearCompId == null) {
-			Date now = new Date();
-			pearCompId = pear.getName().replaceFirst("[.][^.]+$", "");
-			String msg = "PEAR file contains no component ID, using filename as ID.";
-			LOGGER.warn(msg);
-		}
-		LOGGER.info("PEAR file component ID is " + pearCompId);
-		File installedPearLoc = new File(pearRun, pearCompId);
-		PackageBrowser installedPear;
+	 * Load the engines, and everything else needed to analyse documents in the converter.
+	 */
+	private void openLocal() throws FatalConverterException {
 		try {
-			if (installedPearLoc.isDirectory()) { // it's already installed
-				long installModified = installedPearLoc.lastModified();
-				
-				installedPear = new PackageBrowser(installedPearLoc);
-				id = installedPear.getInstallationDescriptor();
-				if (id == null || !id.getMainComponentId().equals(pearCompId)) {
-					throw new FatalConverterException("Specified Component ID does not match existing installed pear file");
-				}
-				if (installModified < pearModified) { // needs an update
-					delete(installedPearLoc); 
-					installedPear = PackageInstaller.installPackage(pearRun, pear, true);
-					LOGGER.info("Updating pear file installation: " + opts.pearFilenameStr);
-				} else {
-					LOGGER.info("Pear file: " + opts.pearFilenameStr + " is already installed.");
-				}
-			} else {  // install it
-				installedPear = PackageInstaller.installPackage(pearRun, pear, true);
-				LOGGER.info("Installing pear file: " + opts.pearFilenameStr);
+			mainRoute = openRoute(opts.pearFilenameStr, pearSupportFolder);
+			if (opts.languageDetection) {
+				languageIdentifier = new LanguageIdentifier(opts.languageSampleSize);
+				if (!opts.languages.isEmpty())
+					languageRoutes = routeLanguages(pearSupportFolder);
 			}
-		} catch (Exception e) {
-			LOGGER.error("Pear install error: " + e.getMessage());
-			throw new FatalConverterException("Pear install error: " + e.getMessage(), (Throwable) e);
+		} catch (RuntimeException e) {
+			releaseRoutes();
+			throw e;
+		}
+		diagnostics = new EntityDiagnostics(opts.entityCountLogging, mainRoute.plan);
+		if (opts.segmentSize > 0) {
+			segmenter = new DocumentSegmenter(opts.segmentSize, opts.segmentOverlap);
+		}
+		if (opts.circuitBreakerFailures > 0) {
+			breaker = new CircuitBreaker(opts.circuitBreakerFailures, opts.circuitBreakerCooldown, metrics);
+		}
+		if (opts.resultCacheSize > 0) {
+			for (Route route : routes) {
+				File cacheFile = opts.resultCacheDiskSize > 0
+						? new File(new File(pearSupportFolder, "cache"), route.pearName + ".cache") : null;
+				route.cache = ResultCache.acquire(route.pearName, opts.resultCacheSize * 1024L * 1024L, cacheFile,
+						opts.resultCacheDiskSize * 1024L * 1024L, metrics);
+			}
+			cacheConfig = ResultCache.configDigest(opts.contentTypes, opts.annotationOffsets);
+		}
+		if (opts.casStorePath != null) {
+			File casStoreFolder = new File(opts.casStorePath);
+			if (!casStoreFolder.isAbsolute())
+				casStoreFolder = new File(pearSupportFolder, opts.casStorePath);
+			casStore = new CasStore(casStoreFolder, opts.casStoreTypes);
+		}
+		local = true;
+	}
+
+	/**
+	 * Load the engines the first time a document has to be analysed in the converter
+	 * because the analysis daemon could not analyse it.
+	 */
+	private void ensureLocal() throws FatalConverterException {
+		if (local)
+			return;
+		synchronized (this) {
+			if (!local) {
+				long start = System.nanoTime();
+				openLocal();
+				metrics.engineInit.record(System.nanoTime() - start);
+				LOGGER.info("Loaded the analysis engine to analyse documents the analysis daemon could not");
+			}
+		}
+	}
+
+	/**
+	 * A pear's analysis engine, with the extraction plan for its type system and its result
+	 * cache.
+	 */
+	private static final class Route {
+		private final String pearName;
+		private final UimaEngine engine;
+		private volatile ExtractionPlan plan = null;
+		private ResultCache cache = null;
+
+		private Route(String pearName, UimaEngine engine) {
+			this.pearName = pearName;
+			this.engine = engine;
 		}
+	}
+
+	/**
+	 * Get the engine for a pear in the pear repository and compile the type configuration
+	 * for it. The route is added to {@link #routes} as soon as it holds the engine.
+	 *
+	 * @throws FatalConverterException if the engine cannot be created or the configured types
+	 *         are not in its type system
+	 */
+	private Route openRoute(String pearName, File pearSupportFolder) throws FatalConverterException {
+		UimaEngine engine = new UimaEngineLoader(opts, pearSupportFolder).load(pearName);
+		if (engine == null)
+			throw new FatalConverterException("Error creating UIMA analysis engine.");
+		Route route = new Route(pearName, engine);
+		routes.add(route);
+		if (engine.getWarmUpNanos() > 0)
+			metrics.engineWarmUp.record(engine.getWarmUpNanos());
 		try {
-			ResourceManager rsMgr = UIMAFramework.newDefaultResourceManager();
-			XMLInputSource in = new XMLInputSource(installedPear.getComponentPearDescPath());
-			ResourceSpecifier rspec = UIMAFramework.getXMLParser().parseResourceSpecifier(in);
-			// tuning CAS
-			Properties perfProps = UIMAFramework.getDefaultPerformanceTuningProperties();
-			perfProps.setProperty(UIMAFramework.CAS_INITIAL_HEAP_SIZE, "1000000");
-			HashMap<String, Object> params = new HashMap<String, Object>();
-			params.put(Resource.PARAM_PERFORMANCE_TUNING_SETTINGS, perfProps);
-			AnalysisEngine ae = UIMAFramework.produceAnalysisEngine(rspec, rsMgr, params);
-			result = new UimaEngine(ae);
-		} catch (Exception e) {
-			LOGGER.error("Error creating  analysis engine from pear: " + e.getMessage());
-			throw new FatalConverterException("Error creating  analysis engine from pear: " + e.getMessage(), (Throwable) e);
+			route.plan = ExtractionPlan.compile(opts.contentTypes, engine.getTypeSystem(), opts.annotationOffsets);
+		} catch (RuntimeException e) {
+			LOGGER.error("Invalid type configuration for " + pearName + ": " + e.getMessage());
+			throw e;
+		}
+		return route;
+	}
+
+	/**
+	 * Map each configured language to the engine that analyses it: the converter's pear for
+	 * a language on its own, otherwise the pear given with it, as in <code>de=german.pear</code>.
+	 * Languages sharing a pear share its engine.
+	 */
+	private Map<String, Route> routeLanguages(File pearSupportFolder) throws FatalConverterException {
+		Map<String, Route> byLanguage = new HashMap<String, Route>();
+		Map<String, Route> byPear = new HashMap<String, Route>();
+		byPear.put(mainRoute.pearName, mainRoute);
+		for (String entry : opts.languages) {
+			int eq = entry.indexOf('=');
+			String language = (eq < 0 ? entry : entry.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+			String pearName = eq < 0 ? mainRoute.pearName : entry.substring(eq + 1).trim();
+			if (language.isEmpty() || pearName.isEmpty())
+				throw new FatalConverterException("Invalid language: " + entry);
+			Route route = byPear.get(pearName);
+			if (route == null) {
+				route = openRoute(pearName, pearSupportFolder);
+				byPear.put(pearName, route);
+			}
+			byLanguage.put(language, route);
+			LOGGER.info("Documents in language " + language + " are analysed with " + pearName);
 		}
-		return result;
+		return byLanguage;
+	}
+
+	/**
+	 * @return The engine for a document in the language, or null if documents in the language
+	 *         are not analysed
+	 */
+	private Route routeFor(String language) {
+		if (languageRoutes == null || LanguageIdentifier.UNDETERMINED.equals(language))
+			return mainRoute;
+		return languageRoutes.get(language);
 	}
 
 	/**
@@ -256,31 +341,107 @@ public class UimaAE implements ByteArrayConverter {
 		LOGGER.trace(PUBLIC_ENTRY);
 		checkIsAlive();
 
+		long reservation = 0;
 		try {
-			String stringData = convertToString(data);
+			long deadline = System.nanoTime()
+					+ (opts.batchTimeout > 0 ? TimeUnit.SECONDS.toNanos(opts.batchTimeout) : UimaEngine.NO_TIMEOUT);
+			if (memoryBudget != null) {
+				int bytesPerByte = opts.streamingInput ? MemoryBudget.STREAMING_BYTES_PER_INPUT_BYTE
+						: MemoryBudget.DOM_BYTES_PER_INPUT_BYTE;
+				try {
+					reservation = memoryBudget.reserveBatch(data == null ? 0 : (long) data.length * bytesPerByte,
+							deadline - System.nanoTime(), metrics);
+				} catch (TimeoutException e) {
+					// there is no room to read the batch, so its documents go out as they came
+					LOGGER.warn("Batch of " + (data == null ? 0 : data.length) + " bytes not analysed: " + e.getMessage());
+					metrics.recordBatchTimeout();
+					return data;
+				}
+			}
+			long start = System.nanoTime();
 			Throwable throwable = null;
 			try {
-				VXMLInputBuilder inputBuilder = new VXMLInputBuilder(stringData);
-				for (ConverterInput inputDocument : inputBuilder.documents()) {
-					InputFilter filter = InputFilterFactory.createInputFilter(inputDocument, opts.contentList);
-					String filteredContents = filter.filterInput(opts.excludeByDefault);
+				VXMLInputBuilder inputBuilder = null;
+				List<ConverterInput> documents = null;
+				StreamingVxmlWriter output = null;
+				int documentCount = inputReader == null ? -1 : inputReader.begin(data);
+				// the writer's scan of the batch is kept so that DOM input does not repeat it
+				boolean outputScanned = documentCount >= 0;
+				int outputCount = outputScanned ? outputWriter.begin(data) : -1;
+				if (outputScanned && outputCount == documentCount) {
+					output = outputWriter;
+				} else {
+					if (inputReader != null) {
+						LOGGER.debug("Input cannot be streamed, using DOM input");
+					}
+					inputBuilder = new VXMLInputBuilder(convertToString(data));
+					documents = new ArrayList<ConverterInput>();
+					for (ConverterInput inputDocument : inputBuilder.documents()) {
+						documents.add(inputDocument);
+					}
+					documentCount = documents.size();
+				}
+				metrics.parse.record(System.nanoTime() - start);
+				metrics.recordBatch(data == null ? 0 : data.length, documentCount);
+				if (output == null && outputWriter != null) {
+					if (!outputScanned) {
+						outputCount = outputWriter.begin(data);
+					}
+					if (outputCount == documentCount) {
+						output = outputWriter;
+					} else {
+						LOGGER.debug("Input cannot be streamed, using DOM output");
+					}
+				}
+				List<Integer> pendingDocuments = new ArrayList<Integer>();
+				List<String> pendingUrls = new ArrayList<String>();
+				List<String> pendingContents = new ArrayList<String>();
+				for (int i = 0; i < documentCount; i++) {
+					long filterStart = System.nanoTime();
+					String filteredContents;
+					if (documents == null) {
+						filteredContents = inputReader.filteredContents(i);
+					} else {
+						InputFilter filter = InputFilterFactory.createInputFilter(documents.get(i), opts.contentList);
+						filteredContents = filter.filterInput(opts.excludeByDefault);
+					}
+					metrics.filter.record(System.nanoTime() - filterStart);
 					if (filteredContents == null || filteredContents.isEmpty()) {
 						continue;
 					}
-					engine.setDocumentText(filteredContents);
-
-					for (String f : opts.contentTypes){
-
-						String[] t = f.split(String.valueOf(TypeSystem.FEATURE_SEPARATOR));
-						String contentName = (t.length >= 1 ) ? t[0] : null; 
-						String typeName = (t.length >= 2 ) ? t[1] : null; 
-						String featureName = (t.length == 3) ? t[2] : null;
-
-						List<AnnotationFS> annos = engine.extractAnno(typeName);
-						appendEntities(inputDocument.getDocumentElement(), annos, contentName, typeName, featureName);
+					if (opts.maxDocumentSize > 0 && filteredContents.length() > opts.maxDocumentSize) {
+						if (!opts.documentTruncation) {
+							metrics.recordOversizeDocument();
+							continue;
+						}
+						filteredContents = truncate(filteredContents, opts.maxDocumentSize);
+						metrics.recordTruncatedDocument();
+					}
+					String url = opts.casStorePath == null ? null : documentUrl(documents, i);
+					if (executor != null || daemon != null || opts.packSize > 0) {
+						pendingDocuments.add(Integer.valueOf(i));
+						pendingUrls.add(url);
+						pendingContents.add(filteredContents);
+						continue;
 					}
+					analyse(url, filteredContents, entityWriter(output, documents, i), deadline);
 				} 
-				return convertToBytes(inputBuilder.newOutputBuilder(opts.excludeByDefault).toString());
+				if (daemon != null && !pendingDocuments.isEmpty()) {
+					analyseRemotely(documents, pendingDocuments, pendingUrls, pendingContents, output, deadline);
+				} else if (opts.packSize > 0 && !pendingDocuments.isEmpty()) {
+					analysePacked(documents, pendingDocuments, pendingUrls, pendingContents, output, deadline);
+				} else if (!pendingDocuments.isEmpty()) {
+					analyseInParallel(documents, pendingDocuments, pendingUrls, pendingContents, output, deadline);
+				}
+				long serializeStart = System.nanoTime();
+				byte[] result;
+				if (output != null) {
+					result = output.finish();
+				} else {
+					result = convertToBytes(inputBuilder.newOutputBuilder(opts.excludeByDefault).toString());
+				}
+				metrics.serialize.record(System.nanoTime() - serializeStart);
+				return result;
 
 			} catch (Throwable inputBuilder) {
 				throwable = inputBuilder;
@@ -291,232 +452,899 @@ public class UimaAE implements ByteArrayConverter {
 			throw new ConversionException("Error calling UIMA Analysis Engine: " + e.getMessage(), (Throwable) e);
 		} 
 		finally {
+			if (reservation > 0)
+				memoryBudget.free(reservation, false);
 			LOGGER.trace(PUBLIC_EXIT);
 		}
 
 	}
 	
-	private void appendEntities(Element documentElement, List<AnnotationFS> annos, String contentName, String typeName, String featureName) {
-		for (AnnotationFS anno : annos) {
-			Element newContent = documentElement.getOwnerDocument().createElement("content");
-			if (featureName==null) {
-				List<Feature> fts = anno.getType().getFeatures();
-				for (Feature ft  : fts) {
-					if (ft.getShortName().equals("ruleId") || ft.getShortName().equals("sofa") )
-						continue;
-					String str="";
-					if (ft.getRange().isPrimitive()) {
-						if (!(ft.getShortName().equals("begin") || ft.getShortName().equals("end")) || opts.annotationOffsets ) {
-							str = anno.getFeatureValueAsString(ft);
-						} else {
-							continue;
-						}
-					} else if (ft.getRange().isArray()) { // try the covered text on the first element 
-						FeatureStructure fs = ((ArrayFS) anno.getFeatureValue(ft)).get(0);
-						if (fs != null) {
-							if (fs.getType().getFeatureByBaseName("begin") != null) // it's an annotation
-								str = ((AnnotationFS) fs).getCoveredText();
-							else
-								str = "";
-						}		
-					} else {
-						FeatureStructure fs = anno.getFeatureValue(ft);
-						String name = fs.getType().getName();
-						if (name.equals(SENTENCETYPE) || name.equals(PARAGRAPHTYPE))
-							str = ((AnnotationFS) fs).getCoveredText();
-						else if ( name.equals(LEMMATYPE)) {
-							Type lemmaFSType = fs.getType();
-							Feature lemmaKey = lemmaFSType.getFeatureByBaseName(LEMMAKEY);
-							if (lemmaKey != null) str = fs.getStringValue(lemmaKey);
-						}
+	/**
+	 * Analyse the filtered contents of a batch of documents concurrently on the analysis
+	 * threads. Each thread copies the entities out of its CAS and gives the CAS back
+	 * straight away, then the entities are added to the documents in their original order
+	 * so the output is the same as when documents are analysed one at a time.
+	 */
+	private void analyseInParallel(List<ConverterInput> documents, List<Integer> indexes, List<String> urls,
+			List<String> contents, StreamingVxmlWriter output, final long deadline) throws Exception {
+		List<Future<EntityBuffer>> results = new ArrayList<Future<EntityBuffer>>(contents.size());
+		try {
+			for (int i = 0; i < contents.size(); i++) {
+				final String url = urls.get(i);
+				final String filteredContents = contents.get(i);
+				results.add(executor.submit(new Callable<EntityBuffer>() {
+					@Override
+					public EntityBuffer call() throws Exception {
+						EntityBuffer entities = new EntityBuffer();
+						return analyse(url, filteredContents, entities, deadline) != NOT_ANALYSED ? entities : null;
 					}
-					newContent.setAttribute(ft.getShortName(),str);
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				EntityBuffer entities;
+				try {
+					entities = results.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception)
+						throw (Exception) cause;
+					throw e;
 				}
-				newContent.setTextContent(anno.getCoveredText());
-				newContent.setAttribute("name", contentName);
-			} else {
-				String featureValue = extractPrimitiveFeatureAsString(anno, featureName);
-				newContent.setTextContent(featureValue);
-				newContent.setAttribute("name", contentName);
-				//newContent.setAttribute("feature", featureName);
-				newContent.setAttribute("coveredtext",anno.getCoveredText());
-				if (opts.annotationOffsets) {
-					String begin = extractPrimitiveFeatureAsString(anno, "begin");
-					String end = extractPrimitiveFeatureAsString(anno, "end");
-					newContent.setAttribute("begin", begin);
-					newContent.setAttribute("end", end);
+				if (entities != null) {
+					entities.replay(entityWriter(output, documents, indexes.get(i).intValue()));
 				}
 			}
-			documentElement.appendChild(newContent);
-			LOGGER.info("Creating content element from annotation "+anno.getType().getName());
+		} finally {
+			for (Future<EntityBuffer> result : results) {
+				result.cancel(false);
+			}
 		}
 	}
-	
-	public class UimaEngine {
-		private AnalysisEngine ae = null;
-		private String docText = null;
-		
-		public UimaEngine(AnalysisEngine ae) {
-			this.ae=ae;
-		}
-		
-		public void setDocumentText(String content) {
-			this.docText=content;		
-		}
-		
-		public List<AnnotationFS> extractAnno(String annoType) {
-			if (docText == null || docText.isEmpty()) {
-				LOGGER.error("No document text to analyse");
-				return null;
+
+	/**
+	 * Send the filtered contents of a batch of documents to the analysis daemon, all before
+	 * waiting for any result, then add the entities to the documents in their original order.
+	 * A document is analysed in the converter if the daemon cannot be used, but not if the
+	 * daemon failed to analyse it.
+	 */
+	private void analyseRemotely(List<ConverterInput> documents, List<Integer> indexes, List<String> urls,
+			List<String> contents, StreamingVxmlWriter output, final long deadline) throws Exception {
+		AnalysisClient.Request[] requests = new AnalysisClient.Request[contents.size()];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = daemon.submit(contents.get(i));
+		}
+		for (int i = 0; i < requests.length; i++) {
+			EntityWriter out = entityWriter(output, documents, indexes.get(i).intValue());
+			if (requests[i] != null) {
+				try {
+					if (daemon.await(requests[i]) != NOT_ANALYSED) {
+						daemon.getEntities(requests[i]).replay(out);
+					}
+					metrics.recordDaemonDocument();
+					continue;
+				} catch (IOException e) {
+					if (daemon.analysisFailed(requests[i]))
+						throw e;
+					LOGGER.debug("Analysing a document in the converter: " + e.getMessage());
+				}
 			}
-			CAS cas = null;
-			try {
-				cas = ae.newCAS();
-				cas.setDocumentText(docText);
-				cas.setDocumentLanguage("en");
-				ae.process(cas);
-
-			} catch (ResourceInitializationException e) {
-				LOGGER.error("CAS processing error" + e);
-			} catch (AnalysisEngineProcessException e) {
-				LOGGER.error("CAS processing error" + e);
-			}
-			ArrayList<AnnotationFS> annos = extractAFSList(cas, annoType);	
-			//cas.reset(); // ?
-			return annos;
-		}
-		
-		/**
-		 * Extract a list of annotation feature structures for a given type name.
-		 * <p>
-		 *
-		 * @param  jcas 
-		 * @param  typeName Full type name to extract
-		 * @return List of AnnotationFS
-		 */	
-		private final ArrayList<AnnotationFS> extractAFSList(CAS cas, String typeName) {
-			ArrayList<AnnotationFS> annotations = new ArrayList<AnnotationFS>();
-			try {
-				JCas jcas = cas.getJCas();
-				TypeSystem typeSystem = jcas.getTypeSystem();
-				Type type = typeSystem.getType(typeName);
+			metrics.recordDaemonFallback();
+			ensureLocal();
+			analyse(urls.get(i), contents.get(i), out, deadline);
+		}
+	}
+
+	/**
+	 * Record the time the engine took over a document, and if it is the converter's first
+	 * document, record it as that too.
+	 */
+	private void recordAnalyse(long nanos) {
+		metrics.analyse.record(nanos);
+		if (!firstAnalysed.get() && firstAnalysed.compareAndSet(false, true)) {
+			metrics.firstDocument.record(nanos);
+		}
+	}
+
+	/**
+	 * @return The first characters of a text, not ending in the middle of a surrogate pair
+	 */
+	private static String truncate(String text, int length) {
+		if (Character.isHighSurrogate(text.charAt(length - 1)))
+			length--;
+		return text.substring(0, length);
+	}
+
+	/**
+	 * Reserve the heap to analyse some text in the memory budget, if there is one, waiting
+	 * until there is room or the deadline passes.
+	 *
+	 * @param deadline When the text must be analysed by, as {@link System#nanoTime()}
+	 * @return The bytes reserved, to be given back with {@link #freeAnalysis(long)}
+	 * @throws AnalysisFailedException timed out, if there was no room before the deadline
+	 */
+	private long reserveAnalysis(int chars, long deadline) throws AnalysisFailedException, InterruptedException {
+		if (memoryBudget == null)
+			return 0;
+		try {
+			return memoryBudget.reserveAnalysis((long) chars * MemoryBudget.ANALYSIS_BYTES_PER_CHAR, timeout(deadline),
+					metrics);
+		} catch (TimeoutException e) {
+			throw new AnalysisFailedException(e.getMessage(), true);
+		}
+	}
 
-				if (type!=null) {
+	private void freeAnalysis(long reservation) {
+		if (reservation > 0)
+			memoryBudget.free(reservation, true);
+	}
 
-					JFSIndexRepository indexRepository = jcas.getJFSIndexRepository();
-					AnnotationIndex<Annotation> index = indexRepository.getAnnotationIndex();
+	/**
+	 * A document of a batch being analysed in a pack, and its entities.
+	 */
+	private static final class PackedDocument {
+		private final String url;
+		private final String text;
+		private String language;
+		private Route route;
+		private ResultCache.Key key = null;
+		private EntityBuffer entities = new EntityBuffer();
+		private int outcome = NOT_ANALYSED;
 
-					ConstraintFactory cf = jcas.getConstraintFactory();
-					FSTypeConstraint filter = cf.createTypeConstraint();
+		private PackedDocument(String url, String text) {
+			this.url = url;
+			this.text = text;
+		}
+	}
 
-					filter.add(type);
+	/**
+	 * Documents of one language, for one engine, joined to be analysed in one CAS.
+	 */
+	private static final class Pack {
+		private final Route route;
+		private final String language;
+		private final DocumentPack text;
+		private final List<PackedDocument> documents = new ArrayList<PackedDocument>();
 
-					FSIterator<Annotation> list = jcas.createFilteredIterator(index.iterator(), filter);
-					while (list.hasNext()) {
-						AnnotationFS afs = (AnnotationFS)list.next();
-						annotations.add(afs);
-					}
+		private Pack(Route route, String language, int maxSize) {
+			this.route = route;
+			this.language = language;
+			this.text = new DocumentPack(maxSize);
+		}
+	}
+
+	/**
+	 * Analyse a batch of documents, joining the documents shorter than the pack size into
+	 * packs by language, each analysed in one CAS. Documents found in the result cache or
+	 * replayed from the CAS store are not packed, and longer documents are analysed on their
+	 * own. Packs and long documents are analysed on the analysis threads if there are any,
+	 * then the entities are added to the documents in their original order.
+	 */
+	private void analysePacked(List<ConverterInput> documents, List<Integer> indexes, List<String> urls,
+			List<String> contents, StreamingVxmlWriter output, final long deadline) throws Exception {
+		final PackedDocument[] packed = new PackedDocument[contents.size()];
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		List<Pack> open = new ArrayList<Pack>();
+		try {
+			for (int i = 0; i < packed.length; i++) {
+				final PackedDocument document = packed[i] = new PackedDocument(urls.get(i), contents.get(i));
+				if (document.text.length() >= opts.packSize) {
+					tasks.add(new FutureTask<Void>(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							document.outcome = analyse(document.url, document.text, document.entities, deadline);
+							return null;
+						}
+					}));
+					continue;
+				}
+				if (!needsAnalysis(document, deadline))
+					continue;
+				Pack pack = null;
+				for (Pack p : open) {
+					if (p.route == document.route && p.language.equals(document.language))
+						pack = p;
+				}
+				if (pack != null && !pack.text.add(document.text)) {
+					open.remove(pack);
+					tasks.add(packTask(pack, deadline));
+					pack = null;
+				}
+				if (pack == null) {
+					pack = new Pack(document.route, document.language, opts.packSize);
+					pack.text.add(document.text);
+					open.add(pack);
+				}
+				pack.documents.add(document);
+			}
+			for (Pack pack : open) {
+				tasks.add(packTask(pack, deadline));
+			}
+			if (executor != null) {
+				for (FutureTask<Void> task : tasks) {
+					executor.execute(task);
+				}
+			}
+			for (FutureTask<Void> task : tasks) {
+				task.run(); // does nothing if an analysis thread has run it
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception)
+						throw (Exception) cause;
+					throw e;
+				}
+			}
+		} finally {
+			for (FutureTask<Void> task : tasks) {
+				task.cancel(false);
+			}
+		}
+		for (int i = 0; i < packed.length; i++) {
+			if (packed[i].outcome != NOT_ANALYSED) {
+				packed[i].entities.replay(entityWriter(output, documents, indexes.get(i).intValue()));
+			}
+		}
+	}
+
+	/**
+	 * Find the engine for a document to be packed, and its entities if they are in the
+	 * result cache or can be replayed from the CAS store.
+	 *
+	 * @return true if the document has to be analysed
+	 */
+	private boolean needsAnalysis(PackedDocument document, long deadline) throws Exception {
+		document.language = identifyLanguage(document.text);
+		document.route = route(document.language, document.text);
+		if (document.route == null)
+			return false;
+		ResultCache cache = document.route.cache;
+		if (cache != null) {
+			document.key = cache.key(cacheConfig, document.route.engine.getModelId(), document.text);
+			EntityBuffer entities = cache.get(document.key);
+			if (entities != null) {
+				document.entities = entities;
+				document.outcome = ANALYSED;
+				return false;
+			}
+		}
+		if (opts.casReplay && casStore != null && document.url != null) {
+			document.outcome = replayDocument(document.route, document.url, document.text, document.entities, deadline);
+			if (document.outcome == ANALYSED && cache != null)
+				cache.put(document.key, document.entities);
+			if (document.outcome != NOT_ANALYSED)
+				return false;
+		}
+		return breaker == null || breaker.allows(document.text);
+	}
+
+	private FutureTask<Void> packTask(final Pack pack, final long deadline) {
+		return new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (pack.documents.size() == 1) {
+					PackedDocument document = pack.documents.get(0);
+					document.outcome = analyseDocument(pack.route, pack.language, document.url, document.text,
+							document.entities, deadline);
+					if (document.outcome == ANALYSED && document.key != null)
+						pack.route.cache.put(document.key, document.entities);
 				} else {
-					LOGGER.warn("Type " + typeName + " not found in typesystem");
+					analysePack(pack, deadline);
 				}
+				return null;
 			}
-			catch (CASRuntimeException e) {
-				LOGGER.warn("CAS processing error" + e.toString());
-			} catch (CASException e) {
-				LOGGER.error("CAS processing error" + e.toString());
+		});
+	}
+
+	/**
+	 * Run the analysis engine once over a pack of documents and write each document's
+	 * entities for every configured type, with offsets into the document. If the engine fails
+	 * on the pack, or does not finish it within the document timeout, each document is
+	 * analysed on its own, so only the documents that fail again are output without entities.
+	 */
+	private void analysePack(Pack pack, long deadline) throws Exception {
+		int size = pack.documents.size();
+		if (batchTimedOut(deadline)) {
+			for (int d = 0; d < size; d++) {
+				metrics.recordBatchTimeout();
+			}
+			return;
+		}
+		String text = pack.text.getText();
+		try {
+			long reservation = reserveAnalysis(text.length(), documentDeadline(deadline));
+			try {
+				analyseInOneCas(pack, text, deadline);
+			} finally {
+				freeAnalysis(reservation);
+			}
+		} catch (AnalysisFailedException e) {
+			LOGGER.warn("Analysing a pack of " + size + " documents one at a time: " + e.getMessage());
+			for (PackedDocument document : pack.documents) {
+				document.outcome = analyseDocument(pack.route, pack.language, document.url, document.text,
+						document.entities, deadline);
+				if (document.outcome == ANALYSED && document.key != null)
+					pack.route.cache.put(document.key, document.entities);
 			}
-			return annotations;
 		}
 	}
 
-	private byte[] convertToBytes(String data) throws UnsupportedEncodingException {
-		return data == null ? null : data.getBytes("UTF-8");
+	private void analyseInOneCas(Pack pack, String text, long deadline) throws Exception {
+		UimaEngine engine = pack.route.engine;
+		int size = pack.documents.size();
+		long start = System.nanoTime();
+		CAS cas;
+		try {
+			cas = engine.analyse(text, pack.language, timeout(documentDeadline(deadline)));
+		} finally {
+			recordAnalyse(System.nanoTime() - start);
+		}
+		long analysed = System.nanoTime();
+		if (cas == null) {
+			return;
+		}
+		try {
+			metrics.recordCasHeap(cas);
+			ExtractionPlan.TypeExtraction[] extractions = planFor(pack.route, cas).getExtractions();
+			EntityWriter[] outs = new EntityWriter[size];
+			for (int d = 0; d < size; d++) {
+				outs[d] = pack.documents.get(d).entities;
+			}
+			int[] starts = pack.text.getStarts();
+			int[] ends = pack.text.getEnds();
+			int[][] counts = new int[extractions.length][size];
+			boolean complete = true;
+			try {
+				for (int t = 0; t < extractions.length; t++) {
+					extractions[t].write(cas, outs, starts, ends, counts[t]);
+				}
+			} catch (CASRuntimeException e) {
+				LOGGER.warn("CAS processing error {}", e.toString());
+				complete = false;
+			}
+			metrics.extract.record(System.nanoTime() - analysed);
+			metrics.recordPack(size);
+			for (int d = 0; d < size; d++) {
+				PackedDocument document = pack.documents.get(d);
+				int[] documentCounts = new int[extractions.length];
+				int entities = 0;
+				for (int t = 0; t < extractions.length; t++) {
+					documentCounts[t] = counts[t][d];
+					entities += counts[t][d];
+				}
+				metrics.recordAnalysed(entities);
+				if (diagnostics.isEnabled()) {
+					diagnostics.log(document.text.length(), documentCounts);
+				}
+				document.outcome = complete ? ANALYSED : ANALYSED_WITH_ERRORS;
+				if (breaker != null)
+					breaker.recordSuccess(document.text);
+				if (complete && document.key != null) {
+					pack.route.cache.put(document.key, document.entities);
+				}
+			}
+		} finally {
+			engine.release(cas);
+		}
 	}
 
-	private String convertToString(byte[] data) throws UnsupportedEncodingException {
-		return data == null ? "" : new String(data, "UTF-8");
+	/**
+	 * @return The <code>url</code> attribute of a document, or null if it has none
+	 */
+	private String documentUrl(List<ConverterInput> documents, int index) {
+		String url = documents == null ? inputReader.url(index) : documents.get(index).getDocumentElement().getAttribute("url");
+		return url == null || url.isEmpty() ? null : url;
 	}
 
-	@Override
-	public void terminate() {
-		checkIsAlive();
+	/**
+	 * The writer for the entities of a document: the streaming output if it is in use,
+	 * otherwise the document's DOM element. The documents are only used for the DOM output.
+	 */
+	private EntityWriter entityWriter(StreamingVxmlWriter output, List<ConverterInput> documents, int index) {
+		if (output != null) {
+			output.document(index);
+			return output;
+		}
+		return new DomEntityWriter(documents.get(index).getDocumentElement());
+	}
 
-		LOGGER.trace("Terminating");
-		isAlive = false;
+	/**
+	 * Write the entities for every configured type found in a document that is not part of
+	 * a batch, so only the document timeout applies.
+	 *
+	 * @see #analyse(String, String, EntityWriter, long)
+	 */
+	int analyse(String url, String filteredContents, EntityWriter out) throws Exception {
+		return analyse(url, filteredContents, out, System.nanoTime() + UimaEngine.NO_TIMEOUT);
+	}
+
+	/**
+	 * Write the entities for every configured type found in a document, from the result
+	 * cache if it holds them, otherwise by analysing the document with the engine for its
+	 * language.
+	 *
+	 * @param url The document's URL, naming its CAS in the CAS store, or null to not use the store
+	 * @param deadline When the document's batch runs out of time, as {@link System#nanoTime()}
+	 * @return The outcome, as for {@link #analyseDocument(Route, String, String, String, EntityWriter, long)};
+	 *         {@link #NOT_ANALYSED} too for a document in a language that is not analysed
+	 */
+	int analyse(String url, String filteredContents, EntityWriter out, long deadline) throws Exception {
+		String language = identifyLanguage(filteredContents);
+		Route route = route(language, filteredContents);
+		if (route == null) {
+			return NOT_ANALYSED;
+		}
+		ResultCache cache = route.cache;
+		if (cache == null) {
+			return replayOrAnalyse(route, language, url, filteredContents, out, deadline);
+		}
+		ResultCache.Key key = cache.key(cacheConfig, route.engine.getModelId(), filteredContents);
+		EntityBuffer entities = cache.get(key);
+		if (entities == null) {
+			entities = new EntityBuffer();
+			int outcome = replayOrAnalyse(route, language, url, filteredContents, entities, deadline);
+			if (outcome == NOT_ANALYSED) {
+				return NOT_ANALYSED;
+			}
+			if (outcome == ANALYSED) {
+				cache.put(key, entities);
+			}
+			entities.replay(out);
+			return outcome;
+		}
+		entities.replay(out);
+		return ANALYSED;
+	}
 
-		// Nothing to terminate
+	/**
+	 * @return The language of a document, or the default language if languages are not
+	 *         identified
+	 */
+	private String identifyLanguage(String filteredContents) {
+		return languageIdentifier == null ? UimaEngine.DEFAULT_LANGUAGE : languageIdentifier.identify(filteredContents);
 	}
 
-	private void checkIsAlive() {
-		if (!isAlive()) {
-			LOGGER.error("I've already been terminated");
-			throw new IllegalStateException("The object has already been terminated");
+	/**
+	 * The engine for a document in a language, counting the document by language if
+	 * languages are identified.
+	 *
+	 * @return The route, or null if documents in the language are not analysed
+	 */
+	private Route route(String language, String filteredContents) {
+		Route route = routeFor(language);
+		if (languageIdentifier != null) {
+			if (route == null)
+				metrics.recordLanguageSkipped(language, filteredContents.length());
+			else
+				metrics.recordLanguageAnalysed(language);
 		}
+		return route;
 	}
 
-	boolean isAlive() {
-		return isAlive;
+	/**
+	 * Write the entities of a document from the CAS stored for it if replay is on and the
+	 * store holds one for its text, otherwise analyse it.
+	 *
+	 * @return The outcome, as for {@link #analyseDocument(Route, String, String, String, EntityWriter, long)}
+	 */
+	private int replayOrAnalyse(Route route, String language, String url, String filteredContents, EntityWriter out,
+			long deadline) throws Exception {
+		if (opts.casReplay && casStore != null && url != null) {
+			int outcome = replayDocument(route, url, filteredContents, out, deadline);
+			if (outcome != NOT_ANALYSED)
+				return outcome;
+		}
+		return analyseDocument(route, language, url, filteredContents, out, deadline);
 	}
 
-	private static final String extractPrimitiveFeatureAsString(AnnotationFS afs, String feature){
-		Feature ft = null;
-		String ret = null;
-		Type type = afs.getType();
+	/**
+	 * Write the entities for every configured type from the CAS stored for a document,
+	 * without running the analysis engine.
+	 *
+	 * @return {@link #NOT_ANALYSED} if no CAS with all the configured types is stored for the
+	 *         document's text or no CAS was free before the deadline, in which case nothing
+	 *         has been written, otherwise as for
+	 *         {@link #analyseDocument(Route, String, String, String, EntityWriter, long)}
+	 */
+	private int replayDocument(Route route, String url, String filteredContents, EntityWriter out, long deadline) {
+		UimaEngine engine = route.engine;
+		long start = System.nanoTime();
+		CAS cas = engine.emptyCas(timeout(documentDeadline(deadline)));
+		if (cas == null)
+			return NOT_ANALYSED;
+		try {
+			ExtractionPlan plan = planFor(route, cas);
+			if (!casStore.load(url, filteredContents, cas, plan))
+				return NOT_ANALYSED;
+			long loaded = System.nanoTime();
+			metrics.replay.record(loaded - start);
+			int entities = writeEntities(plan, cas, out, null);
+			metrics.extract.record(System.nanoTime() - loaded);
+			metrics.recordAnalysed(Math.max(entities, 0));
+			metrics.recordCasReplayed();
+			return entities < 0 ? ANALYSED_WITH_ERRORS : ANALYSED;
+		} finally {
+			engine.release(cas);
+		}
+	}
 
+	/**
+	 * Run the analysis engine once over a document and write the entities for every
+	 * configured type from the resulting CAS. If the document has a URL and the CAS store is
+	 * in use, the CAS is stored.
+	 * <p>
+	 * A document the engine fails on, or does not finish before the document timeout or
+	 * the batch deadline, is left without entities. So is a document that matches a recent
+	 * failure, if the circuit breaker is in use.
+	 *
+	 * @param deadline When the document's batch runs out of time, as {@link System#nanoTime()}
+	 * @return {@link #ANALYSED}, {@link #ANALYSED_WITH_ERRORS} if only some of the entities
+	 *         may have been written, or {@link #NOT_ANALYSED}
+	 */
+	private int analyseDocument(Route route, String language, String url, String filteredContents,
+			EntityWriter out, long deadline) throws Exception {
+		if (batchTimedOut(deadline)) {
+			metrics.recordBatchTimeout();
+			return NOT_ANALYSED;
+		}
+		if (breaker != null && !breaker.allows(filteredContents)) {
+			return NOT_ANALYSED;
+		}
+		int outcome;
 		try {
-			ft = type.getFeatureByBaseName(feature);
-			if (ft == null) {
-				LOGGER.warn("Failed to find feature for extract: " + feature);
-				return ret;
-			}
-
-			if (ft.getRange().isPrimitive()) {
-				ret = afs.getFeatureValueAsString(ft);
-			} else if (ft.getRange().isArray()) { // try the covered text on the first element 
-				FeatureStructure fs = ((ArrayFS) afs.getFeatureValue(ft)).get(0);
-				if (fs != null) {
-					if (fs.getType().getFeatureByBaseName("begin") != null) // it's an annotation
-						ret = ((AnnotationFS) fs).getCoveredText();
-				}		
+			if (segmenter != null && segmenter.needsSplit(filteredContents))
+				outcome = analyseSegmented(route, language, filteredContents, out, documentDeadline(deadline));
+			else
+				outcome = analyseWhole(route, language, url, filteredContents, out, documentDeadline(deadline));
+		} catch (AnalysisFailedException e) {
+			if (e.isTimedOut() && batchTimedOut(deadline)) {
+				metrics.recordBatchTimeout();
+				return NOT_ANALYSED;
+			}
+			if (e.isTimedOut()) {
+				metrics.recordAnalysisTimeout();
+				LOGGER.warn("Document of " + filteredContents.length() + " characters not analysed: " + e.getMessage());
 			} else {
-				FeatureStructure fs = afs.getFeatureValue(ft);
-				String name = fs.getType().getName();
-				if (name.equals(SENTENCETYPE) || name.equals(PARAGRAPHTYPE))
-					ret = ((AnnotationFS) fs).getCoveredText();
-				else if ( name.equals(LEMMATYPE)) {
-					Type lemmaFSType = fs.getType();
-					Feature lemmaKey = lemmaFSType.getFeatureByBaseName(LEMMAKEY);
-					if (lemmaKey != null) ret = fs.getStringValue(lemmaKey);
+				metrics.recordAnalysisFailure();
+				LOGGER.error("CAS processing error {}", e.getMessage());
+			}
+			if (breaker != null)
+				breaker.recordFailure(filteredContents);
+			return NOT_ANALYSED;
+		}
+		if (breaker != null && outcome != NOT_ANALYSED)
+			breaker.recordSuccess(filteredContents);
+		return outcome;
+	}
+
+	/**
+	 * @return Whether a batch deadline is set and has passed
+	 */
+	private boolean batchTimedOut(long deadline) {
+		return opts.batchTimeout > 0 && deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @return When a document started now must be finished by: the batch deadline, or sooner
+	 *         if the document timeout ends first
+	 */
+	private long documentDeadline(long deadline) {
+		if (opts.documentTimeout <= 0)
+			return deadline;
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(opts.documentTimeout);
+		return end - deadline < 0 ? end : deadline;
+	}
+
+	/**
+	 * @return The time left before a deadline, or {@link UimaEngine#NO_TIMEOUT} if no timeouts
+	 *         are set
+	 */
+	private long timeout(long deadline) {
+		if (opts.documentTimeout <= 0 && opts.batchTimeout <= 0)
+			return UimaEngine.NO_TIMEOUT;
+		return deadline - System.nanoTime();
+	}
+
+	/**
+	 * Analyse a document in one CAS, within the memory budget.
+	 *
+	 * @return The outcome, as for {@link #analyseDocument(Route, String, String, String, EntityWriter, long)}
+	 */
+	private int analyseWhole(Route route, String language, String url, String filteredContents, EntityWriter out,
+			long deadline) throws Exception {
+		long reservation = reserveAnalysis(filteredContents.length(), deadline);
+		try {
+			return analyseInCas(route, language, url, filteredContents, out, timeout(deadline));
+		} finally {
+			freeAnalysis(reservation);
+		}
+	}
+
+	private int analyseInCas(Route route, String language, String url, String filteredContents, EntityWriter out,
+			long timeoutNanos) throws Exception {
+		UimaEngine engine = route.engine;
+		long start = System.nanoTime();
+		CAS cas;
+		try {
+			cas = engine.analyse(filteredContents, language, timeoutNanos);
+		} finally {
+			recordAnalyse(System.nanoTime() - start);
+		}
+		long analysed = System.nanoTime();
+		if (cas == null) {
+			return NOT_ANALYSED;
+		}
+		try {
+			metrics.recordCasHeap(cas);
+			int[] counts = diagnostics.newCounts();
+			ExtractionPlan plan = planFor(route, cas);
+			int entities = writeEntities(plan, cas, out, counts);
+			metrics.extract.record(System.nanoTime() - analysed);
+			metrics.recordAnalysed(Math.max(entities, 0));
+			if (counts != null) {
+				diagnostics.log(filteredContents.length(), counts);
+			}
+			int outcome = entities < 0 ? ANALYSED_WITH_ERRORS : ANALYSED;
+			if (outcome == ANALYSED && casStore != null && url != null && casStore.put(url, filteredContents, cas, plan)) {
+				metrics.recordCasStored();
+			}
+			return outcome;
+		} finally {
+			engine.release(cas);
+		}
+	}
+
+	/**
+	 * Analyse a very large document in segments, on the analysis threads if there are any,
+	 * and write the entities of all segments as if the document had been analysed at once:
+	 * type by type, in offset order, with offsets into the whole document.
+	 * <p>
+	 * The calling thread runs every segment no analysis thread has started yet, so a
+	 * document being analysed on an analysis thread cannot wait for threads that are all
+	 * busy waiting themselves.
+	 *
+	 * @return The outcome, as for {@link #analyseDocument(Route, String, String, String, EntityWriter, long)}
+	 */
+	private int analyseSegmented(final Route route, final String language, final String text, EntityWriter out,
+			final long deadline) throws Exception {
+		List<DocumentSegmenter.Segment> segments = segmenter.split(text);
+		List<FutureTask<SegmentResult>> tasks = new ArrayList<FutureTask<SegmentResult>>(segments.size());
+		try {
+			for (final DocumentSegmenter.Segment segment : segments) {
+				FutureTask<SegmentResult> task = new FutureTask<SegmentResult>(new Callable<SegmentResult>() {
+					@Override
+					public SegmentResult call() throws Exception {
+						return analyseSegment(route, language, text, segment, deadline);
+					}
+				});
+				tasks.add(task);
+				if (executor != null)
+					executor.execute(task);
+			}
+			SegmentResult[] results = new SegmentResult[tasks.size()];
+			for (int i = 0; i < tasks.size(); i++) {
+				FutureTask<SegmentResult> task = tasks.get(i);
+				task.run(); // does nothing if an analysis thread has run it
+				try {
+					results[i] = task.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception)
+						throw (Exception) cause;
+					throw e;
+				}
+			}
+			return writeSegments(results, text.length(), out);
+		} finally {
+			for (FutureTask<SegmentResult> task : tasks) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * The entities of one segment, with the position in the buffer where each configured
+	 * type's entities start.
+	 */
+	private static final class SegmentResult {
+		private final EntityBuffer entities = new EntityBuffer();
+		private final int[] marks;
+		private final int[] counts;
+		private boolean complete = false;
+
+		private SegmentResult(int types) {
+			marks = new int[types + 1];
+			counts = new int[types];
+		}
+	}
+
+	/**
+	 * Analyse the window of one segment and record the entities that begin in the segment.
+	 *
+	 * @param deadline When the whole document must be finished by
+	 * @return The entities, or null if no CAS could be obtained for the segment
+	 * @throws AnalysisFailedException if the engine failed on the segment or did not finish
+	 *         it in time, so the document cannot be analysed
+	 */
+	private SegmentResult analyseSegment(Route route, String language, String text, DocumentSegmenter.Segment segment,
+			long deadline) throws AnalysisFailedException, InterruptedException {
+		long reservation = reserveAnalysis(segment.windowEnd - segment.windowStart, deadline);
+		try {
+			return analyseSegmentInCas(route, language, text, segment, timeout(deadline));
+		} finally {
+			freeAnalysis(reservation);
+		}
+	}
+
+	private SegmentResult analyseSegmentInCas(Route route, String language, String text,
+			DocumentSegmenter.Segment segment, long timeoutNanos) throws AnalysisFailedException {
+		UimaEngine engine = route.engine;
+		long start = System.nanoTime();
+		CAS cas;
+		try {
+			cas = engine.analyse(text.substring(segment.windowStart, segment.windowEnd), language, timeoutNanos);
+		} finally {
+			recordAnalyse(System.nanoTime() - start);
+		}
+		long analysed = System.nanoTime();
+		if (cas == null) {
+			return null;
+		}
+		try {
+			metrics.recordCasHeap(cas);
+			ExtractionPlan.TypeExtraction[] extractions = planFor(route, cas).getExtractions();
+			SegmentResult result = new SegmentResult(extractions.length);
+			int from = segment.start - segment.windowStart;
+			int to = segment.end - segment.windowStart;
+			try {
+				for (int i = 0; i < extractions.length; i++) {
+					result.marks[i] = result.entities.position();
+					result.counts[i] = extractions[i].write(cas, result.entities, segment.windowStart, from, to);
 				}
+				result.marks[extractions.length] = result.entities.position();
+				result.complete = true;
+			} catch (CASRuntimeException e) {
+				LOGGER.warn("CAS processing error {}", e.toString());
+				return new SegmentResult(extractions.length);
 			}
+			metrics.extract.record(System.nanoTime() - analysed);
+			return result;
+		} finally {
+			engine.release(cas);
+		}
+	}
 
+	/**
+	 * Write the entities of all segments, type by type and segment by segment.
+	 *
+	 * @return The outcome, as for {@link #analyseDocument(Route, String, String, String, EntityWriter, long)}
+	 */
+	private int writeSegments(SegmentResult[] results, int textLength, EntityWriter out) {
+		int types = -1;
+		boolean complete = true;
+		for (SegmentResult result : results) {
+			if (result != null)
+				types = result.counts.length;
+			complete &= result != null && result.complete;
+		}
+		if (types < 0)
+			return NOT_ANALYSED;
+		int[] counts = new int[types];
+		int entities = 0;
+		for (int t = 0; t < types; t++) {
+			for (SegmentResult result : results) {
+				if (result != null) {
+					result.entities.replay(out, result.marks[t], result.marks[t + 1]);
+					counts[t] += result.counts[t];
+				}
+			}
+			entities += counts[t];
+		}
+		metrics.recordAnalysed(entities);
+		if (diagnostics.isEnabled()) {
+			diagnostics.log(textLength, counts);
+		}
+		return complete ? ANALYSED : ANALYSED_WITH_ERRORS;
+	}
 
+	/**
+	 * The extraction plan for a CAS's type system, compiled again if a changed pear has been
+	 * swapped into the route's engine since the plan was compiled.
+	 *
+	 * @throws FatalConverterException if the configured types are not in the new type system
+	 */
+	private ExtractionPlan planFor(Route route, CAS cas) throws FatalConverterException {
+		ExtractionPlan p = route.plan;
+		TypeSystem typeSystem = cas.getTypeSystem();
+		if (p.getTypeSystem() == typeSystem)
+			return p;
+		synchronized (route) {
+			p = route.plan;
+			if (p.getTypeSystem() != typeSystem) {
+				try {
+					p = ExtractionPlan.compile(opts.contentTypes, typeSystem, opts.annotationOffsets);
+				} catch (RuntimeException e) {
+					LOGGER.error("Invalid type configuration for the new analysis engine: " + e.getMessage());
+					throw e;
+				}
+				route.plan = p;
+				LOGGER.info("Compiled the type configuration for the new analysis engine for " + route.pearName);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Write the entities for all configured types from a processed CAS.
+	 *
+	 * @param counts If not null, receives the number of entities of each type
+	 * @return The number of entities written, or -1 if reading the CAS failed part way
+	 */
+	private int writeEntities(ExtractionPlan plan, CAS cas, EntityWriter out, int[] counts) {
+		try {
+			return plan.write(cas, out, counts);
 		} catch (CASRuntimeException e) {
-			LOGGER.debug("Failed to get feature value for feature: " + ft.getName() + " " + e.toString(),e);
+			LOGGER.warn("CAS processing error {}", e.toString());
+			return -1;
 		}
-		return ret;
 	}
 	
+	private byte[] convertToBytes(String data) throws UnsupportedEncodingException {
+		return data == null ? null : data.getBytes("UTF-8");
+	}
+
+	private String convertToString(byte[] data) throws UnsupportedEncodingException {
+		return data == null ? "" : new String(data, "UTF-8");
+	}
+
+	@Override
+	public void terminate() {
+		checkIsAlive();
+
+		LOGGER.trace("Terminating");
+		isAlive = false;
+
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (daemon != null) {
+			daemon.close();
+			daemon = null;
+		}
+		releaseRoutes();
+		if (memoryBudget != null) {
+			memoryBudget.release();
+			memoryBudget = null;
+		}
+		metrics.release();
+		metrics = null;
+	}
+
 	/**
-	 * Delete a file or a directory and its children.
-	 * @param file The directory to delete.
-	 * @throws IOException Exception when problem occurs during deleting the directory.
+	 * Release the result caches and engines of all routes.
 	 */
-	private static void delete(File file) throws IOException {
- 
-		for (File childFile : file.listFiles()) {
- 
-			if (childFile.isDirectory()) {
-				delete(childFile);
-			} else {
-				if (!childFile.delete()) {
-					throw new IOException();
-				}
+	private void releaseRoutes() {
+		for (Route route : routes) {
+			if (route.cache != null) {
+				route.cache.release();
+				route.cache = null;
 			}
+			UimaEngineRegistry.release(route.engine);
 		}
- 
-		if (!file.delete()) {
-			throw new IOException();
+		routes.clear();
+		mainRoute = null;
+		languageRoutes = null;
+	}
+
+	private void checkIsAlive() {
+		if (!isAlive()) {
+			LOGGER.error("I've already been terminated");
+			throw new IllegalStateException("The object has already been terminated");
 		}
 	}
+
+	boolean isAlive() {
+		return isAlive;
+	}
 }
@@ -1,5 +1,8 @@
 package com.mnsuk.converter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
@@ -8,11 +11,81 @@ import com.ibm.dataexplorer.converter.FatalConverterException;
 
 public class UimaAEConverterOptions {
 	private static final String OPTION_PEAR_REPO_PATH = "pear-repo-path";
-	private static final String OPTION_PEAR_FILENAME = "pear-filename";
+	static final String OPTION_PEAR_FILENAME = "pear-filename";
 	private static final String OPTION_EXCLUDE_BY_DEFAULT = "exclude-by-default";
 	private static final String OPTION_CONTENT_LIST = "content-list";
 	private static final String OPTION_ANNOTATION_OFFSETS = "enable-annotation-offsets";
 	private static final String OPTION_CONTENT_TYPES = "type";
+	private static final String OPTION_CAS_POOL_SIZE = "cas-pool-size";
+	private static final String OPTION_CAS_INITIAL_HEAP_SIZE = "cas-initial-heap-size";
+	private static final String OPTION_ANALYSIS_THREADS = "analysis-threads";
+	private static final String OPTION_STREAMING_OUTPUT = "streaming-output";
+	private static final String OPTION_METRICS_LOG_INTERVAL = "metrics-log-interval";
+	private static final String OPTION_ENTITY_COUNT_LOGGING = "enable-entity-count-logging";
+	private static final String OPTION_PEAR_WATCH_INTERVAL = "pear-watch-interval";
+	private static final String OPTION_SEGMENT_SIZE = "segment-size";
+	private static final String OPTION_SEGMENT_OVERLAP = "segment-overlap";
+	private static final String OPTION_RESULT_CACHE_SIZE = "result-cache-size";
+	private static final String OPTION_RESULT_CACHE_DISK_SIZE = "result-cache-disk-size";
+	private static final String OPTION_LANGUAGE_DETECTION = "enable-language-detection";
+	private static final String OPTION_LANGUAGE_SAMPLE_SIZE = "language-sample-size";
+	static final String OPTION_LANGUAGES = "languages";
+	private static final String OPTION_STREAMING_INPUT = "streaming-input";
+	static final String OPTION_ANALYSIS_DAEMON_PORT = "analysis-daemon-port";
+	private static final String OPTION_ANALYSIS_DAEMON_MAX_IN_FLIGHT = "analysis-daemon-max-in-flight";
+	private static final String OPTION_ANALYSIS_DAEMON_TIMEOUT = "analysis-daemon-timeout";
+	private static final String OPTION_CAS_STORE_PATH = "cas-store-path";
+	private static final String OPTION_CAS_REPLAY = "enable-cas-replay";
+	private static final String OPTION_CAS_STORE_TYPES = "cas-store-types";
+	private static final String OPTION_PACK_SIZE = "pack-size";
+	private static final String OPTION_DOCUMENT_TIMEOUT = "document-timeout";
+	private static final String OPTION_BATCH_TIMEOUT = "batch-timeout";
+	private static final String OPTION_CIRCUIT_BREAKER_FAILURES = "circuit-breaker-failures";
+	private static final String OPTION_CIRCUIT_BREAKER_COOLDOWN = "circuit-breaker-cooldown";
+	private static final String OPTION_MEMORY_BUDGET = "memory-budget";
+	private static final String OPTION_MAX_DOCUMENT_SIZE = "max-document-size";
+	private static final String OPTION_DOCUMENT_TRUNCATION = "enable-document-truncation";
+	private static final String OPTION_WARM_UP_PATH = "warm-up-path";
+	private static final String OPTION_WARM_UP_ITERATIONS = "warm-up-iterations";
+	
+	private static final int DEFAULT_CAS_POOL_SIZE = 2;
+	private static final int DEFAULT_CAS_INITIAL_HEAP_SIZE = 1000000;
+	private static final int DEFAULT_ANALYSIS_THREADS = 1;
+	private static final int DEFAULT_METRICS_LOG_INTERVAL = 0;
+	private static final int DEFAULT_PEAR_WATCH_INTERVAL = 0;
+	private static final int DEFAULT_SEGMENT_SIZE = 0;
+	private static final int DEFAULT_SEGMENT_OVERLAP = 500;
+	private static final int DEFAULT_RESULT_CACHE_SIZE = 0;
+	private static final int DEFAULT_RESULT_CACHE_DISK_SIZE = 0;
+	private static final int DEFAULT_LANGUAGE_SAMPLE_SIZE = 4096;
+	private static final int DEFAULT_ANALYSIS_DAEMON_PORT = 0;
+	private static final int DEFAULT_ANALYSIS_DAEMON_MAX_IN_FLIGHT = 32;
+	private static final int DEFAULT_ANALYSIS_DAEMON_TIMEOUT = 120;
+	private static final int DEFAULT_PACK_SIZE = 0;
+	private static final int DEFAULT_DOCUMENT_TIMEOUT = 0;
+	private static final int DEFAULT_BATCH_TIMEOUT = 0;
+	private static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 0;
+	private static final int DEFAULT_CIRCUIT_BREAKER_COOLDOWN = 300;
+	private static final int DEFAULT_MEMORY_BUDGET = 0;
+	private static final int DEFAULT_MAX_DOCUMENT_SIZE = 0;
+	private static final int DEFAULT_WARM_UP_ITERATIONS = 1;
+
+	// options that decide what is extracted from a document, sent by a converter to the analysis daemon
+	static final List<String> ANALYSIS_OPTIONS = Collections.unmodifiableList(Arrays.asList(OPTION_PEAR_FILENAME,
+			OPTION_CONTENT_TYPES, OPTION_ANNOTATION_OFFSETS, OPTION_ENTITY_COUNT_LOGGING, OPTION_SEGMENT_SIZE,
+			OPTION_SEGMENT_OVERLAP, OPTION_LANGUAGE_DETECTION, OPTION_LANGUAGE_SAMPLE_SIZE, OPTION_LANGUAGES,
+			OPTION_DOCUMENT_TIMEOUT, OPTION_CIRCUIT_BREAKER_FAILURES, OPTION_CIRCUIT_BREAKER_COOLDOWN));
+	static final List<String> ALL_OPTIONS = Collections.unmodifiableList(Arrays.asList(OPTION_PEAR_REPO_PATH,
+			OPTION_PEAR_FILENAME, OPTION_EXCLUDE_BY_DEFAULT, OPTION_CONTENT_LIST, OPTION_ANNOTATION_OFFSETS,
+			OPTION_CONTENT_TYPES, OPTION_CAS_POOL_SIZE, OPTION_CAS_INITIAL_HEAP_SIZE, OPTION_ANALYSIS_THREADS,
+			OPTION_STREAMING_OUTPUT, OPTION_METRICS_LOG_INTERVAL, OPTION_ENTITY_COUNT_LOGGING,
+			OPTION_PEAR_WATCH_INTERVAL, OPTION_SEGMENT_SIZE, OPTION_SEGMENT_OVERLAP, OPTION_RESULT_CACHE_SIZE,
+			OPTION_RESULT_CACHE_DISK_SIZE, OPTION_LANGUAGE_DETECTION, OPTION_LANGUAGE_SAMPLE_SIZE, OPTION_LANGUAGES,
+			OPTION_STREAMING_INPUT, OPTION_ANALYSIS_DAEMON_PORT, OPTION_ANALYSIS_DAEMON_MAX_IN_FLIGHT,
+			OPTION_ANALYSIS_DAEMON_TIMEOUT, OPTION_CAS_STORE_PATH, OPTION_CAS_REPLAY, OPTION_CAS_STORE_TYPES,
+			OPTION_PACK_SIZE, OPTION_DOCUMENT_TIMEOUT, OPTION_BATCH_TIMEOUT, OPTION_CIRCUIT_BREAKER_FAILURES,
+			OPTION_CIRCUIT_BREAKER_COOLDOWN, OPTION_MEMORY_BUDGET, OPTION_MAX_DOCUMENT_SIZE, OPTION_DOCUMENT_TRUNCATION,
+			OPTION_WARM_UP_PATH, OPTION_WARM_UP_ITERATIONS));
 	 
 	public String pearRepoPath;
 	public String pearFilenameStr;
@@ -21,6 +94,37 @@ public class UimaAEConverterOptions {
 	public boolean annotationOffsets;
 	public List<String> contentTypes;
 	public HashSet<String> contentList = new HashSet<String>();
+	public int casPoolSize;
+	public int casInitialHeapSize;
+	public int analysisThreads;
+	public boolean streamingOutput;
+	public int metricsLogInterval;
+	public boolean entityCountLogging;
+	public int pearWatchInterval;
+	public int segmentSize;
+	public int segmentOverlap;
+	public int resultCacheSize;
+	public int resultCacheDiskSize;
+	public boolean languageDetection;
+	public int languageSampleSize;
+	public List<String> languages = new ArrayList<String>();
+	public boolean streamingInput;
+	public int analysisDaemonPort;
+	public int analysisDaemonMaxInFlight;
+	public int analysisDaemonTimeout;
+	public String casStorePath;
+	public boolean casReplay;
+	public List<String> casStoreTypes = new ArrayList<String>();
+	public int packSize;
+	public int documentTimeout;
+	public int batchTimeout;
+	public int circuitBreakerFailures;
+	public int circuitBreakerCooldown;
+	public int memoryBudget;
+	public int maxDocumentSize;
+	public boolean documentTruncation;
+	public String warmUpPath;
+	public int warmUpIterations;
 
 	public UimaAEConverterOptions (ConverterOptions options) {
 		this.pearRepoPath = options.getLastOptionValue(OPTION_PEAR_REPO_PATH);
@@ -29,6 +133,86 @@ public class UimaAEConverterOptions {
 		this.contentList.addAll(options.getOptionValues(OPTION_CONTENT_LIST));
 		this.annotationOffsets = OPTION_ANNOTATION_OFFSETS.equals(options.getLastOptionValue(OPTION_ANNOTATION_OFFSETS));
 		this.contentTypes = options.getOptionValues(OPTION_CONTENT_TYPES);
+		this.casPoolSize = getIntOption(options, OPTION_CAS_POOL_SIZE, DEFAULT_CAS_POOL_SIZE, 1);
+		this.casInitialHeapSize = getIntOption(options, OPTION_CAS_INITIAL_HEAP_SIZE, DEFAULT_CAS_INITIAL_HEAP_SIZE, 1);
+		this.analysisThreads = getIntOption(options, OPTION_ANALYSIS_THREADS, DEFAULT_ANALYSIS_THREADS, 1);
+		this.streamingOutput = OPTION_STREAMING_OUTPUT.equals(options.getLastOptionValue(OPTION_STREAMING_OUTPUT));
+		this.metricsLogInterval = getIntOption(options, OPTION_METRICS_LOG_INTERVAL, DEFAULT_METRICS_LOG_INTERVAL, 0);
+		this.entityCountLogging = OPTION_ENTITY_COUNT_LOGGING.equals(options.getLastOptionValue(OPTION_ENTITY_COUNT_LOGGING));
+		this.pearWatchInterval = getIntOption(options, OPTION_PEAR_WATCH_INTERVAL, DEFAULT_PEAR_WATCH_INTERVAL, 0);
+		this.segmentSize = getIntOption(options, OPTION_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE, 0);
+		this.segmentOverlap = getIntOption(options, OPTION_SEGMENT_OVERLAP, DEFAULT_SEGMENT_OVERLAP, 0);
+		this.resultCacheSize = getIntOption(options, OPTION_RESULT_CACHE_SIZE, DEFAULT_RESULT_CACHE_SIZE, 0);
+		this.resultCacheDiskSize = getIntOption(options, OPTION_RESULT_CACHE_DISK_SIZE, DEFAULT_RESULT_CACHE_DISK_SIZE, 0);
+		this.languageDetection = OPTION_LANGUAGE_DETECTION.equals(options.getLastOptionValue(OPTION_LANGUAGE_DETECTION));
+		this.languageSampleSize = getIntOption(options, OPTION_LANGUAGE_SAMPLE_SIZE, DEFAULT_LANGUAGE_SAMPLE_SIZE, 1);
+		for (String value : options.getOptionValues(OPTION_LANGUAGES)) {
+			for (String language : value.split("[\\r\\n,]+")) {
+				if (!language.trim().isEmpty())
+					this.languages.add(language.trim());
+			}
+		}
+		this.streamingInput = OPTION_STREAMING_INPUT.equals(options.getLastOptionValue(OPTION_STREAMING_INPUT));
+		this.analysisDaemonPort = getIntOption(options, OPTION_ANALYSIS_DAEMON_PORT, DEFAULT_ANALYSIS_DAEMON_PORT, 0);
+		this.analysisDaemonMaxInFlight = getIntOption(options, OPTION_ANALYSIS_DAEMON_MAX_IN_FLIGHT, DEFAULT_ANALYSIS_DAEMON_MAX_IN_FLIGHT, 1);
+		this.analysisDaemonTimeout = getIntOption(options, OPTION_ANALYSIS_DAEMON_TIMEOUT, DEFAULT_ANALYSIS_DAEMON_TIMEOUT, 1);
+		this.casStorePath = options.getLastOptionValue(OPTION_CAS_STORE_PATH);
+		if (this.casStorePath != null && this.casStorePath.trim().isEmpty())
+			this.casStorePath = null;
+		this.casReplay = OPTION_CAS_REPLAY.equals(options.getLastOptionValue(OPTION_CAS_REPLAY));
+		for (String value : options.getOptionValues(OPTION_CAS_STORE_TYPES)) {
+			for (String type : value.split("[\\r\\n,]+")) {
+				if (!type.trim().isEmpty())
+					this.casStoreTypes.add(type.trim());
+			}
+		}
+		this.packSize = getIntOption(options, OPTION_PACK_SIZE, DEFAULT_PACK_SIZE, 0);
+		this.documentTimeout = getIntOption(options, OPTION_DOCUMENT_TIMEOUT, DEFAULT_DOCUMENT_TIMEOUT, 0);
+		this.batchTimeout = getIntOption(options, OPTION_BATCH_TIMEOUT, DEFAULT_BATCH_TIMEOUT, 0);
+		this.circuitBreakerFailures = getIntOption(options, OPTION_CIRCUIT_BREAKER_FAILURES, DEFAULT_CIRCUIT_BREAKER_FAILURES, 0);
+		this.circuitBreakerCooldown = getIntOption(options, OPTION_CIRCUIT_BREAKER_COOLDOWN, DEFAULT_CIRCUIT_BREAKER_COOLDOWN, 1);
+		this.memoryBudget = getIntOption(options, OPTION_MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET, 0);
+		this.maxDocumentSize = getIntOption(options, OPTION_MAX_DOCUMENT_SIZE, DEFAULT_MAX_DOCUMENT_SIZE, 0);
+		this.documentTruncation = OPTION_DOCUMENT_TRUNCATION.equals(options.getLastOptionValue(OPTION_DOCUMENT_TRUNCATION));
+		this.warmUpPath = options.getLastOptionValue(OPTION_WARM_UP_PATH);
+		if (this.warmUpPath != null && this.warmUpPath.trim().isEmpty())
+			this.warmUpPath = null;
+		this.warmUpIterations = getIntOption(options, OPTION_WARM_UP_ITERATIONS, DEFAULT_WARM_UP_ITERATIONS, 0);
+	}
+	
+	/**
+	 * The names and values, in pairs, of the options that decide what is extracted from a
+	 * document.
+	 */
+	static List<String> analysisOptions(ConverterOptions options) {
+		List<String> pairs = new ArrayList<String>();
+		for (String name : ANALYSIS_OPTIONS) {
+			for (String value : options.getOptionValues(name)) {
+				pairs.add(name);
+				pairs.add(value);
+			}
+		}
+		return pairs;
+	}
+	
+	/**
+	 * Read a numeric option, using the default if it is not set.
+	 * 
+	 * @throws FatalConverterException if the value is not a number or is below the minimum
+	 */
+	private static int getIntOption(ConverterOptions options, String name, int defaultValue, int minValue) {
+		String value = options.getLastOptionValue(name);
+		if (value == null || value.trim().isEmpty())
+			return defaultValue;
+		int result;
+		try {
+			result = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new FatalConverterException("Option " + name + " is not a number: " + value);
+		}
+		if (result < minValue)
+			throw new FatalConverterException("Option " + name + " must be at least " + minValue + ": " + value);
+		return result;
 	}
 	
 	public void validateOptions() {
@@ -0,0 +1,167 @@
+package com.mnsuk.converter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of CAS instances created lazily from an analysis engine.
+ * <p>
+ * A CAS is reset when it is given back and then reused for the next document, so the
+ * (large) CAS heap is allocated at most once per pool slot instead of once per document.
+ * When all slots are in use callers wait for one to be released. A CAS that is discarded
+ * rather than given back frees its slot too, and a waiting caller then creates a new CAS.
+ */
+public class UimaCasPool {
+	private static final Logger LOGGER = LoggerFactory.getLogger(UimaCasPool.class);
+
+	private final AnalysisEngine ae;
+	private final int maxSize;
+	// a permit for each slot not holding a CAS in use
+	private final Semaphore slots;
+	private final ArrayBlockingQueue<CAS> idle;
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+
+	public UimaCasPool(AnalysisEngine ae, int maxSize) {
+		this.ae = ae;
+		this.maxSize = Math.max(1, maxSize);
+		this.slots = new Semaphore(this.maxSize);
+		this.idle = new ArrayBlockingQueue<CAS>(this.maxSize);
+	}
+
+	/**
+	 * Take a CAS from the pool, creating one if no idle CAS is left and blocking while all
+	 * the slots are in use.
+	 *
+	 * @return An empty CAS which must be given back with {@link #releaseCas(CAS)}
+	 * @throws ResourceInitializationException if a new CAS cannot be created
+	 */
+	public CAS getCas() throws ResourceInitializationException {
+		if (!slots.tryAcquire()) {
+			waits.incrementAndGet();
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ResourceInitializationException(e);
+			}
+		}
+		return take();
+	}
+
+	/**
+	 * Take a CAS from the pool, creating one if no idle CAS is left and blocking for at most
+	 * a time while all the slots are in use.
+	 *
+	 * @param timeoutNanos How long to wait for a slot
+	 * @return An empty CAS which must be given back with {@link #releaseCas(CAS)}
+	 * @throws ResourceInitializationException if a new CAS cannot be created
+	 * @throws TimeoutException if no slot was freed in time
+	 */
+	public CAS getCas(long timeoutNanos) throws ResourceInitializationException, TimeoutException {
+		if (!slots.tryAcquire()) {
+			waits.incrementAndGet();
+			try {
+				if (!slots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS))
+					throw new TimeoutException("No CAS free in " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ResourceInitializationException(e);
+			}
+		}
+		return take();
+	}
+
+	/**
+	 * Take an idle CAS or create one, for a slot already acquired.
+	 */
+	private CAS take() throws ResourceInitializationException {
+		CAS cas = idle.poll();
+		if (cas != null) {
+			hits.incrementAndGet();
+			return cas;
+		}
+		misses.incrementAndGet();
+		try {
+			cas = ae.newCAS();
+		} catch (ResourceInitializationException e) {
+			slots.release();
+			throw e;
+		} catch (RuntimeException e) {
+			slots.release();
+			throw e;
+		}
+		created.incrementAndGet();
+		return cas;
+	}
+
+	/**
+	 * Reset a CAS and make it available for reuse.
+	 *
+	 * @param cas CAS previously obtained from {@link #getCas()}, may be null
+	 */
+	public void releaseCas(CAS cas) {
+		if (cas == null)
+			return;
+		try {
+			cas.reset();
+		} catch (RuntimeException e) {
+			LOGGER.warn("Discarding CAS that could not be reset: " + e.getMessage());
+			discardCas(cas);
+			return;
+		}
+		if (!idle.offer(cas))
+			created.decrementAndGet();
+		slots.release();
+	}
+
+	/**
+	 * Drop a CAS that must not be reused, freeing its slot for a new one.
+	 *
+	 * @param cas CAS previously obtained from {@link #getCas()}, may be null
+	 */
+	public void discardCas(CAS cas) {
+		if (cas == null)
+			return;
+		created.decrementAndGet();
+		slots.release();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getCreated() {
+		return created.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getWaits() {
+		return waits.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CAS pool size " + maxSize + ", created " + created.get() + ", hits " + hits.get()
+				+ ", misses " + misses.get() + ", waits " + waits.get();
+	}
+}
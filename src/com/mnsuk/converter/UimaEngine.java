@@ -0,0 +1,519 @@
+package com.mnsuk.converter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * An analysis engine together with the pool of CASes used to run it.
+ * <p>
+ * The analysis engine can be replaced while documents are being analysed with
+ * {@link #swap(AnalysisEngine, PearInstaller.Installation)}. Documents already being
+ * analysed finish on the engine they started on, and that engine is destroyed when the
+ * last of their CASes is released.
+ */
+public class UimaEngine {
+	private static final Logger LOGGER = LoggerFactory.getLogger(UimaEngine.class);
+
+	/** Language of documents when it is not identified. */
+	public static final String DEFAULT_LANGUAGE = "en";
+	/** Time limit for {@link #analyse(String, String, long)} that means no limit. */
+	public static final long NO_TIMEOUT = Long.MAX_VALUE / 4;
+	private static final String WARM_UP_TEXT = "This document warms up the analysis engine before it is used.";
+
+	// threads running the engine for documents analysed with a time limit, shared by all engines
+	private static final ExecutorService PROCESSORS = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "uimaae-process-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// states of a time limited engine run
+	private static final int RUN_PENDING = 0;
+	private static final int RUN_STARTED = 1;
+	private static final int RUN_FINISHED = 2;
+	private static final int RUN_ABANDONED = 3;
+
+	private final int casPoolSize;
+	private volatile Generation current;
+	private volatile List<String> warmUpTexts = Collections.singletonList(WARM_UP_TEXT);
+	private volatile long warmUpNanos = 0;
+	// the engine generation each CAS handed out by analyse came from
+	private final Map<CAS, Generation> checkedOut = new IdentityHashMap<CAS, Generation>();
+	private Closeable watcher = null;
+	private boolean destroyed = false;
+
+	/**
+	 * One analysis engine, its CAS pool and the pear installation it runs from.
+	 */
+	private static final class Generation {
+		private final AnalysisEngine ae;
+		private final UimaCasPool casPool;
+		private final PearInstaller.Installation installation;
+		private final String modelId;
+		private int inFlight = 0;
+		private boolean retired = false;
+
+		private Generation(AnalysisEngine ae, int casPoolSize, PearInstaller.Installation installation) {
+			this.ae = ae;
+			this.casPool = new UimaCasPool(ae, casPoolSize);
+			this.installation = installation;
+			this.modelId = installation == null ? "" : installation.getId();
+		}
+
+		private void destroy() {
+			LOGGER.info(casPool.toString());
+			ae.destroy();
+			if (installation != null) {
+				UimaEngineLoader.releaseResourceManager(installation);
+				installation.close();
+			}
+		}
+	}
+
+	public UimaEngine(AnalysisEngine ae, int casPoolSize) {
+		this(ae, casPoolSize, null);
+	}
+
+	/**
+	 * @param installation The pear installation the engine runs from, closed when the
+	 *        engine is destroyed, may be null
+	 */
+	public UimaEngine(AnalysisEngine ae, int casPoolSize, PearInstaller.Installation installation) {
+		this.casPoolSize = casPoolSize;
+		this.current = new Generation(ae, casPoolSize, installation);
+	}
+
+	/**
+	 * Run the analysis engine over an English document.
+	 *
+	 * @see #analyse(String, String)
+	 */
+	public CAS analyse(String docText) {
+		return analyse(docText, DEFAULT_LANGUAGE);
+	}
+
+	/**
+	 * Run the analysis engine over a document, with no time limit.
+	 *
+	 * @return The processed CAS, or null if there is no text, no CAS could be obtained or the
+	 *         engine failed on the document
+	 * @see #analyse(String, String, long)
+	 */
+	public CAS analyse(String docText, String language) {
+		try {
+			return analyse(docText, language, NO_TIMEOUT);
+		} catch (AnalysisFailedException e) {
+			LOGGER.error("CAS processing error {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Run the analysis engine over a document. The returned CAS holds the results of
+	 * the single pass and is used for the extraction of all configured types. It comes
+	 * from the engine's CAS pool and must be given back with {@link #release(CAS)}.
+	 * <p>
+	 * With a time limit the engine runs on a processing thread while the caller waits. If the
+	 * engine has not finished when the time is up the caller gives up on the document, and
+	 * the CAS is discarded rather than reused when the engine does finish, so a CAS pool slot
+	 * stays in use for as long as the engine runs on. A CAS the engine failed on is discarded
+	 * too, as it may hold only some of the annotations. The time limit also bounds the wait
+	 * for a free CAS.
+	 *
+	 * @param  docText Text of the document to analyse
+	 * @param  language Document language set in the CAS
+	 * @param  timeoutNanos How long to wait for the engine, {@link #NO_TIMEOUT} for no limit
+	 * @return The processed CAS, or null if there is no text or no CAS could be obtained
+	 * @throws AnalysisFailedException if the engine failed on the document, or no CAS was
+	 *         free or the engine did not finish the document in time
+	 */
+	public CAS analyse(String docText, String language, long timeoutNanos) throws AnalysisFailedException {
+		if (docText == null || docText.isEmpty()) {
+			LOGGER.error("No document text to analyse");
+			return null;
+		}
+		if (timeoutNanos <= 0)
+			throw new AnalysisFailedException("No time left to analyse the document", true);
+		long start = System.nanoTime();
+		CAS cas;
+		try {
+			cas = checkOutCas(timeoutNanos);
+		} catch (TimeoutException e) {
+			throw new AnalysisFailedException(e.getMessage(), true);
+		}
+		if (cas == null)
+			return null;
+		Generation generation;
+		synchronized (checkedOut) {
+			generation = checkedOut.get(cas);
+		}
+		if (timeoutNanos < NO_TIMEOUT) {
+			timeoutNanos -= System.nanoTime() - start;
+			if (timeoutNanos <= 0) {
+				release(cas);
+				throw new AnalysisFailedException("No time left to analyse the document", true);
+			}
+		}
+		boolean processed = false;
+		try {
+			cas.setDocumentText(docText);
+			cas.setDocumentLanguage(language);
+			if (timeoutNanos >= NO_TIMEOUT)
+				generation.ae.process(cas);
+			else
+				processWithin(generation.ae, cas, timeoutNanos);
+			processed = true;
+			return cas;
+		} catch (AnalysisEngineProcessException e) {
+			throw new AnalysisFailedException(e.toString(), (Throwable) e);
+		} catch (AnalysisFailedException e) {
+			if (e.isTimedOut())
+				processed = true; // the processing thread discards the CAS when the engine finishes
+			throw e;
+		} finally {
+			if (!processed)
+				discard(cas);
+		}
+	}
+
+	/**
+	 * Run the engine over a CAS on a processing thread, giving up on it after a time.
+	 *
+	 * @throws AnalysisFailedException if the time is up before the engine finishes, in which
+	 *         case the processing thread is interrupted and the CAS is discarded once the
+	 *         engine finishes
+	 */
+	private void processWithin(final AnalysisEngine ae, final CAS cas, long timeoutNanos)
+			throws AnalysisEngineProcessException, AnalysisFailedException {
+		final AtomicInteger state = new AtomicInteger(RUN_PENDING);
+		Future<Void> run = PROCESSORS.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws AnalysisEngineProcessException {
+				if (!state.compareAndSet(RUN_PENDING, RUN_STARTED))
+					return null;
+				try {
+					ae.process(cas);
+				} finally {
+					if (!state.compareAndSet(RUN_STARTED, RUN_FINISHED))
+						discard(cas);
+				}
+				return null;
+			}
+		});
+		boolean interrupted = false;
+		try {
+			run.get(timeoutNanos, TimeUnit.NANOSECONDS);
+			return;
+		} catch (ExecutionException e) {
+			throw processFailure(e);
+		} catch (TimeoutException e) {
+			// give up below, unless the engine has just finished
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		String message = "Analysis did not finish in " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms";
+		if (state.compareAndSet(RUN_PENDING, RUN_ABANDONED)) {
+			run.cancel(false);
+			discard(cas);
+			throw new AnalysisFailedException(message, true);
+		}
+		if (state.compareAndSet(RUN_STARTED, RUN_ABANDONED)) {
+			run.cancel(true);
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			throw new AnalysisFailedException(message, true);
+		}
+		try {
+			run.get();
+		} catch (ExecutionException e) {
+			throw processFailure(e);
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static AnalysisEngineProcessException processFailure(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof AnalysisEngineProcessException)
+			return (AnalysisEngineProcessException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return new AnalysisEngineProcessException(cause);
+	}
+
+	/**
+	 * Get an empty CAS of the engine's type system without running the engine, to be filled
+	 * from elsewhere. It must be given back with {@link #release(CAS)}.
+	 *
+	 * @return The CAS, or null if none could be obtained
+	 */
+	public CAS emptyCas() {
+		return emptyCas(NO_TIMEOUT);
+	}
+
+	/**
+	 * Get an empty CAS of the engine's type system without running the engine, waiting for
+	 * at most a time while the CAS pool is in use. It must be given back with
+	 * {@link #release(CAS)}.
+	 *
+	 * @param timeoutNanos How long to wait for a CAS, {@link #NO_TIMEOUT} for no limit
+	 * @return The CAS, or null if none could be obtained in time
+	 */
+	public CAS emptyCas(long timeoutNanos) {
+		try {
+			return checkOutCas(timeoutNanos);
+		} catch (TimeoutException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Take a CAS from the current engine's pool, recording the engine it came from.
+	 *
+	 * @return The CAS, or null if none could be created
+	 * @throws TimeoutException if the pool was in use for the whole time
+	 */
+	private CAS checkOutCas(long timeoutNanos) throws TimeoutException {
+		Generation generation = checkOut();
+		CAS cas;
+		try {
+			if (timeoutNanos >= NO_TIMEOUT)
+				cas = generation.casPool.getCas();
+			else
+				cas = generation.casPool.getCas(Math.max(timeoutNanos, 0));
+		} catch (ResourceInitializationException e) {
+			LOGGER.error("Error creating CAS {}", e.toString());
+			checkIn(generation);
+			return null;
+		} catch (TimeoutException e) {
+			checkIn(generation);
+			throw e;
+		} catch (RuntimeException e) {
+			checkIn(generation);
+			throw e;
+		}
+		synchronized (checkedOut) {
+			checkedOut.put(cas, generation);
+		}
+		return cas;
+	}
+
+	/**
+	 * Give a CAS obtained from {@link #analyse(String, String)} or {@link #emptyCas()} back to
+	 * the pool it came from.
+	 */
+	public void release(CAS cas) {
+		if (cas == null)
+			return;
+		Generation generation;
+		synchronized (checkedOut) {
+			generation = checkedOut.remove(cas);
+		}
+		if (generation == null) {
+			LOGGER.warn("Releasing a CAS that was not obtained from this engine");
+			return;
+		}
+		generation.casPool.releaseCas(cas);
+		checkIn(generation);
+	}
+
+	/**
+	 * Drop a CAS that must not be reused, freeing its slot in the pool it came from.
+	 */
+	private void discard(CAS cas) {
+		Generation generation;
+		synchronized (checkedOut) {
+			generation = checkedOut.remove(cas);
+		}
+		if (generation == null)
+			return;
+		generation.casPool.discardCas(cas);
+		checkIn(generation);
+	}
+
+	public UimaCasPool getCasPool() {
+		return current.casPool;
+	}
+
+	/**
+	 * Identifies the pear content the current analysis engine was created from, empty if
+	 * it was not created from an installed pear. Changes when a changed pear is swapped in.
+	 */
+	public String getModelId() {
+		return current.modelId;
+	}
+
+	/**
+	 * Run sample documents through the engine before it is used, so the annotators' classes,
+	 * resources and the JIT compiled code are loaded by the warm up rather than by the first
+	 * documents. The samples are kept to warm up engines swapped in later.
+	 *
+	 * @param texts Sample document texts, or empty to use a short built in document
+	 * @param iterations Times to run the samples
+	 * @throws Exception if the engine fails on a sample
+	 */
+	public void warmUp(List<String> texts, int iterations) throws Exception {
+		if (!texts.isEmpty())
+			warmUpTexts = texts;
+		long start = System.nanoTime();
+		warmUp(current, warmUpTexts, iterations);
+		warmUpNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * @return How long the last {@link #warmUp(List, int)} took
+	 */
+	public long getWarmUpNanos() {
+		return warmUpNanos;
+	}
+
+	/**
+	 * Replace the analysis engine. The new engine is warmed up with the sample documents before
+	 * it is used, then documents already being analysed finish on the old engine, which is
+	 * destroyed once they have all been released.
+	 *
+	 * @param ae The new analysis engine
+	 * @param installation The pear installation it runs from, closed when it is destroyed
+	 * @throws FatalConverterException if the new engine fails to analyse the warm up document,
+	 *         in which case it is destroyed and the current engine is kept
+	 */
+	public void swap(AnalysisEngine ae, PearInstaller.Installation installation) throws FatalConverterException {
+		Generation next = new Generation(ae, casPoolSize, installation);
+		try {
+			warmUp(next, warmUpTexts, 1);
+		} catch (Exception e) {
+			next.destroy();
+			throw new FatalConverterException("New analysis engine failed to warm up: " + e.getMessage(), (Throwable) e);
+		}
+		Generation old;
+		boolean drained;
+		synchronized (this) {
+			if (destroyed) {
+				drained = false;
+				old = null;
+			} else {
+				old = current;
+				current = next;
+				old.retired = true;
+				drained = old.inFlight == 0;
+			}
+		}
+		if (old == null) {
+			next.destroy();
+			return;
+		}
+		LOGGER.info("Swapped in new analysis engine, " + (drained ? "destroying" : "draining") + " the previous one");
+		if (drained)
+			old.destroy();
+	}
+
+	/**
+	 * Set a watcher to be closed before the engine is destroyed.
+	 */
+	public synchronized void setWatcher(Closeable watcher) {
+		this.watcher = watcher;
+	}
+
+	public void destroy() {
+		Closeable w;
+		synchronized (this) {
+			w = watcher;
+			watcher = null;
+		}
+		if (w != null) {
+			try {
+				w.close();
+			} catch (IOException e) {
+				LOGGER.debug("Error closing pear watcher", e);
+			}
+		}
+		Generation generation;
+		synchronized (this) {
+			if (destroyed)
+				return;
+			destroyed = true;
+			generation = current;
+		}
+		generation.destroy();
+	}
+
+	/**
+	 * The type system of the engine, shared by every CAS in its pool. A swapped in engine
+	 * may have a different type system.
+	 *
+	 * @throws FatalConverterException if no CAS can be created
+	 */
+	public TypeSystem getTypeSystem() throws FatalConverterException {
+		CAS cas = emptyCas();
+		if (cas == null)
+			throw new FatalConverterException("Error creating CAS");
+		try {
+			return cas.getTypeSystem();
+		} finally {
+			release(cas);
+		}
+	}
+
+	private synchronized Generation checkOut() {
+		Generation generation = current;
+		generation.inFlight++;
+		return generation;
+	}
+
+	private void checkIn(Generation generation) {
+		synchronized (this) {
+			if (--generation.inFlight > 0 || !generation.retired)
+				return;
+		}
+		LOGGER.info("Previous analysis engine drained, destroying it");
+		generation.destroy();
+	}
+
+	private static void warmUp(Generation generation, List<String> texts, int iterations) throws Exception {
+		CAS cas = generation.casPool.getCas();
+		try {
+			for (int i = 0; i < iterations; i++) {
+				for (String text : texts) {
+					cas.reset();
+					cas.setDocumentText(text);
+					cas.setDocumentLanguage(DEFAULT_LANGUAGE);
+					generation.ae.process(cas);
+				}
+			}
+		} finally {
+			generation.casPool.releaseCas(cas);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.pear.tools.InstallationDescriptor;
+import org.apache.uima.pear.tools.PackageBrowser;
+import org.apache.uima.resource.Resource;
+import org.apache.uima.resource.ResourceManager;
+import org.apache.uima.resource.ResourceSpecifier;
+import org.apache.uima.util.XMLInputSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * Installs the configured pear file from the pear support folder and creates the analysis
+ * engine for it.
+ */
+public class UimaEngineLoader {
+	private static final Logger LOGGER = LoggerFactory.getLogger(UimaEngineLoader.class);
+
+	// folder of an installed pear holding its warm up documents
+	private static final String WARM_UP_FOLDER = "warmup";
+	// the resource manager of the latest installation of each pear component, by component ID
+	private static final Map<String, SharedResourceManager> RESOURCE_MANAGERS = new HashMap<String, SharedResourceManager>();
+
+	private static final class SharedResourceManager {
+		private final String installationId;
+		private final ResourceManager resourceManager;
+		// engines created with the resource manager and not yet destroyed
+		private int refCount = 0;
+
+		private SharedResourceManager(String installationId, ResourceManager resourceManager) {
+			this.installationId = installationId;
+			this.resourceManager = resourceManager;
+		}
+	}
+
+	private final UimaAEConverterOptions opts;
+	private final File pearSupportFolder;
+
+	/**
+	 * @param opts Converter options
+	 * @param pearSupportFolder Folder containing the <code>repo</code> and <code>run</code> folders
+	 */
+	public UimaEngineLoader(UimaAEConverterOptions opts, File pearSupportFolder) {
+		this.opts = opts;
+		this.pearSupportFolder = pearSupportFolder;
+	}
+
+	/**
+	 * @throws FatalConverterException
+	 * 
+	 * Get a UIMA analysis engine for the configured pear file. Engines are shared across
+	 * converter instances in the JVM, so an engine already created for the same component ID,
+	 * pear timestamp and engine settings is reused. Otherwise the pear is installed, unless an installation of
+	 * the same content already exists, and a new engine is created from the installation.
+	 */
+	public UimaEngine load() throws FatalConverterException {
+		return load(opts.pearFilenameStr);
+	}
+
+	/**
+	 * @throws FatalConverterException
+	 * 
+	 * Get a UIMA analysis engine for a pear file in the pear repository, as for {@link #load()}.
+	 */
+	public UimaEngine load(String pearFilename) throws FatalConverterException {
+		if (pearSupportFolder == null || !pearSupportFolder.isDirectory()) {
+			String msg = pearSupportFolder != null ? "Installation directory " + pearSupportFolder.toString() : "Pear support folder";
+			msg += " does not exist.";
+			LOGGER.error(msg);
+			throw new FatalConverterException(msg); 
+		}
+		File pearRepo = new File(pearSupportFolder, "repo");		
+		if (!pearRepo.isDirectory()) {
+			String msg = "Pear repository directory " + pearRepo.toString() + " does not exist.";
+			LOGGER.error(msg);
+			throw new FatalConverterException(msg); 
+		}
+		final File pearRun = new File(pearSupportFolder, "run");
+		if (!pearRun.isDirectory()) {
+			String msg = "Installed pear directory " + pearRun.toString() + " does not exist.";
+			LOGGER.error(msg);
+			throw new FatalConverterException(msg);  
+		}
+		if (!pearRun.canWrite()) {
+			String msg = "Cannot write to the pear installation directory " + pearRun.toString();
+			LOGGER.error(msg);
+			throw new FatalConverterException(msg);  
+		}
+		final File pear = new File(pearRepo, pearFilename);
+		if (!pear.isFile()) {
+			String msg = "Specified Pear file cannot be read: " + pear.toString();
+			LOGGER.error(msg);
+			throw new FatalConverterException(msg);
+		}
+		final long pearModified = pear.lastModified();
+		final String pearCompId = readComponentId(pear);
+		LOGGER.info("PEAR file component ID is " + pearCompId);
+		return UimaEngineRegistry.acquire(pearCompId, pearModified, engineSettings(), startupSettings(),
+				new UimaEngineRegistry.EngineFactory() {
+			@Override
+			public UimaEngine create() throws FatalConverterException {
+				PearInstaller.Installation installation = installPear(pearRun, pear, pearCompId);
+				UimaEngine engine = createEngine(installation);
+				if (opts.pearWatchInterval > 0) {
+					engine.setWatcher(new PearWatcher(UimaEngineLoader.this, engine, pearRun, pear, pearCompId,
+							installation.getDirectory(), opts.pearWatchInterval));
+				}
+				return engine;
+			}
+		});
+	}
+
+	/**
+	 * The options that shape a running engine, so converters with different values need
+	 * different engines.
+	 */
+	private String engineSettings() {
+		return "analysis-threads=" + opts.analysisThreads + ", cas-pool-size=" + casPoolSize()
+				+ ", cas-initial-heap-size=" + opts.casInitialHeapSize;
+	}
+
+	/**
+	 * The options only used while an engine starts, or by its pear watcher.
+	 */
+	private String startupSettings() {
+		return "warm-up-path=" + (opts.warmUpPath == null ? "" : opts.warmUpPath) + ", warm-up-iterations="
+				+ opts.warmUpIterations + ", pear-watch-interval=" + opts.pearWatchInterval;
+	}
+
+	/**
+	 * @throws FatalConverterException
+	 * 
+	 * Read the main component ID from a pear file, falling back to the file name if it has none.
+	 */
+	static String readComponentId(File pear) throws FatalConverterException {
+		InstallationDescriptor id;
+		JarFile jpear = null;
+		try {
+			jpear = new JarFile(pear);
+			PackageBrowser pb = new PackageBrowser(jpear);
+			id = pb.getInstallationDescriptor();
+		} catch (Exception e) {
+			throw new FatalConverterException("Error reading pear file: " + e.getMessage(), (Throwable) e);
+		} finally {
+			if (jpear != null) {
+				try {
+					jpear.close();
+				} catch (IOException e) {
+					LOGGER.debug("Error closing pear file", e);
+				}
+			}
+		}
+		String compId = id.getMainComponentId();
+		if (compId == null) {
+			compId = pear.getName().replaceFirst("[.][^.]+$", "");
+			String msg = "PEAR file contains no component ID, using filename as ID.";
+			LOGGER.warn(msg);
+		}
+		return compId;
+	}
+
+	/**
+	 * @throws FatalConverterException
+	 * 
+	 * Install the pear file into the run folder, unless an installation of the same content
+	 * already exists.
+	 */
+	PearInstaller.Installation installPear(File pearRun, File pear, String pearCompId) throws FatalConverterException {
+		return new PearInstaller(pearRun).install(pear, pearCompId);
+	}
+
+	/**
+	 * @throws FatalConverterException
+	 * 
+	 * Create an analysis engine, with its CAS pool, from an installed pear.
+	 */
+	UimaEngine createEngine(PearInstaller.Installation installation) throws FatalConverterException {
+		int casPoolSize = casPoolSize();
+		int wanted = Math.max(opts.casPoolSize, opts.analysisThreads);
+		if (casPoolSize < wanted)
+			LOGGER.warn("Using " + casPoolSize + " CASes instead of " + wanted + " to keep their heaps within the memory budget");
+		UimaEngine engine = new UimaEngine(createAnalysisEngine(installation), casPoolSize, installation);
+		if (opts.warmUpIterations > 0) {
+			try {
+				engine.warmUp(warmUpTexts(installation), opts.warmUpIterations);
+			} catch (Exception e) {
+				engine.destroy();
+				LOGGER.error("Analysis engine failed to warm up: " + e.getMessage());
+				throw new FatalConverterException("Analysis engine failed to warm up: " + e.getMessage(), (Throwable) e);
+			}
+			LOGGER.info("Warmed up analysis engine in " + TimeUnit.NANOSECONDS.toMillis(engine.getWarmUpNanos()) + " ms");
+		}
+		return engine;
+	}
+
+	/**
+	 * The sample documents to warm up an engine with: the files of the warm up path option if
+	 * it is set, otherwise those in the installed pear's <code>warmup</code> folder.
+	 *
+	 * @return The texts, empty if there are none
+	 */
+	List<String> warmUpTexts(PearInstaller.Installation installation) {
+		File path;
+		if (opts.warmUpPath != null) {
+			path = new File(opts.warmUpPath);
+			if (!path.isAbsolute())
+				path = new File(pearSupportFolder, opts.warmUpPath);
+			if (!path.exists())
+				LOGGER.warn("Warm up path " + path + " does not exist");
+		} else {
+			path = new File(installation.getDirectory(), WARM_UP_FOLDER);
+		}
+		File[] files = path.isDirectory() ? path.listFiles() : new File[] { path };
+		List<String> texts = new ArrayList<String>();
+		if (files == null)
+			return texts;
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.isFile())
+				continue;
+			try {
+				String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+				if (!text.isEmpty())
+					texts.add(text);
+			} catch (IOException e) {
+				LOGGER.warn("Cannot read warm up document " + file + ": " + e.getMessage());
+			}
+		}
+		return texts;
+	}
+
+	/**
+	 * The resource manager for engines created from an installation. Engines created again
+	 * from the same installation, such as when a pear is touched without changing or a
+	 * converter starts after the last one using the engine terminated, share the resource
+	 * manager, so the pear's class loader and the classes it loaded are reused rather than
+	 * loaded again. Only the latest installation of each component is kept, and only while an
+	 * engine uses it. It must be given back with {@link #releaseResourceManager(PearInstaller.Installation)}
+	 * when the engine is destroyed.
+	 */
+	private static ResourceManager resourceManager(PearInstaller.Installation installation) {
+		String id = installation.getId();
+		synchronized (RESOURCE_MANAGERS) {
+			SharedResourceManager shared = RESOURCE_MANAGERS.get(installation.getComponentId());
+			if (shared != null && shared.installationId.equals(id)) {
+				LOGGER.info("Reusing the resource manager of " + id);
+			} else {
+				shared = new SharedResourceManager(id, UIMAFramework.newDefaultResourceManager());
+				RESOURCE_MANAGERS.put(installation.getComponentId(), shared);
+			}
+			shared.refCount++;
+			return shared.resourceManager;
+		}
+	}
+
+	/**
+	 * @return The resource manager shared by engines of a component, or null if none is
+	 */
+	static ResourceManager sharedResourceManager(String componentId) {
+		synchronized (RESOURCE_MANAGERS) {
+			SharedResourceManager shared = RESOURCE_MANAGERS.get(componentId);
+			return shared == null ? null : shared.resourceManager;
+		}
+	}
+
+	/**
+	 * Stop sharing the resource manager of an installation once no engine created from the
+	 * installation is left, so the pear's class loader can be freed.
+	 */
+	static void releaseResourceManager(PearInstaller.Installation installation) {
+		synchronized (RESOURCE_MANAGERS) {
+			SharedResourceManager shared = RESOURCE_MANAGERS.get(installation.getComponentId());
+			// a replaced installation's resource manager is freed with its last engine
+			if (shared == null || !shared.installationId.equals(installation.getId()))
+				return;
+			if (--shared.refCount == 0)
+				RESOURCE_MANAGERS.remove(installation.getComponentId());
+		}
+	}
+
+	/**
+	 * A CAS for each analysis thread, or more if configured, but with a memory budget no
+	 * more than fit their initial heaps into half of it.
+	 */
+	private int casPoolSize() {
+		int size = Math.max(opts.casPoolSize, opts.analysisThreads);
+		if (opts.memoryBudget > 0) {
+			// the CAS heap is an array of 4 byte cells
+			long casBytes = 4L * opts.casInitialHeapSize;
+			size = (int) Math.max(1, Math.min(size, opts.memoryBudget * 1024L * 1024L / 2 / casBytes));
+		}
+		return size;
+	}
+
+	/**
+	 * @throws FatalConverterException
+	 * 
+	 * Create an analysis engine from an installed pear. The installation is closed if it fails.
+	 */
+	AnalysisEngine createAnalysisEngine(PearInstaller.Installation installation) throws FatalConverterException {
+		ResourceManager rsMgr = null;
+		try {
+			PackageBrowser installedPear = installation.getPackageBrowser();
+			rsMgr = resourceManager(installation);
+			XMLInputSource in = new XMLInputSource(installedPear.getComponentPearDescPath());
+			ResourceSpecifier rspec = UIMAFramework.getXMLParser().parseResourceSpecifier(in);
+			// tuning CAS
+			Properties perfProps = UIMAFramework.getDefaultPerformanceTuningProperties();
+			perfProps.setProperty(UIMAFramework.CAS_INITIAL_HEAP_SIZE, String.valueOf(opts.casInitialHeapSize));
+			HashMap<String, Object> params = new HashMap<String, Object>();
+			params.put(Resource.PARAM_PERFORMANCE_TUNING_SETTINGS, perfProps);
+			// one annotator replica per analysis thread
+			params.put(AnalysisEngine.PARAM_NUM_SIMULTANEOUS_REQUESTS, Integer.valueOf(opts.analysisThreads));
+			return UIMAFramework.produceAnalysisEngine(rspec, rsMgr, params);
+		} catch (Exception e) {
+			if (rsMgr != null)
+				releaseResourceManager(installation);
+			installation.close();
+			LOGGER.error("Error creating  analysis engine from pear: " + e.getMessage());
+			throw new FatalConverterException("Error creating  analysis engine from pear: " + e.getMessage(), (Throwable) e);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.mnsuk.converter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * JVM wide registry of analysis engines, shared between converter instances.
+ * <p>
+ * Engines are keyed by PEAR component ID, PEAR file timestamp and the settings that shape
+ * the running engine, such as its analysis threads and CAS pool. The first converter to
+ * ask for a key installs the PEAR and creates the engine, later converters get the same,
+ * already initialised, engine. Engines are reference counted and released when a converter
+ * terminates; an engine nothing uses is destroyed after {@link #IDLE_SECONDS}, so a
+ * converter restarted straight away still finds it. When a PEAR with a newer timestamp is
+ * requested the older engine is retired and destroyed as soon as nothing is using it. An
+ * engine that has swapped in a changed PEAR itself is registered again under the new
+ * timestamp, so converters starting later share it.
+ * <p>
+ * Settings used only while the engine starts, such as its warm up, are taken from the
+ * first converter that asks for it; a converter asking with other startup settings gets
+ * the engine as it is, with a warning.
+ */
+public final class UimaEngineRegistry {
+	private static final Logger LOGGER = LoggerFactory.getLogger(UimaEngineRegistry.class);
+
+	/** Seconds an engine nothing uses is kept before it is destroyed. */
+	static final int IDLE_SECONDS = 60;
+
+	private static final Map<String, Entry> ENGINES = new HashMap<String, Entry>();
+	private static final Map<UimaEngine, Entry> IN_USE = new IdentityHashMap<UimaEngine, Entry>();
+	private static ScheduledExecutorService evictor = null;
+
+	/**
+	 * Creates an engine for a registry entry that does not have one yet.
+	 */
+	public interface EngineFactory {
+		UimaEngine create() throws FatalConverterException;
+	}
+
+	private static final class Entry {
+		private String key;
+		private final String componentId;
+		private long timestamp;
+		private final String settings;
+		private final String startupSettings;
+		private UimaEngine engine = null;
+		private int refCount = 0;
+		private boolean retired = false;
+		private ScheduledFuture<?> eviction = null;
+
+		private Entry(String key, String componentId, long timestamp, String settings, String startupSettings) {
+			this.key = key;
+			this.componentId = componentId;
+			this.timestamp = timestamp;
+			this.settings = settings;
+			this.startupSettings = startupSettings;
+		}
+	}
+
+	private UimaEngineRegistry() {
+	}
+
+	/**
+	 * Get the engine for a PEAR, creating it with the factory if it is not registered yet.
+	 * Every successful call must be matched by a call to {@link #release(UimaEngine)}.
+	 *
+	 * @param componentId PEAR main component ID
+	 * @param timestamp PEAR file last modified time
+	 * @param settings The settings that shape the running engine; converters with different
+	 *        settings get different engines
+	 * @param startupSettings The settings used only while the engine starts
+	 * @param factory Used to install the PEAR and create the engine on first use
+	 * @return The shared engine
+	 * @throws FatalConverterException if the engine cannot be created
+	 */
+	public static UimaEngine acquire(String componentId, long timestamp, String settings, String startupSettings,
+			EngineFactory factory) throws FatalConverterException {
+		Entry entry;
+		String key = key(componentId, timestamp, settings);
+		List<UimaEngine> unused = new ArrayList<UimaEngine>();
+		synchronized (ENGINES) {
+			entry = ENGINES.get(key);
+			if (entry == null) {
+				entry = new Entry(key, componentId, timestamp, settings, startupSettings);
+				ENGINES.put(key, entry);
+				for (Iterator<Entry> it = ENGINES.values().iterator(); it.hasNext();) {
+					Entry old = it.next();
+					if (old.componentId.equals(componentId) && old.timestamp < timestamp) {
+						it.remove();
+						old.retired = true;
+						LOGGER.info("Retiring analysis engine for " + old.key);
+						if (old.refCount == 0 && old.engine != null) {
+							cancelEviction(old);
+							unused.add(old.engine);
+						}
+					}
+				}
+			} else if (!entry.startupSettings.equals(startupSettings)) {
+				LOGGER.warn("Sharing the analysis engine for " + key + " started with " + entry.startupSettings
+						+ " instead of " + startupSettings);
+			}
+			cancelEviction(entry);
+			entry.refCount++;
+		}
+		destroy(unused);
+
+		synchronized (entry) {
+			if (entry.engine == null) {
+				try {
+					entry.engine = factory.create();
+				} catch (RuntimeException e) {
+					abandon(entry);
+					throw e;
+				}
+				if (entry.engine == null) {
+					abandon(entry);
+					throw new FatalConverterException("Error creating UIMA analysis engine.");
+				}
+				LOGGER.info("Created shared analysis engine for " + key);
+			} else {
+				LOGGER.info("Reusing shared analysis engine for " + key);
+			}
+			synchronized (ENGINES) {
+				IN_USE.put(entry.engine, entry);
+			}
+			return entry.engine;
+		}
+	}
+
+	/**
+	 * Give back an engine obtained from {@link #acquire(String, long, String, String, EngineFactory)}.
+	 * A retired engine is destroyed when its last user releases it, any other engine once
+	 * nothing has used it for {@link #IDLE_SECONDS}.
+	 */
+	public static void release(UimaEngine engine) {
+		if (engine == null)
+			return;
+		UimaEngine unused = null;
+		synchronized (ENGINES) {
+			final Entry entry = IN_USE.get(engine);
+			if (entry == null) {
+				LOGGER.warn("Releasing an analysis engine that is not registered");
+				return;
+			}
+			entry.refCount--;
+			if (entry.refCount <= 0) {
+				entry.refCount = 0;
+				if (entry.retired) {
+					IN_USE.remove(engine);
+					unused = engine;
+				} else {
+					entry.eviction = evictor().schedule(new Runnable() {
+						@Override
+						public void run() {
+							evict(entry);
+						}
+					}, IDLE_SECONDS, TimeUnit.SECONDS);
+				}
+			}
+		}
+		if (unused != null) {
+			LOGGER.info("Destroying retired analysis engine");
+			unused.destroy();
+		}
+	}
+
+	/**
+	 * Register an engine under the timestamp of the PEAR it has swapped in, so that
+	 * converters starting with that PEAR share the engine rather than create another. If
+	 * another engine is already registered for that PEAR, this engine is retired instead.
+	 *
+	 * @param timestamp The swapped in PEAR file's last modified time
+	 */
+	public static void rekey(UimaEngine engine, long timestamp) {
+		synchronized (ENGINES) {
+			Entry entry = IN_USE.get(engine);
+			if (entry == null || entry.retired || entry.timestamp >= timestamp || ENGINES.get(entry.key) != entry)
+				return;
+			ENGINES.remove(entry.key);
+			String key = key(entry.componentId, timestamp, entry.settings);
+			if (ENGINES.containsKey(key)) {
+				// destroyed by its last user, or by its pending eviction
+				entry.retired = true;
+				LOGGER.info("Retiring analysis engine for " + entry.key + ", " + key + " is already registered");
+				return;
+			}
+			LOGGER.info("Registering analysis engine for " + entry.key + " as " + key);
+			entry.key = key;
+			entry.timestamp = timestamp;
+			ENGINES.put(key, entry);
+		}
+	}
+
+	/**
+	 * Destroy an engine that nothing has used since it was last released.
+	 */
+	private static void evict(Entry entry) {
+		synchronized (ENGINES) {
+			if (entry.refCount > 0 || entry.eviction == null || (!entry.retired && ENGINES.get(entry.key) != entry))
+				return;
+			entry.eviction = null;
+			if (ENGINES.get(entry.key) == entry)
+				ENGINES.remove(entry.key);
+			IN_USE.remove(entry.engine);
+		}
+		LOGGER.info("Destroying analysis engine for " + entry.key + ", unused for " + IDLE_SECONDS + " seconds");
+		entry.engine.destroy();
+	}
+
+	private static void cancelEviction(Entry entry) {
+		if (entry.eviction != null) {
+			entry.eviction.cancel(false);
+			entry.eviction = null;
+		}
+	}
+
+	private static ScheduledExecutorService evictor() {
+		if (evictor == null) {
+			evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "uimaae-engine-evictor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return evictor;
+	}
+
+	private static void abandon(Entry entry) {
+		synchronized (ENGINES) {
+			entry.refCount--;
+			if (entry.refCount <= 0 && ENGINES.get(entry.key) == entry)
+				ENGINES.remove(entry.key);
+		}
+	}
+
+	private static void destroy(List<UimaEngine> engines) {
+		for (UimaEngine engine : engines) {
+			synchronized (ENGINES) {
+				IN_USE.remove(engine);
+			}
+			engine.destroy();
+		}
+	}
+
+	private static String key(String componentId, long timestamp, String settings) {
+		return componentId + "@" + timestamp + " (" + settings + ")";
+	}
+}
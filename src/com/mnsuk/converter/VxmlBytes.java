@@ -0,0 +1,68 @@
+package com.mnsuk.converter;
+
+/**
+ * Helpers for scanning VXML as UTF-8 bytes, shared by the streaming reader and writer.
+ * Markup is ASCII, so it can be matched byte by byte whatever the text around it.
+ */
+final class VxmlBytes {
+
+	private VxmlBytes() {
+	}
+
+	/**
+	 * Position of the closing '&gt;' of a tag, ignoring any inside quoted attribute values.
+	 */
+	static int endOfTag(byte[] data, int from) {
+		byte quote = 0;
+		for (int i = from; i < data.length; i++) {
+			byte b = data[i];
+			if (quote != 0) {
+				if (b == quote)
+					quote = 0;
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static boolean isName(byte[] data, int from, byte[] name) {
+		int end = from + name.length;
+		if (end >= data.length)
+			return false;
+		for (int i = 0; i < name.length; i++) {
+			if (data[from + i] != name[i])
+				return false;
+		}
+		byte next = data[end];
+		return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\n' || next == '\r';
+	}
+
+	static boolean startsWith(byte[] data, int from, String prefix) {
+		if (from + prefix.length() > data.length)
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[from + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	static int indexOf(byte[] data, int from, String s) {
+		int last = data.length - s.length();
+		for (int i = from; i <= last; i++) {
+			if (startsWith(data, i, s))
+				return i;
+		}
+		return -1;
+	}
+
+	static byte[] bytes(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+}
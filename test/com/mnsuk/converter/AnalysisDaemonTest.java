@@ -0,0 +1,232 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * A converter and an analysis daemon talking over a loopback port in one JVM.
+ */
+public class AnalysisDaemonTest {
+	private File pearSupportFolder;
+	private AnalysisDaemon daemon;
+	private AnalysisClient client;
+
+	@After
+	public void tearDown() {
+		if (client != null)
+			client.close();
+		if (daemon != null)
+			daemon.close();
+		if (pearSupportFolder != null)
+			BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Test
+	public void convertsThroughTheDaemonAsInTheConverter() throws Exception {
+		startDaemon();
+		ConverterMetrics metrics = ConverterMetrics.acquire(BenchFixtures.PEAR_FILENAME, 0);
+		UimaAE local = null;
+		UimaAE remote = null;
+		try {
+			local = new UimaAE(BenchFixtures.options(), pearSupportFolder);
+			remote = new UimaAE(BenchFixtures.options("analysis-daemon-port", Integer.toString(daemon.getPort())),
+					pearSupportFolder);
+			metrics.reset();
+			byte[] input = BenchFixtures.vxml(10, 100);
+			VxmlAssert.assertSameXml(local.convert(input), remote.convert(input));
+			assertEquals(10, metrics.getDaemonDocuments());
+			assertEquals(0, metrics.getDaemonFallbacks());
+		} finally {
+			if (local != null)
+				local.terminate();
+			if (remote != null)
+				remote.terminate();
+			metrics.release();
+		}
+	}
+
+	@Test
+	public void analysesSubmittedDocuments() throws Exception {
+		startDaemon();
+		client = new AnalysisClient(daemon.getPort(), configuration(BenchFixtures.PEAR_FILENAME), 4, 10);
+		AnalysisClient.Request[] requests = new AnalysisClient.Request[10];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = client.submit(BenchFixtures.text(50, i) + " Alice");
+			assertNotNull(requests[i]);
+		}
+		for (AnalysisClient.Request request : requests) {
+			assertTrue(client.await(request) != UimaAE.NOT_ANALYSED);
+			assertTrue(client.getEntities(request).position() > 0);
+		}
+	}
+
+	@Test
+	public void refusesPearsOutsideTheRepository() throws Exception {
+		startDaemon();
+		List<String> paths = Arrays.asList("../repo/" + BenchFixtures.PEAR_FILENAME, "..", "/tmp/x.pear",
+				"sub\\x.pear");
+		for (String path : paths) {
+			AnalysisClient refused = new AnalysisClient(daemon.getPort(), configuration(path), 4, 10);
+			try {
+				assertNull(path, refused.submit("Alice"));
+			} finally {
+				refused.close();
+			}
+		}
+		AnalysisClient languages = new AnalysisClient(daemon.getPort(), Arrays.asList("pear-filename",
+				BenchFixtures.PEAR_FILENAME, "type", "token:" + BenchFixtures.TOKEN, "languages", "en,de=../x.pear"), 4, 10);
+		try {
+			assertNull(languages.submit("Alice"));
+		} finally {
+			languages.close();
+		}
+	}
+
+	@Test
+	public void skipsDocumentsOverTheMaximumSize() throws Exception {
+		startDaemon("max-document-size", "100");
+		client = new AnalysisClient(daemon.getPort(), configuration(BenchFixtures.PEAR_FILENAME), 4, 10);
+		AnalysisClient.Request large = client.submit(BenchFixtures.text(1000, 1));
+		AnalysisClient.Request mid = client.submit(BenchFixtures.text(40, 1));
+		AnalysisClient.Request small = client.submit("Alice met Bob");
+		assertEquals(UimaAE.NOT_ANALYSED, client.await(large));
+		assertEquals(UimaAE.NOT_ANALYSED, client.await(mid));
+		assertTrue(client.await(small) != UimaAE.NOT_ANALYSED);
+		assertNotNull(client.submit("Carol"));
+	}
+
+	@Test
+	public void closesConnectionsWithInvalidConfigurations() throws Exception {
+		startDaemon();
+		int[][] frames = { { 1 + 4, -1 }, { 1 + 4, Integer.MAX_VALUE / 2 }, { 1 + 4 + 8, 3 }, { Integer.MAX_VALUE, 0 } };
+		for (int[] frame : frames) {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+			try {
+				socket.setSoTimeout(10000);
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeInt(frame[0]);
+				out.writeByte(AnalysisDaemon.CONFIGURE);
+				out.writeInt(frame[1]);
+				out.flush();
+				socket.shutdownOutput();
+				assertEquals("Frame " + Arrays.toString(frame), -1, socket.getInputStream().read());
+			} finally {
+				socket.close();
+			}
+		}
+		client = new AnalysisClient(daemon.getPort(), configuration(BenchFixtures.PEAR_FILENAME), 4, 10);
+		AnalysisClient.Request request = client.submit("Alice met Bob");
+		assertNotNull(request);
+		assertTrue(client.await(request) != UimaAE.NOT_ANALYSED);
+	}
+
+	/**
+	 * A document the daemon does not answer in time fails on its own, and the documents sent
+	 * with it and after it still get their results on the same connection.
+	 */
+	@Test
+	public void timesOutOnlyTheDocumentWithoutAResult() throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int[] connections = new int[1];
+		Thread fake = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					answerAllBut("slow", server, connections);
+				} catch (IOException e) {
+					// closed by the test
+				}
+			}
+		});
+		fake.setDaemon(true);
+		fake.start();
+		try {
+			client = new AnalysisClient(server.getLocalPort(), configuration(BenchFixtures.PEAR_FILENAME), 4, 1);
+			AnalysisClient.Request slow = client.submit("slow");
+			AnalysisClient.Request fast = client.submit("fast");
+			assertNotNull(slow);
+			assertNotNull(fast);
+			try {
+				client.await(slow);
+				fail("No result expected");
+			} catch (IOException e) {
+				assertTrue(!client.analysisFailed(slow));
+			}
+			assertEquals(1, client.await(fast));
+			AnalysisClient.Request after = client.submit("after");
+			assertNotNull(after);
+			assertEquals(1, client.await(after));
+			assertEquals(1, connections[0]);
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Accept converters, configure them and answer every document as analysed, except those
+	 * with the given text.
+	 */
+	private static void answerAllBut(String unanswered, ServerSocket server, int[] connections) throws IOException {
+		Socket socket = server.accept();
+		connections[0]++;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		in.readInt();
+		if (in.readByte() != AnalysisDaemon.CONFIGURE)
+			throw new IOException("Not configured");
+		int count = in.readInt();
+		for (int i = 0; i < count * 2; i++)
+			in.readUTF();
+		out.writeInt(1 + 1 + 2);
+		out.writeByte(AnalysisDaemon.CONFIGURED);
+		out.writeBoolean(true);
+		out.writeUTF("");
+		out.flush();
+		byte[] entities = new EntityBuffer().encode();
+		while (true) {
+			int length = in.readInt();
+			in.readByte();
+			int id = in.readInt();
+			byte[] text = new byte[length - 5];
+			in.readFully(text);
+			if (unanswered.equals(new String(text, StandardCharsets.UTF_8)))
+				continue;
+			out.writeInt(1 + 4 + 1 + entities.length);
+			out.writeByte(AnalysisDaemon.RESULT);
+			out.writeInt(id);
+			out.writeByte(1);
+			out.write(entities);
+			out.flush();
+		}
+	}
+
+	private void startDaemon(String... options) throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		daemon = new AnalysisDaemon(pearSupportFolder, BenchFixtures.options(options), 0);
+		daemon.start();
+	}
+
+	private static List<String> configuration(String pearFilename) {
+		return Arrays.asList("pear-filename", pearFilename, "type", "token:" + BenchFixtures.TOKEN,
+				"type", "person:" + BenchFixtures.PERSON);
+	}
+}
@@ -0,0 +1,32 @@
+package com.mnsuk.converter;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+
+/**
+ * The stub annotator, running on without heed to interrupts over documents starting with
+ * "block" until the tests let it finish.
+ */
+public class BlockingAnnotator extends StubAnnotator {
+	static volatile CountDownLatch finish = new CountDownLatch(1);
+
+	@Override
+	public void process(CAS cas) throws AnalysisEngineProcessException {
+		if (cas.getDocumentText().startsWith("block")) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					finish.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		super.process(cas);
+	}
+}
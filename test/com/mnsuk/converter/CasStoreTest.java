@@ -0,0 +1,83 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replaying stored CASes against analysing the documents again.
+ */
+public class CasStoreTest {
+	private static final int DOCUMENTS = 5;
+	private static final String TOKEN = "token:" + BenchFixtures.TOKEN;
+	private static final String PERSON = "person:" + BenchFixtures.PERSON;
+
+	private File pearSupportFolder;
+	private byte[] input;
+
+	@Before
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder(CountingAnnotator.class.getName());
+		input = BenchFixtures.vxml(DOCUMENTS, 20);
+	}
+
+	@After
+	public void tearDown() {
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Test
+	public void replaysTheStoredTypes() throws Exception {
+		convert(stored(TOKEN));
+		byte[] analysed = convert(options(TOKEN));
+		assertEquals(DOCUMENTS, CountingAnnotator.PROCESSED.get());
+		byte[] replayed = convert(replayed(TOKEN));
+		assertEquals(0, CountingAnnotator.PROCESSED.get());
+		VxmlAssert.assertSameXml(analysed, replayed);
+	}
+
+	@Test
+	public void analysesAgainForAnAddedType() throws Exception {
+		convert(stored(TOKEN));
+		byte[] analysed = convert(options(TOKEN, PERSON));
+		byte[] replayed = convert(replayed(TOKEN, PERSON));
+		assertEquals(DOCUMENTS, CountingAnnotator.PROCESSED.get());
+		VxmlAssert.assertSameXml(analysed, replayed);
+		// the documents analysed again are stored with the added type
+		replayed = convert(replayed(TOKEN, PERSON));
+		assertEquals(0, CountingAnnotator.PROCESSED.get());
+		VxmlAssert.assertSameXml(analysed, replayed);
+	}
+
+	@Test
+	public void replaysAnAddedTypeStoredAsAnExtraType() throws Exception {
+		convert(stored(TOKEN).add("cas-store-types", BenchFixtures.PERSON));
+		byte[] analysed = convert(options(TOKEN, PERSON));
+		byte[] replayed = convert(replayed(TOKEN, PERSON));
+		assertEquals(0, CountingAnnotator.PROCESSED.get());
+		VxmlAssert.assertSameXml(analysed, replayed);
+	}
+
+	private static BenchConverterOptions options(String... types) {
+		BenchConverterOptions options = new BenchConverterOptions().add("pear-filename", BenchFixtures.PEAR_FILENAME);
+		for (String type : types)
+			options.add("type", type);
+		return options;
+	}
+
+	private static BenchConverterOptions stored(String... types) {
+		return options(types).add("cas-store-path", "cas");
+	}
+
+	private static BenchConverterOptions replayed(String... types) {
+		return stored(types).add("enable-cas-replay", "enable-cas-replay");
+	}
+
+	private byte[] convert(BenchConverterOptions options) throws Exception {
+		return CountingAnnotator.convert(options, pearSupportFolder, input);
+	}
+}
@@ -0,0 +1,36 @@
+package com.mnsuk.converter;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+
+/**
+ * The stub annotator, counting the documents it processes. It is left out of the test pears,
+ * so the pear's class loader loads it from the classpath and the count is the one the tests
+ * read.
+ */
+public class CountingAnnotator extends StubAnnotator {
+	static final AtomicInteger PROCESSED = new AtomicInteger();
+
+	@Override
+	public void process(CAS cas) throws AnalysisEngineProcessException {
+		PROCESSED.incrementAndGet();
+		super.process(cas);
+	}
+
+	/**
+	 * Convert a batch with a new converter, counting only the documents the batch analyses
+	 * rather than those run to warm up the engine.
+	 */
+	static byte[] convert(BenchConverterOptions options, File pearSupportFolder, byte[] input) throws Exception {
+		UimaAE converter = new UimaAE(options, pearSupportFolder);
+		try {
+			PROCESSED.set(0);
+			return converter.convert(input);
+		} finally {
+			converter.terminate();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Admission to the memory budget within a time limit.
+ */
+public class MemoryBudgetTest {
+	private static final long BUDGET = 1000;
+	private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private MemoryBudget budget;
+	private ConverterMetrics metrics;
+
+	@Before
+	public void setUp() {
+		budget = MemoryBudget.acquire(BUDGET);
+		metrics = ConverterMetrics.acquire(MemoryBudgetTest.class.getName(), 0);
+	}
+
+	@After
+	public void tearDown() {
+		budget.release();
+		metrics.release();
+	}
+
+	@Test
+	public void batchGivesUpAtItsDeadline() throws Exception {
+		long held = budget.reserveBatch(BUDGET, TIMEOUT, metrics);
+		long start = System.nanoTime();
+		try {
+			budget.reserveBatch(1, TIMEOUT, metrics);
+			fail("Admitted over the budget");
+		} catch (TimeoutException e) {
+			assertTrue(System.nanoTime() - start >= TIMEOUT);
+		}
+		assertEquals(BUDGET, budget.getReserved());
+		budget.free(held, false);
+		budget.free(budget.reserveBatch(1, TIMEOUT, metrics), false);
+		assertEquals(0, budget.getReserved());
+	}
+
+	@Test
+	public void documentGivesUpAtItsDeadline() throws Exception {
+		long held = budget.reserveAnalysis(BUDGET, TIMEOUT, metrics);
+		try {
+			budget.reserveAnalysis(1, 0, metrics);
+			fail("Admitted over the budget");
+		} catch (TimeoutException e) {
+			// no time to wait
+		}
+		try {
+			budget.reserveAnalysis(1, TIMEOUT, metrics);
+			fail("Admitted over the budget");
+		} catch (TimeoutException e) {
+			// the document is still being analysed
+		}
+		budget.free(held, true);
+		assertEquals(0, budget.getReserved());
+	}
+
+	@Test
+	public void admitsWaitingWorkWhenRoomIsFreed() throws Exception {
+		long held = budget.reserveBatch(BUDGET, TIMEOUT, metrics);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> waiting = executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return Long.valueOf(budget.reserveBatch(BUDGET / 2, TimeUnit.SECONDS.toNanos(10), metrics));
+				}
+			});
+			Thread.sleep(100);
+			budget.free(held, false);
+			assertEquals(BUDGET / 2, waiting.get(5, TimeUnit.SECONDS).longValue());
+			budget.free(BUDGET / 2, false);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
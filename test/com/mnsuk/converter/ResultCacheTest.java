@@ -0,0 +1,135 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The result cache's memory mapped disk tier across restarts and pear changes.
+ */
+public class ResultCacheTest {
+	private static final String NAME = "cached.pear";
+	private static final long MEMORY = 1024 * 1024;
+	private static final long DISK = 64 * 1024;
+	private static final byte[] CONFIG = ResultCache.configDigest(Arrays.asList("person:bench.Person"), false);
+
+	private File folder;
+	private File file;
+	private ConverterMetrics metrics;
+
+	@Before
+	public void setUp() throws Exception {
+		folder = File.createTempFile("resultcache", "");
+		if (!folder.delete() || !folder.mkdir())
+			throw new IllegalStateException("Cannot create " + folder);
+		file = new File(folder, NAME + ".cache");
+		metrics = ConverterMetrics.acquire(NAME, 0);
+	}
+
+	@After
+	public void tearDown() {
+		metrics.release();
+		BenchFixtures.delete(folder);
+	}
+
+	@Test
+	public void keepsResultsAcrossARestart() {
+		ResultCache cache = open();
+		for (int i = 0; i < 10; i++)
+			cache.put(cache.key(CONFIG, "model-a", text(i)), entities(i));
+		cache.release();
+
+		cache = open();
+		try {
+			for (int i = 0; i < 10; i++) {
+				EntityBuffer cached = cache.get(cache.key(CONFIG, "model-a", text(i)));
+				assertNotNull("Document " + i, cached);
+				assertArrayEquals(entities(i).encode(), cached.encode());
+			}
+			assertNull(cache.get(cache.key(CONFIG, "model-a", text(10))));
+		} finally {
+			cache.release();
+		}
+	}
+
+	@Test
+	public void emptiesTheCacheWhenThePearChanges() {
+		ResultCache cache = open();
+		cache.put(cache.key(CONFIG, "model-a", text(1)), entities(1));
+		cache.release();
+
+		cache = open();
+		ResultCache.Key changed = cache.key(CONFIG, "model-b", text(1));
+		assertNull(cache.get(changed));
+		cache.put(changed, entities(2));
+		cache.release();
+
+		cache = open();
+		try {
+			assertArrayEquals(entities(2).encode(), cache.get(cache.key(CONFIG, "model-b", text(1))).encode());
+			assertNull(cache.get(cache.key(CONFIG, "model-a", text(1))));
+		} finally {
+			cache.release();
+		}
+	}
+
+	@Test
+	public void startsTheFileAgainWhenItIsFull() {
+		ResultCache cache = open();
+		int documents = 2000;
+		for (int i = 0; i < documents; i++)
+			cache.put(cache.key(CONFIG, "model-a", text(i)), entities(i));
+		cache.release();
+
+		cache = open();
+		try {
+			assertNull(cache.get(cache.key(CONFIG, "model-a", text(0))));
+			EntityBuffer last = cache.get(cache.key(CONFIG, "model-a", text(documents - 1)));
+			assertNotNull(last);
+			assertArrayEquals(entities(documents - 1).encode(), last.encode());
+		} finally {
+			cache.release();
+		}
+	}
+
+	@Test
+	public void sharesCachesOnlyWithTheSameSizes() {
+		ResultCache cache = ResultCache.acquire(NAME, MEMORY, null, 0, metrics);
+		ResultCache same = ResultCache.acquire(NAME, MEMORY, null, 0, metrics);
+		ResultCache larger = ResultCache.acquire(NAME, 2 * MEMORY, null, 0, metrics);
+		try {
+			assertSame(cache, same);
+			assertNotSame(cache, larger);
+		} finally {
+			cache.release();
+			same.release();
+			larger.release();
+		}
+	}
+
+	private ResultCache open() {
+		return ResultCache.acquire(NAME, MEMORY, file, DISK, metrics);
+	}
+
+	private static String text(int document) {
+		return BenchFixtures.text(20, document);
+	}
+
+	private static EntityBuffer entities(int document) {
+		EntityBuffer entities = new EntityBuffer();
+		entities.startEntity();
+		entities.attribute("name", "person");
+		entities.text("Alice " + document);
+		entities.endEntity();
+		return entities;
+	}
+}
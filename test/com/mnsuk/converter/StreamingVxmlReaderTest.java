@@ -0,0 +1,115 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.vivisimo.parser.input.ConverterInput;
+import com.vivisimo.parser.input.InputFilterFactory;
+import com.vivisimo.parser.input.VXMLInputBuilder;
+
+/**
+ * The text the streaming reader gives each document against the text the Engine's input
+ * filter gives it from the DOM, which decides the text the annotators see and so every
+ * entity offset.
+ */
+public class StreamingVxmlReaderTest {
+	private static final String VXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<vce>\n"
+			+ "<document url=\"http://a/?x=1&amp;y=2\">\n"
+			+ "  <content name=\"title\">Café &lt;menu&gt; &#x1F600; &#233; &quot;q&quot; &apos;a&apos;</content>\n"
+			+ "  <content name=\"body\">line one\r\nline two\rline three\n  indented\ttab</content>\n"
+			+ "  <content name=\"binary\">QUJDREVGR0hJSktMTU5PUA==</content>\n"
+			+ "  <content name=\"empty\"></content>\n"
+			+ "  <content name=\"closed\"/>\n"
+			+ "  <content name=\"comment\"><!-- nothing --></content>\n"
+			+ "  <content name=\"body\">a <b>bold</b> and <i>italic<br/></i> c</content>\n"
+			+ "  <content name=\"body\"><![CDATA[<not> &amp; markup\r\n]]>after</content>\n"
+			+ "  <content name='a&amp;b' type=\"text\">named with a reference</content>\n"
+			+ "  <content type=\"text\" name=\"body\">name after another attribute</content>\n"
+			+ "</document>\n"
+			+ "<document url=\"b\"/>\n"
+			+ "<document url=\"c\"><content name=\"binary\">only excluded</content></document>\n"
+			+ "<document url=\"d\"><content name=\"title\">Ünïcödé ∑ 日本語</content><content name=\"body\">Bob</content></document>\n"
+			+ "</vce>\n";
+
+	@Test
+	public void matchesInputFilterIncludingByDefault() throws Exception {
+		assertSameText(new HashSet<String>(Arrays.asList("binary", "a&b")), false);
+	}
+
+	@Test
+	public void matchesInputFilterExcludingByDefault() throws Exception {
+		assertSameText(new HashSet<String>(Arrays.asList("title", "body", "comment", "a&b")), true);
+	}
+
+	@Test
+	public void matchesInputFilterWithAnEmptyContentList() throws Exception {
+		assertSameText(new HashSet<String>(), false);
+		assertSameText(new HashSet<String>(), true);
+	}
+
+	@Test
+	public void readsDocumentUrls() throws Exception {
+		StreamingVxmlReader reader = new StreamingVxmlReader(new HashSet<String>(), false);
+		assertEquals(4, reader.begin(VXML.getBytes("UTF-8")));
+		assertEquals("http://a/?x=1&y=2", reader.url(0));
+		assertEquals("b", reader.url(1));
+		assertEquals("d", reader.url(3));
+	}
+
+	@Test
+	public void cannotStreamNestedOrUnterminatedDocuments() throws Exception {
+		StreamingVxmlReader reader = new StreamingVxmlReader(new HashSet<String>(), false);
+		assertEquals(-1, reader.begin(null));
+		assertEquals(-1, reader.begin("<vce><document><document></document></document></vce>".getBytes("UTF-8")));
+		assertEquals(-1, reader.begin("<vce><document><content name=\"a\">x</document></vce>".getBytes("UTF-8")));
+		assertEquals(-1, reader.begin("<vce><document url=\"a\"></vce>".getBytes("UTF-8")));
+	}
+
+	/**
+	 * The converter's output with streaming input against its output with DOM input, with
+	 * entity offsets written so any difference in the analysed text shows.
+	 */
+	@Test
+	public void converterOutputMatchesDomInput() throws Exception {
+		File pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		UimaAE dom = null;
+		UimaAE streaming = null;
+		try {
+			dom = new UimaAE(BenchFixtures.options("enable-annotation-offsets", "enable-annotation-offsets",
+					"content-list", "binary"), pearSupportFolder);
+			streaming = new UimaAE(BenchFixtures.options("enable-annotation-offsets", "enable-annotation-offsets",
+					"content-list", "binary", "streaming-input", "streaming-input"), pearSupportFolder);
+			byte[] input = VXML.getBytes("UTF-8");
+			VxmlAssert.assertSameXml(dom.convert(input), streaming.convert(input));
+		} finally {
+			if (dom != null)
+				dom.terminate();
+			if (streaming != null)
+				streaming.terminate();
+			BenchFixtures.delete(pearSupportFolder);
+		}
+	}
+
+	private static void assertSameText(Set<String> contentList, boolean excludeByDefault) throws Exception {
+		List<String> expected = new ArrayList<String>();
+		for (ConverterInput document : new VXMLInputBuilder(VXML).documents()) {
+			String text = InputFilterFactory.createInputFilter(document, contentList).filterInput(excludeByDefault);
+			expected.add(text == null ? "" : text);
+		}
+		StreamingVxmlReader reader = new StreamingVxmlReader(contentList, excludeByDefault);
+		assertEquals(expected.size(), reader.begin(VXML.getBytes("UTF-8")));
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("Document " + i + " with " + contentList + (excludeByDefault ? " included" : " excluded"),
+					expected.get(i), reader.filteredContents(i));
+		}
+	}
+}
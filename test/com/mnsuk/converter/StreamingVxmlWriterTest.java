@@ -0,0 +1,157 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The streaming output against the same entities added to a DOM of the input.
+ */
+public class StreamingVxmlWriterTest {
+	private static final String VXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<!-- a <document> in a comment -->\n"
+			+ "<vce>\n"
+			+ "<document url=\"http://a/?x=1&amp;y=2\" vse-key='single \"quoted\"'>\n"
+			+ "<content name=\"title\">Café &lt;menu&gt; &#x1F600;</content>\n"
+			+ "</document>\n"
+			+ "<document url=\"b\"/>\n"
+			+ "<document url=\"c\" />\n"
+			+ "<documents><content name=\"other\">not a document</content></documents>\n"
+			+ "<document url=\"d\"><content name=\"body\"><![CDATA[a </document> b]]></content></document>\n"
+			+ "<?pi <document>?>\n"
+			+ "<document\n url=\"e\"\n><content name=\"body\">untouched</content></document>\n"
+			+ "<document url=\"f\"></document>\n"
+			+ "</vce>\n";
+
+	@Test
+	public void matchesDomOutput() throws Exception {
+		byte[] input = VXML.getBytes("UTF-8");
+		Document expected = VxmlAssert.parse(input);
+		NodeList documents = expected.getElementsByTagName("document");
+		StreamingVxmlWriter writer = new StreamingVxmlWriter();
+		assertEquals(documents.getLength(), writer.begin(input));
+		for (int i = 0; i < documents.getLength(); i++) {
+			if (i == 4)
+				continue; // a document without entities is copied as it is
+			writeEntities(new DomEntityWriter((Element) documents.item(i)), i);
+			writer.document(i);
+			writeEntities(writer, i);
+		}
+		VxmlAssert.assertSameXml(expected, writer.finish());
+	}
+
+	@Test
+	public void copiesInputBytesAroundEntities() throws Exception {
+		String input = "<vce><document url=\"a\"><content name=\"t\">x</content></document>"
+				+ "<document url=\"b\"/><document url='c' /></vce>";
+		StreamingVxmlWriter writer = new StreamingVxmlWriter();
+		assertEquals(3, writer.begin(input.getBytes("UTF-8")));
+		for (int i = 0; i < 2; i++) {
+			writer.document(i);
+			writer.startEntity();
+			writer.attribute("name", "p");
+			writer.text("A&B");
+			writer.endEntity();
+		}
+		assertEquals("<vce><document url=\"a\"><content name=\"t\">x</content><content name=\"p\">A&amp;B</content></document>"
+				+ "<document url=\"b\"><content name=\"p\">A&amp;B</content></document><document url='c' /></vce>",
+				new String(writer.finish(), "UTF-8"));
+	}
+
+	@Test
+	public void reusesTheWriterForTheNextBatch() throws Exception {
+		StreamingVxmlWriter writer = new StreamingVxmlWriter();
+		byte[] input = VXML.getBytes("UTF-8");
+		writer.begin(input);
+		writer.document(1);
+		writeEntities(writer, 1);
+		writer.finish();
+		assertEquals(2, writer.begin("<vce><document/><document></document></vce>".getBytes("UTF-8")));
+		assertEquals("<vce><document/><document></document></vce>", new String(writer.finish(), "UTF-8"));
+	}
+
+	@Test
+	public void cannotStreamNestedOrUnterminatedDocuments() throws Exception {
+		StreamingVxmlWriter writer = new StreamingVxmlWriter();
+		assertEquals(-1, writer.begin(null));
+		assertEquals(-1, writer.begin("<vce><document><document></document></document></vce>".getBytes("UTF-8")));
+		assertEquals(-1, writer.begin("<vce><document><document/></document></vce>".getBytes("UTF-8")));
+		assertEquals(-1, writer.begin("<vce><document url=\"a\"><!-- </document></vce>".getBytes("UTF-8")));
+		assertEquals(-1, writer.begin("<vce><document url=\"a\"></vce>".getBytes("UTF-8")));
+		assertEquals(-1, writer.begin("<vce></document></vce>".getBytes("UTF-8")));
+		assertEquals(-1, writer.begin("<vce><document url=\"a".getBytes("UTF-8")));
+	}
+
+	/**
+	 * The converter's streaming output against its DOM output, including input it cannot
+	 * stream, for which it falls back to the DOM output.
+	 */
+	@Test
+	public void converterOutputMatchesDomOutput() throws Exception {
+		assertConverterOutputMatchesDomOutput();
+	}
+
+	@Test
+	public void converterOutputMatchesDomOutputWithAContentList() throws Exception {
+		assertConverterOutputMatchesDomOutput("content-list", "title");
+	}
+
+	/**
+	 * With exclude-by-default the converter uses the DOM output, which is given the flag.
+	 */
+	@Test
+	public void converterOutputMatchesDomOutputExcludingByDefault() throws Exception {
+		assertConverterOutputMatchesDomOutput("exclude-by-default", "exclude-by-default", "content-list", "body");
+		assertConverterOutputMatchesDomOutput("exclude-by-default", "exclude-by-default", "content-list", "body",
+				"streaming-input", "streaming-input");
+	}
+
+	private static void assertConverterOutputMatchesDomOutput(String... options) throws Exception {
+		String nested = "<vce><document url=\"a\"><content name=\"body\">Alice met Bob</content>"
+				+ "<document url=\"b\"><content name=\"body\">Carol</content></document></document></vce>";
+		String[] streamingOptions = Arrays.copyOf(options, options.length + 2);
+		streamingOptions[options.length] = "streaming-output";
+		streamingOptions[options.length + 1] = "streaming-output";
+		File pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		UimaAE dom = null;
+		UimaAE streaming = null;
+		try {
+			dom = new UimaAE(BenchFixtures.options(options), pearSupportFolder);
+			streaming = new UimaAE(BenchFixtures.options(streamingOptions), pearSupportFolder);
+			byte[][] inputs = { VXML.getBytes("UTF-8"), BenchFixtures.vxml(3, 50), nested.getBytes("UTF-8") };
+			for (byte[] input : inputs) {
+				VxmlAssert.assertSameXml(dom.convert(input), streaming.convert(input));
+			}
+		} finally {
+			if (dom != null)
+				dom.terminate();
+			if (streaming != null)
+				streaming.terminate();
+			BenchFixtures.delete(pearSupportFolder);
+		}
+	}
+
+	/**
+	 * Entities whose attributes and text need every kind of escaping.
+	 */
+	private static void writeEntities(EntityWriter out, int document) {
+		out.startEntity();
+		out.attribute("name", "person");
+		out.attribute("value", "a\"b'c<d>e&f\tg\nh\ri é 😀 " + document);
+		out.text("Alice & <Bob> \"x\" 'y'\n\r\té 😀");
+		out.endEntity();
+		out.startEntity();
+		out.attribute("name", "empty");
+		out.endEntity();
+		out.startEntity();
+		out.attribute("name", "blank");
+		out.text("");
+		out.endEntity();
+	}
+}
@@ -0,0 +1,90 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UimaAETest {
+	private static final int DOCUMENTS = 5;
+
+	private File pearSupportFolder;
+	private UimaAE converter;
+
+	@Before
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder(CountingAnnotator.class.getName());
+	}
+
+	@After
+	public void tearDown() {
+		if (converter != null)
+			converter.terminate();
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Test
+	public void analysesEachDocumentOnceForOneType() throws Exception {
+		String output = convert(new BenchConverterOptions()
+				.add("pear-filename", BenchFixtures.PEAR_FILENAME)
+				.add("type", "token:" + BenchFixtures.TOKEN));
+		assertEquals(DOCUMENTS, CountingAnnotator.PROCESSED.get());
+		assertTrue(output.contains("name=\"token\""));
+	}
+
+	@Test
+	public void analysesEachDocumentOnceForManyTypes() throws Exception {
+		String output = convert(BenchFixtures.options()
+				.add("type", "location:" + BenchFixtures.LOCATION)
+				.add("type", "name:" + BenchFixtures.PERSON));
+		assertEquals(DOCUMENTS, CountingAnnotator.PROCESSED.get());
+		assertTrue(output.contains("name=\"token\""));
+		assertTrue(output.contains("name=\"person\""));
+		assertTrue(output.contains("name=\"gender\""));
+		assertTrue(output.contains("name=\"name\""));
+	}
+
+	@Test
+	public void analysesEachDocumentOnceOnAnalysisThreads() throws Exception {
+		convert(BenchFixtures.options().add("analysis-threads", "3"));
+		assertEquals(DOCUMENTS, CountingAnnotator.PROCESSED.get());
+	}
+
+	@Test
+	public void writesTheSameBytesOnAnalysisThreads() throws Exception {
+		assertSameOutputOnAnalysisThreads();
+	}
+
+	@Test
+	public void streamsTheSameBytesOnAnalysisThreads() throws Exception {
+		assertSameOutputOnAnalysisThreads("streaming-output", "streaming-output");
+	}
+
+	/**
+	 * Convert a batch of documents with different entities on one thread and on several,
+	 * where documents finish out of order.
+	 */
+	private void assertSameOutputOnAnalysisThreads(String... options) throws Exception {
+		byte[] input = BenchFixtures.vxml(40, 60);
+		String[] parallelOptions = Arrays.copyOf(options, options.length + 2);
+		parallelOptions[options.length] = "analysis-threads";
+		parallelOptions[options.length + 1] = "3";
+		UimaAE serial = new UimaAE(BenchFixtures.options(options), pearSupportFolder);
+		try {
+			converter = new UimaAE(BenchFixtures.options(parallelOptions), pearSupportFolder);
+			assertArrayEquals(serial.convert(input), converter.convert(input));
+		} finally {
+			serial.terminate();
+		}
+	}
+
+	private String convert(BenchConverterOptions options) throws Exception {
+		return new String(CountingAnnotator.convert(options, pearSupportFolder, BenchFixtures.vxml(DOCUMENTS, 20)), "UTF-8");
+	}
+}
@@ -0,0 +1,61 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.apache.uima.resource.ResourceManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The resource manager shared by the engines of a pear installation.
+ */
+public class UimaEngineLoaderTest {
+	private File pearSupportFolder;
+	private UimaEngineLoader loader;
+	private File pearRun;
+	private File pear;
+
+	@Before
+	public void setUp() throws Exception {
+		pearSupportFolder = BenchFixtures.createPearSupportFolder();
+		loader = new UimaEngineLoader(new UimaAEConverterOptions(BenchFixtures.options()), pearSupportFolder);
+		pearRun = new File(pearSupportFolder, "run");
+		pear = new File(new File(pearSupportFolder, "repo"), BenchFixtures.PEAR_FILENAME);
+	}
+
+	@After
+	public void tearDown() {
+		BenchFixtures.delete(pearSupportFolder);
+	}
+
+	@Test
+	public void sharesTheResourceManagerWhileAnEngineUsesIt() throws Exception {
+		UimaEngine first = createEngine();
+		ResourceManager shared = UimaEngineLoader.sharedResourceManager(BenchFixtures.COMPONENT_ID);
+		assertNotNull(shared);
+		UimaEngine second = createEngine();
+		assertSame(shared, UimaEngineLoader.sharedResourceManager(BenchFixtures.COMPONENT_ID));
+		first.destroy();
+		assertSame(shared, UimaEngineLoader.sharedResourceManager(BenchFixtures.COMPONENT_ID));
+		second.destroy();
+		assertNull(UimaEngineLoader.sharedResourceManager(BenchFixtures.COMPONENT_ID));
+
+		UimaEngine third = createEngine();
+		try {
+			assertNotSame(shared, UimaEngineLoader.sharedResourceManager(BenchFixtures.COMPONENT_ID));
+		} finally {
+			third.destroy();
+		}
+		assertNull(UimaEngineLoader.sharedResourceManager(BenchFixtures.COMPONENT_ID));
+	}
+
+	private UimaEngine createEngine() throws Exception {
+		return loader.createEngine(loader.installPear(pearRun, pear, BenchFixtures.COMPONENT_ID));
+	}
+}
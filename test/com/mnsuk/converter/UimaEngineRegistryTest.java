@@ -0,0 +1,65 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ibm.dataexplorer.converter.FatalConverterException;
+
+/**
+ * Sharing engines between converters across a pear swap.
+ */
+public class UimaEngineRegistryTest {
+	private static final String SETTINGS = "settings";
+
+	private final AtomicInteger created = new AtomicInteger();
+	private final UimaEngineRegistry.EngineFactory factory = new UimaEngineRegistry.EngineFactory() {
+		@Override
+		public UimaEngine create() throws FatalConverterException {
+			created.incrementAndGet();
+			try {
+				return BenchFixtures.createEngine(1);
+			} catch (Exception e) {
+				throw new FatalConverterException(e.getMessage(), e);
+			}
+		}
+	};
+
+	@Test
+	public void sharesASwappedEngineUnderTheNewTimestamp() throws Exception {
+		UimaEngine engine = UimaEngineRegistry.acquire("swapped", 1, SETTINGS, "", factory);
+		UimaEngineRegistry.rekey(engine, 2);
+		UimaEngine started = UimaEngineRegistry.acquire("swapped", 2, SETTINGS, "", factory);
+		assertSame(engine, started);
+		assertEquals(1, created.get());
+		UimaEngineRegistry.release(started);
+		UimaEngineRegistry.release(engine);
+	}
+
+	@Test
+	public void keepsTheEngineForAnOlderTimestamp() throws Exception {
+		UimaEngine engine = UimaEngineRegistry.acquire("older", 2, SETTINGS, "", factory);
+		UimaEngineRegistry.rekey(engine, 1);
+		UimaEngine started = UimaEngineRegistry.acquire("older", 2, SETTINGS, "", factory);
+		assertSame(engine, started);
+		UimaEngineRegistry.release(started);
+		UimaEngineRegistry.release(engine);
+	}
+
+	@Test
+	public void doesNotShareARetiredEngine() throws Exception {
+		UimaEngine engine = UimaEngineRegistry.acquire("retired", 1, SETTINGS, "", factory);
+		UimaEngine newer = UimaEngineRegistry.acquire("retired", 3, SETTINGS, "", factory);
+		UimaEngineRegistry.rekey(engine, 2);
+		UimaEngine started = UimaEngineRegistry.acquire("retired", 2, SETTINGS, "", factory);
+		assertNotSame(engine, started);
+		assertEquals(3, created.get());
+		UimaEngineRegistry.release(started);
+		UimaEngineRegistry.release(newer);
+		UimaEngineRegistry.release(engine);
+	}
+}
@@ -0,0 +1,94 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.uima.cas.CAS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * CAS pool slots held by documents the engine did not finish in time.
+ */
+public class UimaEngineTest {
+	private static final int CAS_POOL_SIZE = 2;
+	private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private UimaEngine engine;
+
+	@Before
+	public void setUp() throws Exception {
+		BlockingAnnotator.finish = new CountDownLatch(1);
+		engine = BenchFixtures.createEngine(CAS_POOL_SIZE, BlockingAnnotator.class.getName());
+	}
+
+	@After
+	public void tearDown() {
+		BlockingAnnotator.finish.countDown();
+		engine.destroy();
+	}
+
+	@Test
+	public void timesOutWaitingForACas() throws Exception {
+		holdEveryCas();
+		long start = System.nanoTime();
+		assertTimedOut("Alice");
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertEquals(null, engine.emptyCas(TIMEOUT));
+	}
+
+	@Test
+	public void wakesWaitersWhenAbandonedRunsFinish() throws Exception {
+		holdEveryCas();
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					CAS cas = engine.analyse("Alice met Bob", "en", UimaEngine.NO_TIMEOUT);
+					result.set(cas);
+					engine.release(cas);
+				} catch (Exception e) {
+					result.set(e);
+				}
+			}
+		});
+		waiter.start();
+		Thread.sleep(200);
+		assertTrue(waiter.isAlive());
+		BlockingAnnotator.finish.countDown();
+		waiter.join(TimeUnit.SECONDS.toMillis(10));
+		assertFalse("Still waiting for a CAS", waiter.isAlive());
+		assertTrue(String.valueOf(result.get()), result.get() instanceof CAS);
+		for (int i = 0; i < CAS_POOL_SIZE; i++) {
+			CAS cas = engine.analyse("Alice", "en", TIMEOUT);
+			assertNotNull(cas);
+			engine.release(cas);
+		}
+	}
+
+	/**
+	 * Take every CAS in the pool with documents the engine does not finish in time.
+	 */
+	private void holdEveryCas() throws Exception {
+		for (int i = 0; i < CAS_POOL_SIZE; i++)
+			assertTimedOut("block " + i);
+	}
+
+	private void assertTimedOut(String text) {
+		try {
+			engine.release(engine.analyse(text, "en", TIMEOUT));
+			fail("Analysing \"" + text + "\" did not time out");
+		} catch (AnalysisFailedException e) {
+			assertTrue(e.isTimedOut());
+		}
+	}
+}
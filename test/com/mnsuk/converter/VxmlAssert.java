@@ -0,0 +1,53 @@
+package com.mnsuk.converter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Compares VXML by its parsed tree rather than its bytes, so serialisations that differ only
+ * in attribute order, quoting, escaping or the form of empty elements are the same.
+ */
+final class VxmlAssert {
+
+	private VxmlAssert() {
+	}
+
+	static Document parse(byte[] vxml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setCoalescing(true);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(vxml));
+	}
+
+	static void assertSameXml(Document expected, byte[] actual) throws Exception {
+		Document parsed = parse(actual);
+		if (!expected.getDocumentElement().isEqualNode(parsed.getDocumentElement()))
+			assertEquals(serialise(expected), serialise(parsed));
+	}
+
+	static void assertSameXml(byte[] expected, byte[] actual) throws Exception {
+		assertSameXml(parse(expected), actual);
+	}
+
+	/**
+	 * The document in a canonical enough form to show where two documents differ.
+	 */
+	private static String serialise(Node node) throws Exception {
+		StringWriter out = new StringWriter();
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		transformer.transform(new DOMSource(node), new StreamResult(out));
+		return out.toString();
+	}
+}